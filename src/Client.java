@@ -2,6 +2,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import io.grpc.examples.p4p.p4p.net.Transport;
+
 // Client class
 class Client {
 
@@ -9,8 +11,10 @@ class Client {
     public static void main(String[] args)
     {
         // establish a connection by providing host and port
-        // number
-        try (Socket socket = new Socket("localhost", 4321)) {
+        // number. -unix dir uses the Unix domain socket of the port
+        // instead.
+        try (Transport.Connection socket =
+                 Transport.configure(args, "localhost", 4321).connect()) {
 
             // writing to server
             PrintWriter out = new PrintWriter(
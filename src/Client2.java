@@ -1,12 +1,15 @@
 import java.io.DataOutputStream;
-import java.net.Socket;
+
+import io.grpc.examples.p4p.p4p.net.Transport;
 
 
 public class Client2 {
     public static void main(String[] arg) {
         try {
 
-            Socket socketConnection = new Socket("127.0.0.1", 11111);
+            // -unix dir reaches PrivacyPeer on its Unix domain socket
+            Transport.Connection socketConnection =
+                Transport.configure(arg, "127.0.0.1", 11111).connect();
 
 
             //QUERY PASSING
@@ -1,24 +1,18 @@
 import java.io.*;
-import java.net.Socket;
 
-public class EchoThread extends Thread {
-    protected Socket socket;
+import io.grpc.examples.p4p.p4p.net.Transport;
 
-    public EchoThread(Socket clientSocket) {
+public class EchoThread implements Runnable {
+    protected Transport.Connection socket;
+
+    public EchoThread(Transport.Connection clientSocket) {
         this.socket = clientSocket;
     }
 
     public void run() {
-        InputStream inp = null;
-        BufferedReader brinp = null;
-        DataOutputStream out = null;
-        try {
-            inp = socket.getInputStream();
-            brinp = new BufferedReader(new InputStreamReader(inp));
-            out = new DataOutputStream(socket.getOutputStream());
-        } catch (IOException e) {
-            return;
-        }
+        InputStream inp = socket.getInputStream();
+        BufferedReader brinp = new BufferedReader(new InputStreamReader(inp));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
         String line;
         while (true) {
             try {
@@ -1,24 +1,21 @@
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-public class PrivacyPeer {
 
-    public static void main(String args[]) throws IOException,
-            InterruptedException{
+import io.grpc.examples.p4p.p4p.net.Acceptor;
+import io.grpc.examples.p4p.p4p.net.Transport;
 
-        while(true){
-            ServerSocket ss=new ServerSocket(11111);
-            System.out.println("Server is Awaiting");
-            Socket s=ss.accept();
-            Multi t=new Multi(s);
-            t.start();
+public class PrivacyPeer {
 
-            Thread.sleep(2000);
-            ss.close();
-        }
+    public static void main(String args[]) throws IOException {
+        Acceptor acceptor = new Acceptor("PrivacyPeer", 11111, new Acceptor.Handler() {
+            public Runnable newTask(Transport.Connection s) {
+                return new Multi(s);
+            }
+        });
+        acceptor.configure(args);
+        acceptor.run();
 
 
     }
@@ -1,25 +1,26 @@
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class Multi extends Thread{
-    private Socket s=null;
+import io.grpc.examples.p4p.p4p.net.Acceptor;
+import io.grpc.examples.p4p.p4p.net.Transport;
+
+class Multi implements Runnable{
+    private Transport.Connection s=null;
     DataInputStream infromClient;
     Multi() throws IOException{
 
 
     }
-    Multi(Socket s) throws IOException{
+    Multi(Transport.Connection s){
         this.s=s;
-        infromClient = new DataInputStream(s.getInputStream());
     }
     public void run(){
 
         String SQL=new String();
         try {
+            infromClient = new DataInputStream(s.getInputStream());
             SQL = infromClient.readUTF();
         } catch (IOException ex) {
             Logger.getLogger(Multi.class.getName()).log(Level.SEVERE, null, ex);
@@ -35,19 +36,14 @@ class Multi extends Thread{
 }
 public class Server {
 
-    public static void main(String args[]) throws IOException,
-            InterruptedException{
-
-        while(true){
-            ServerSocket ss=new ServerSocket(22222);
-            System.out.println("Server is Awaiting");
-            Socket s=ss.accept();
-            Multi t=new Multi(s);
-            t.start();
-
-            Thread.sleep(2000);
-            ss.close();
-        }
+    public static void main(String args[]) throws IOException {
+        Acceptor acceptor = new Acceptor("Server", 22222, new Acceptor.Handler() {
+            public Runnable newTask(Transport.Connection s) {
+                return new Multi(s);
+            }
+        });
+        acceptor.configure(args);
+        acceptor.run();
 
 
 
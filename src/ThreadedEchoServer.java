@@ -1,29 +1,36 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+
+import io.grpc.examples.p4p.p4p.net.Acceptor;
+import io.grpc.examples.p4p.p4p.net.EchoHandler;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.Transport;
 
 public class ThreadedEchoServer {
 
     static final int PORT = 1978;
 
-    public static void main(String args[]) {
-        ServerSocket serverSocket = null;
-        Socket socket = null;
-
-        try {
-            serverSocket = new ServerSocket(PORT);
-        } catch (IOException e) {
-            e.printStackTrace();
-
-        }
-        while (true) {
-            try {
-                socket = serverSocket.accept();
-            } catch (IOException e) {
-                System.out.println("I/O error: " + e);
+    public static void main(String args[]) throws IOException {
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-nio")) {
+                // A few event loops serve all the connections
+                NioServer server = new NioServer("ThreadedEchoServer", PORT,
+                                                 new EchoHandler());
+                server.configure(args);
+                server.start();
+                return;
             }
-            // new thread for a client
-            new EchoThread(socket).start();
         }
+
+        // Echo connections are long lived and mostly idle so each gets a
+        // (virtual if possible) thread of its own. Pass -c to change the
+        // connection limit.
+        Acceptor acceptor = new Acceptor("ThreadedEchoServer", PORT, new Acceptor.Handler() {
+            public Runnable newTask(Transport.Connection connection) {
+                return new EchoThread(connection);
+            }
+        });
+        acceptor.setVirtualThreads(true);
+        acceptor.configure(args);
+        acceptor.run();
     }
 }
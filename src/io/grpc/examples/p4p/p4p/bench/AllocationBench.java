@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.bench;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+
+import io.grpc.examples.p4p.p4p.util.Util;
+import io.grpc.examples.p4p.p4p.util.ChallengeGenerator;
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * Measures how many bytes the prover and the verifier allocate. Prints the
+ * average number of bytes allocated by one <code>construct</code> (i.e. one
+ * call to <code>getL2NormBoundProof2</code>) and one
+ * <code>serverVerify</code>, followed by the per call cost of the numeric
+ * conversions used in their loops, the old way and the current way.
+ * <p>
+ * Needs a VM whose thread MX bean implements
+ * <code>com.sun.management.ThreadMXBean</code>, which HotSpot does.
+ */
+
+public class AllocationBench extends P4PParameters {
+    private static com.sun.management.ThreadMXBean mx = null;
+    private static long sink = 0;   // Keeps the JIT from dropping the loops
+
+    private static long allocated() {
+        return mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String[] args) {
+        int k = 512;
+        int m = 1000;
+        int l = 40;
+        int N = 50;
+        int nLoops = 10;
+
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            try {
+                if(arg.equals("-k"))
+                    k = Integer.parseInt(args[i++]);
+                else if(arg.equals("-m"))
+                    m = Integer.parseInt(args[i++]);
+                else if(arg.equals("-N"))
+                    N = Integer.parseInt(args[i++]);
+                else if(arg.equals("-l"))
+                    nLoops = Integer.parseInt(args[i++]);
+                else if(arg.equals("-d"))
+                    debug = true;
+            }
+            catch (NumberFormatException e) {
+                System.out.println("Bad argument to " + arg);
+                System.exit(1);
+            }
+        }
+
+        if(!(ManagementFactory.getThreadMXBean()
+             instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocation counting is not supported by this VM.");
+            System.exit(1);
+        }
+        mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        P4PParameters.initialize(k, false);
+        SecureRandom rand = new SecureRandom();
+        long F = BigInteger.probablePrime(Math.min(l+30, 62), rand).longValue();
+        NativeBigInteger[] bi = P4PParameters.getGenerators(2);
+        NativeBigInteger g = bi[0];
+        NativeBigInteger h = bi[1];
+        long L = ((long)2)<<l - 1;
+
+        System.out.println("m = " + m + ", N = " + N + ", l = " + l + ", k = " + k);
+
+        // Warm up once so that class loading and the first compilation are
+        // not counted:
+        proveAndVerify(m, F, l, N, g, h, L, new long[2]);
+
+        long[] bytes = new long[2];
+        for(int i = 0; i < nLoops; i++)
+            proveAndVerify(m, F, l, N, g, h, L, bytes);
+
+        System.out.println("construct:    " + bytes[0]/nLoops + " bytes per proof");
+        System.out.println("serverVerify: " + bytes[1]/nLoops + " bytes per proof");
+
+        int n = 1000000;
+        conversions(n, false);   // Warm up
+        conversions(n, true);
+        System.out.println("sink: " + sink);
+    }
+
+    /**
+     * Proves and verifies one random vector and adds the bytes allocated by
+     * the proof construction to <code>bytes[0]</code> and those allocated by
+     * the server verification to <code>bytes[1]</code>.
+     */
+    private static void proveAndVerify(int m, long F, int l, int N,
+                                       NativeBigInteger g, NativeBigInteger h,
+                                       long L, long[] bytes) {
+        int[][] c = ChallengeGenerator.random(N, m).expandAll();
+        long[] data = Util.randVector(m, F, (double)L*0.5);
+        UserVector2 uv = new UserVector2(data, F, l, g, h);
+        uv.generateShares();
+        uv.setChecksumCoefficientVectors(c);
+
+        long start = allocated();
+        UserVector2.L2NormBoundProof2 serverProof =
+            (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(true);
+        bytes[0] += allocated() - start;
+        UserVector2.L2NormBoundProof2 peerProof =
+            (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(false);
+
+        UserVector2 peerUV = new UserVector2(m, F, l, g, h);
+        peerUV.setV(uv.getV());
+        peerUV.setChecksumCoefficientVectors(c);
+        if(!peerUV.verify2(peerProof))
+            throw new RuntimeException("Peer verification failed.");
+
+        UserVector2 serverUV = new UserVector2(m, F, l, g, h);
+        serverUV.setU(uv.getU());
+        serverUV.setChecksumCoefficientVectors(c);
+        start = allocated();
+        boolean ok = serverUV.serverVerify(serverProof, peerUV.getY());
+        bytes[1] += allocated() - start;
+        if(!ok)
+            throw new RuntimeException("Server verification failed.");
+    }
+
+    /**
+     * The conversion of a long the proof loops used to do. Kept apart so
+     * that only it is exempt from the removal warning.
+     */
+    @SuppressWarnings("removal")
+    private static BigInteger oldValueOf(long i) {
+        return new BigInteger(new Long(i).toString());
+    }
+
+    /**
+     * Compares the conversions the proof loops used to do with the ones they
+     * do now, n times each. Prints the results if <code>report</code> is
+     * set.
+     */
+    private static void conversions(int n, boolean report) {
+        long start = allocated();
+        for(int i = 0; i < n; i++)
+            sink += oldValueOf(i).bitLength();
+        long oldLong = allocated() - start;
+
+        start = allocated();
+        for(int i = 0; i < n; i++)
+            sink += BigInteger.valueOf(i).bitLength();
+        long newLong = allocated() - start;
+
+        start = allocated();
+        for(int i = 0; i < n; i++)
+            sink += BigInteger.ZERO.setBit(i & 63).bitLength();
+        long oldPow = allocated() - start;
+
+        start = allocated();
+        for(int i = 0; i < n; i++)
+            sink += Util.powerOfTwo(i & 63).bitLength();
+        long newPow = allocated() - start;
+
+        BigInteger cs = BigInteger.valueOf(123456789L);
+        boolean saved = debug;
+        debug = false;
+        start = allocated();
+        for(int i = 0; i < n; i++)
+            DEBUG("checksum: " + cs);
+        long oldDebug = allocated() - start;
+
+        start = allocated();
+        for(int i = 0; i < n; i++) {
+            if(debug)
+                DEBUG("checksum: " + cs);
+        }
+        long newDebug = allocated() - start;
+        debug = saved;
+
+        if(!report)
+            return;
+        System.out.println("long to BigInteger: " + (double)oldLong/n
+                           + " -> " + (double)newLong/n + " bytes per call");
+        System.out.println("2^i exponent:       " + (double)oldPow/n
+                           + " -> " + (double)newPow/n + " bytes per call");
+        System.out.println("debug message:      " + (double)oldDebug/n
+                           + " -> " + (double)newDebug/n + " bytes per call");
+    }
+}
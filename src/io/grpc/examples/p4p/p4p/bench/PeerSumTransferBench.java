@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.bench;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import io.grpc.examples.p4p.p4p.net.ClientSession;
+import io.grpc.examples.p4p.p4p.net.FrameDecoder;
+import io.grpc.examples.p4p.p4p.net.LengthPrefixedDecoder;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.SessionCodec;
+import io.grpc.examples.p4p.p4p.net.SharedMemoryLink;
+
+/**
+ * Compares the time to hand the peer's sum to a server on the same host
+ * over loopback TCP, through a {@link NioServer}, and over a
+ * {@link SharedMemoryLink}. Each handoff is a PEER_SUM frame and its
+ * acknowledgement.
+ */
+
+public class PeerSumTransferBench {
+    private static final int MAX_FRAME_SIZE = 1<<26;
+    private static long sink = 0;
+
+    public static void main(String[] args) throws Exception {
+        int nLoops = 100;
+        int[] dims = {1000, 10000, 100000, 1000000};
+
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.equals("-l")) {
+                try {
+                    nLoops = Integer.parseInt(args[i++]);
+                }
+                catch (NumberFormatException e) {
+                    nLoops = 100;
+                }
+            }
+        }
+
+        NioServer tcp = new NioServer("PeerSumTransferBench", 0, new NioServer.Handler() {
+            public FrameDecoder newDecoder() {
+                return new LengthPrefixedDecoder(4, MAX_FRAME_SIZE);
+            }
+
+            public void frameReceived(NioServer.Connection c, Object frame)
+                throws IOException {
+                ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+                take((ByteBuffer)frame, ack);
+                ack.flip();
+                c.write(ack);
+            }
+
+            public void closed(NioServer.Connection c) {
+            }
+        });
+        tcp.setMaxFrameSize(MAX_FRAME_SIZE);
+        tcp.start();
+
+        File dir = Files.createTempDirectory("p4p-link").toFile();
+        final SharedMemoryLink endpoint = SharedMemoryLink.create(dir, 4<<20);
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    serve(endpoint);
+                }
+                catch(IOException e) {
+                    System.out.println("Link failed: " + e);
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        ClientSession overTcp = new ClientSession("127.0.0.1", tcp.getPort(), null);
+        ClientSession overShm = ClientSession.open("127.0.0.1", tcp.getPort(), dir, null);
+        for(int d = 0; d < dims.length; d++) {
+            long[] sum = new long[dims[d]];
+            for(int i = 0; i < sum.length; i++)
+                sum[i] = i;
+            System.out.println("m = " + sum.length);
+            report("tcp:", sum.length, run(overTcp, sum, nLoops), nLoops);
+            report("shm:", sum.length, run(overShm, sum, nLoops), nLoops);
+        }
+        overTcp.close();
+        overShm.close();
+        tcp.close();
+        endpoint.close();
+        new File(dir, SharedMemoryLink.UP).delete();
+        new File(dir, SharedMemoryLink.DOWN).delete();
+        dir.delete();
+        System.out.println("sink: " + sink);
+    }
+
+    /**
+     * @return the time of the second half of the handoffs, in ns
+     */
+    private static long run(ClientSession session, long[] sum, int nLoops)
+        throws IOException, InterruptedException {
+        long time = 0;
+        for(int k = 0; k < 2*nLoops; k++) {
+            long t0 = System.nanoTime();
+            session.sendPeerSum(k, sum);
+            if(!session.awaitAcknowledged(10000))
+                throw new IOException("No acknowledgement from " + session);
+            if(k >= nLoops)         // The first half warms up
+                time += System.nanoTime() - t0;
+        }
+        return time;
+    }
+
+    private static void serve(SharedMemoryLink link) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(link.getInput().getInputStream(), 64*1024));
+        OutputStream out = link.getOutput().getOutputStream();
+        ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+        while(true) {
+            ByteBuffer b;
+            try {
+                b = SessionCodec.readFrame(in, MAX_FRAME_SIZE);
+            }
+            catch(EOFException e) {
+                return;
+            }
+            ack.clear();
+            take(b, ack);
+            out.write(ack.array(), 0, ack.position());
+        }
+    }
+
+    private static void take(ByteBuffer b, ByteBuffer ack) throws IOException {
+        if(SessionCodec.getType(b) != SessionCodec.PEER_SUM)
+            throw new IOException("Not a peer sum.");
+        int m = b.getInt(b.position() + 4);
+        SessionCodec.PeerSum sum = SessionCodec.decodePeerSum(b, m);
+        sink += sum.getSum()[m-1];
+        SessionCodec.encodeAck(ack, SessionCodec.PEER_SUM, -1, sum.getEpoch(),
+                               SessionCodec.ACCEPTED);
+    }
+
+    private static void report(String name, int m, long time, int nLoops) {
+        double ns = (double)time/nLoops;
+        System.out.println("  " + name + " " + String.format("%.1f", ns/1000) + " us per handoff, "
+                           + String.format("%.0f", 8.0*m/ns*1000) + " MB/s");
+    }
+}
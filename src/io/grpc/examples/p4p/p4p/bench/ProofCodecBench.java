@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+
+package io.grpc.examples.p4p.p4p.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+import io.grpc.examples.p4p.p4p.net.ProofCodec;
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+import io.grpc.examples.p4p.p4p.util.Util;
+
+/**
+ * Compares the size and the encoding and decoding time of a server proof
+ * sent with <code>ObjectOutputStream</code>, as P4PSim used to, with the
+ * {@link ProofCodec} frames, in each range and square proof mode.
+ * <p>
+ * Note that the serialized proof is not a usable proof: the commitments,
+ * challenges and responses of the sub-proofs are fields of
+ * <code>Proof</code>, whose superclass is not serializable, so they are
+ * dropped. The bench reports whether the decoded proof verifies.
+ */
+
+public class ProofCodecBench extends P4PParameters {
+    private static long sink = 0;
+
+    public static void main(String[] args) throws Exception {
+        int nLoops = 20;
+        int m = 1000;
+        int N = 50;
+        int l = 40;
+        int k = 512;
+
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            try {
+                if(arg.equals("-l"))
+                    nLoops = Integer.parseInt(args[i++]);
+                else if(arg.equals("-m"))
+                    m = Integer.parseInt(args[i++]);
+                else if(arg.equals("-N"))
+                    N = Integer.parseInt(args[i++]);
+                else if(arg.equals("-k"))
+                    k = Integer.parseInt(args[i++]);
+            }
+            catch (NumberFormatException e) {
+                System.out.println("Bad value for " + arg + ". Ignored.");
+            }
+        }
+
+        initialize(k, false);
+        SecureRandom rand = new SecureRandom();
+        long F = BigInteger.probablePrime(62, rand).longValue();
+        NativeBigInteger[] bi = getGenerators(2);
+        long L = ((long)2) << l - 1;
+        int[][] c = new int[N][m];
+        for(int i = 0; i < N; i++)
+            for(int j = 0; j < m; j++)
+                c[i][j] = rand.nextBoolean() ? 1 : -1;
+
+        for(int mode = 0; mode < 4; mode++) {
+            boolean innerProduct = (mode & 1) != 0;
+            boolean aggregated = (mode & 2) != 0;
+            long[] data = Util.randVector(m, F, (double)L/Math.sqrt(m)/2);
+            UserVector2 uv = new UserVector2(data, F, l, bi[0], bi[1]);
+            uv.setRangeProofMode(innerProduct ? UserVector2.RangeProofMode.INNER_PRODUCT
+                                 : UserVector2.RangeProofMode.BIT_COMMITMENTS);
+            uv.setAggregateSquareProof(aggregated);
+            uv.generateShares();
+            uv.setChecksumCoefficientVectors(c);
+            UserVector2.L2NormBoundProof2 peerProof =
+                (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(false);
+            UserVector2.L2NormBoundProof2 serverProof =
+                (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(true);
+
+            UserVector2 pv = new UserVector2(m, F, l, bi[0], bi[1]);
+            pv.setV(uv.getV());
+            pv.setChecksumCoefficientVectors(c);
+            pv.verify2(peerProof);
+            UserVector2 sv = new UserVector2(m, F, l, bi[0], bi[1]);
+            sv.setRangeProofMode(uv.getRangeProofMode());
+            sv.setAggregateSquareProof(aggregated);
+            sv.setU(uv.getU());
+            sv.setChecksumCoefficientVectors(c);
+
+            System.out.println("m = " + m + ", N = " + N + ", "
+                               + (innerProduct ? "inner product" : "bit") + " range proof, "
+                               + (aggregated ? "aggregated" : "separate") + " square proofs");
+            serialized(serverProof, sv, pv.getY(), nLoops);
+            binary(serverProof, sv, pv.getY(), nLoops);
+        }
+        System.out.println("sink: " + sink);
+    }
+
+    private static void serialized(UserVector2.L2NormBoundProof2 proof, UserVector2 sv,
+                                   BigInteger[] Y, int nLoops)
+        throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long encode = 0;
+        long decode = 0;
+        Object decoded = null;
+        for(int i = 0; i < 2*nLoops; i++) {
+            long t0 = System.nanoTime();
+            bytes.reset();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(proof);
+            out.flush();
+            long t1 = System.nanoTime();
+            decoded = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))
+                .readObject();
+            long t2 = System.nanoTime();
+            sink += bytes.size();
+            if(i >= nLoops) {       // The first half warms up
+                encode += t1 - t0;
+                decode += t2 - t1;
+            }
+        }
+        boolean verified;
+        try {
+            verified = sv.serverVerify((UserVector2.L2NormBoundProof2)decoded, Y);
+        }
+        catch(RuntimeException e) {
+            verified = false;
+        }
+        report("serialized:", bytes.size(), encode, decode, nLoops, verified);
+    }
+
+    private static void binary(UserVector2.L2NormBoundProof2 proof, UserVector2 sv,
+                               BigInteger[] Y, int nLoops) throws IOException {
+        ProofCodec codec = new ProofCodec(sv);
+        ByteBuffer b = ByteBuffer.allocate(ProofCodec.encodedSize(proof));
+        long encode = 0;
+        long decode = 0;
+        ProofCodec.UserProof decoded = null;
+        for(int i = 0; i < 2*nLoops; i++) {
+            long t0 = System.nanoTime();
+            b.clear();
+            ProofCodec.encode(b, 0, 0, proof);
+            long t1 = System.nanoTime();
+            b.flip();
+            b.position(4);
+            decoded = codec.decode(b);
+            long t2 = System.nanoTime();
+            sink += decoded.getProof().getChecksums()[0];
+            if(i >= nLoops) {
+                encode += t1 - t0;
+                decode += t2 - t1;
+            }
+        }
+        report("binary:    ", b.limit(), encode, decode, nLoops,
+               sv.serverVerify(decoded.getProof(), Y));
+    }
+
+    private static void report(String name, int size, long encode, long decode,
+                               int nLoops, boolean verified) {
+        System.out.println("  " + name + " " + size + " bytes, encode "
+                           + String.format("%.1f", (double)encode/nLoops/1000) + " us, decode "
+                           + String.format("%.1f", (double)decode/nLoops/1000) + " us, verifies: "
+                           + verified);
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import io.grpc.examples.p4p.p4p.util.Util;
+import io.grpc.examples.p4p.p4p.net.ShareCodec;
+
+/**
+ * Compares the size and the encoding and parsing time of a share sent as
+ * <code>writeUTF(Arrays.toString(share))</code>, as P4PSim used to, with
+ * the {@link ShareCodec} frames.
+ */
+
+public class ShareCodecBench {
+    private static long sink = 0;
+
+    public static void main(String[] args) throws IOException {
+        int nLoops = 200;
+        int[] dims = {1000, 2000, 10000, 100000};
+        int[] fieldBits = {62, 32};
+
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.equals("-l")) {
+                try {
+                    nLoops = Integer.parseInt(args[i++]);
+                }
+                catch (NumberFormatException e) {
+                    nLoops = 200;
+                }
+            }
+        }
+
+        SecureRandom rand = new SecureRandom();
+        for(int b = 0; b < fieldBits.length; b++) {
+            long F = BigInteger.probablePrime(fieldBits[b], rand).longValue();
+            for(int d = 0; d < dims.length; d++) {
+                int m = dims[d];
+                long[] share = Util.randVector(m, F, 0);
+                System.out.println("F: " + fieldBits[b] + " bits, m = " + m);
+                text(share, nLoops);
+                binary(share, F, ShareCodec.Encoding.PACKED, nLoops);
+                binary(share, F, ShareCodec.Encoding.VARINT, nLoops);
+            }
+        }
+        System.out.println("sink: " + sink);
+    }
+
+    private static void text(long[] share, int nLoops) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(Arrays.toString(share));
+        }
+        catch(UTFDataFormatException e) {
+            System.out.println("  text:   too long for writeUTF ("
+                               + Arrays.toString(share).length() + " chars)");
+            return;
+        }
+        byte[] frame = bytes.toByteArray();
+
+        long encode = 0;
+        long decode = 0;
+        for(int k = 0; k < 2*nLoops; k++) {
+            long t0 = System.nanoTime();
+            bytes.reset();
+            new DataOutputStream(bytes).writeUTF(Arrays.toString(share));
+            long t1 = System.nanoTime();
+            String s = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+            String[] parts = s.substring(1, s.length()-1).split(", ");
+            long[] v = new long[parts.length];
+            for(int i = 0; i < parts.length; i++)
+                v[i] = Long.parseLong(parts[i]);
+            long t2 = System.nanoTime();
+            sink += v[v.length-1] + bytes.size();
+            if(k >= nLoops) {       // The first half warms up
+                encode += t1 - t0;
+                decode += t2 - t1;
+            }
+        }
+        report("text:  ", frame.length, share.length, encode, decode, nLoops);
+    }
+
+    private static void binary(long[] share, long F, ShareCodec.Encoding encoding,
+                               int nLoops) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(ShareCodec.maxFrameSize(share.length, F, encoding));
+        long encode = 0;
+        long decode = 0;
+        for(int k = 0; k < 2*nLoops; k++) {
+            long t0 = System.nanoTime();
+            b.clear();
+            ShareCodec.encode(b, 0, 0, F, share, encoding);
+            long t1 = System.nanoTime();
+            b.flip();
+            b.position(4);
+            ShareCodec.Share s = ShareCodec.decode(b, share.length);
+            long t2 = System.nanoTime();
+            sink += s.getVector()[share.length-1];
+            if(k >= nLoops) {
+                encode += t1 - t0;
+                decode += t2 - t1;
+            }
+        }
+        if(!Arrays.equals(share, ShareCodec.decode(b.position(4), share.length).getVector()))
+            throw new RuntimeException("Share not decoded correctly.");
+        report(encoding == ShareCodec.Encoding.PACKED ? "packed:" : "varint:",
+               b.limit(), share.length, encode, decode, nLoops);
+    }
+
+    private static void report(String name, int size, int m, long encode, long decode,
+                               int nLoops) {
+        System.out.println("  " + name + " " + size + " bytes ("
+                           + String.format("%.2f", (double)size/m) + " per element), encode "
+                           + String.format("%.1f", (double)encode/nLoops/m) + " ns, parse "
+                           + String.format("%.1f", (double)decode/nLoops/m) + " ns per element");
+    }
+}
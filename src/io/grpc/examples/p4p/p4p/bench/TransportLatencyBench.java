@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.bench;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import io.grpc.examples.p4p.p4p.net.FrameDecoder;
+import io.grpc.examples.p4p.p4p.net.LengthPrefixedDecoder;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.Transport;
+
+/**
+ * Compares the round trip time of a message to a {@link NioServer} on the
+ * same host over loopback TCP and over a Unix domain socket. The server
+ * echoes length-prefixed frames; the client sends one and waits for it
+ * before sending the next.
+ */
+
+public class TransportLatencyBench {
+    private static long sink = 0;
+
+    public static void main(String[] args) throws Exception {
+        int nLoops = 20000;
+        int[] sizes = {16, 256, 4096, 65536};
+
+        for (int i = 0; i < args.length; ) {
+            String arg = args[i++];
+            if(arg.equals("-l")) {
+                try {
+                    nLoops = Integer.parseInt(args[i++]);
+                }
+                catch (NumberFormatException e) {
+                    nLoops = 20000;
+                }
+            }
+        }
+
+        File dir = Files.createTempDirectory("p4p-uds").toFile();
+        Transport[] transports = {
+            Transport.tcp("127.0.0.1", 0),
+            Transport.unix(new File(dir, "echo.sock").toPath(), 0)
+        };
+        for(int t = 0; t < transports.length; t++) {
+            NioServer server = new NioServer("TransportLatencyBench", 0, new NioServer.Handler() {
+                public FrameDecoder newDecoder() {
+                    return new LengthPrefixedDecoder(4, 1<<20);
+                }
+
+                public void frameReceived(NioServer.Connection c, Object frame) {
+                    ByteBuffer f = (ByteBuffer)frame;
+                    ByteBuffer b = ByteBuffer.allocate(4 + f.remaining());
+                    b.putInt(f.remaining());
+                    b.put(f);
+                    b.flip();
+                    c.write(b);
+                }
+
+                public void closed(NioServer.Connection c) {
+                }
+            });
+            server.setThreads(1);
+            server.setTransport(transports[t]);
+            server.start();
+            Transport to = transports[t].isUnix() ? transports[t]
+                : Transport.tcp("127.0.0.1", server.getPort());
+
+            System.out.println(to.isUnix() ? "unix domain socket:" : "tcp loopback:");
+            Transport.Connection c = to.connect();
+            for(int s = 0; s < sizes.length; s++)
+                run(c, sizes[s], nLoops);
+            c.close();
+            server.close();
+            server.join();
+        }
+        dir.delete();
+        System.out.println("sink: " + sink);
+    }
+
+    private static void run(Transport.Connection c, int size, int nLoops)
+        throws IOException {
+        OutputStream out = c.getOutputStream();
+        DataInputStream in = new DataInputStream(c.getInputStream());
+        ByteBuffer frame = ByteBuffer.allocate(4 + size);
+        frame.putInt(size);
+        byte[] msg = frame.array();
+        byte[] echo = new byte[size];
+        long[] times = new long[nLoops];
+        for(int k = 0; k < 2*nLoops; k++) {
+            long t0 = System.nanoTime();
+            out.write(msg);
+            if(in.readInt() != size)
+                throw new IOException("Bad echo.");
+            in.readFully(echo);
+            long t1 = System.nanoTime();
+            sink += echo[size-1];
+            if(k >= nLoops)         // The first half warms up
+                times[k - nLoops] = t1 - t0;
+        }
+        Arrays.sort(times);
+        long total = 0;
+        for(int i = 0; i < nLoops; i++)
+            total += times[i];
+        System.out.println("  " + size + " bytes: mean "
+                           + String.format("%.1f", (double)total/nLoops/1000) + " us, median "
+                           + String.format("%.1f", times[nLoops/2]/1000.0) + " us, p99 "
+                           + String.format("%.1f", times[nLoops*99/100]/1000.0) + " us");
+    }
+}
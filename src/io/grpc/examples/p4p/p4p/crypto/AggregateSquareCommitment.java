@@ -0,0 +1,374 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.crypto;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+
+import io.grpc.examples.p4p.p4p.util.Util;
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+
+/**
+ * Given N numbers a_k, produces the commitments A_k = C(a_k), B_k = C(a_k^2)
+ * and a single ZKP that every B_k contains the square of the number in A_k.
+ * It is the {@link SquareCommitment} proof run for all k at once with one
+ * challenge:
+ * <p>
+ * <ol>
+ *  <li>P computes
+ *   <ul>
+ *   <li> A_k = g^a_k*h^sa_k, B_k = g^(a_k^2)*h^sb_k
+ *   <li> x_k, ra_k, rb <- rand{0, 1, ... q-1}
+ *   <li> Ca_k = g^x_k*h^ra_k
+ *   <li> t = H(A, B, Ca), e_k = t^k
+ *   <li> Cb = prod(A_k^(e_k*x_k))*h^rb
+ *   <li> c = H(t, Cb)
+ *   </ul>
+ *  </li>
+ *  <li>P sends: A_k, B_k, Ca_k, Cb, c, v_k = c*a_k + x_k, za_k = c*sa_k + ra_k
+ *      and zb = c*sum(e_k*(sb_k - a_k*sa_k)) + rb, all mod q.
+ *  </li>
+ *  <li>V checks:
+ *    <ul>
+ *    <li>g^v_k*h^za_k = A_k^c*Ca_k for all k
+ *    <li>prod(A_k^(e_k*v_k))*h^zb = prod(B_k^(e_k*c))*Cb
+ *    </ul>
+ *  </li>
+ *</ol>
+ * <p>
+ * The first check opens every A_k as before. The square relations are folded
+ * into the second check with the weights e_k, which are fixed by the hash
+ * only after all the B_k are. If some B_k does not contain a_k^2, the check
+ * can only pass if a nonzero polynomial of degree N-1 vanishes at t, i.e.
+ * with probability at most N/q.
+ * <p>
+ * The a_k must still be opened one by one, so v_k, za_k and Ca_k stay per
+ * commitment. What is saved are the N-1 extra challenges, Cb's and zb's: the
+ * proof has 5N+3 numbers instead of 8N. The verifier folds all N+1 checks
+ * into one multi-exponentiation over 3N+3 bases with random weights, N of
+ * which have short exponents.
+ */
+
+public class AggregateSquareCommitment extends Commitment implements Serializable {
+    private static final long serialVersionUID = 6529685098267757690L;
+    private static final int WEIGHT_BITS = 128;
+    // The size of the random weights the verifier folds the checks with
+    private BigInteger[] a = null;
+    private BigInteger[] A = null;
+    private BigInteger[] B = null;
+    private BigInteger[] sa = null;
+    private BigInteger[] sb = null;
+
+    public AggregateSquareCommitment(NativeBigInteger g, NativeBigInteger h) {
+        super(g, h);
+    }
+
+    /**
+     * Commits to the numbers <code>vals</code> using the given randomness,
+     * and to their squares using fresh randomness.
+     *
+     * @param  vals the numbers to commit to
+     * @param  rs   the randomness to be used to commit to <code>vals</code>
+     * @return the commitments A_k to the numbers. The commitments to the
+     *         squares can be retrieved by {@link #getB()}.
+     */
+    public BigInteger[] commit(BigInteger[] vals, BigInteger[] rs) {
+        if(vals.length != rs.length)
+            throw new IllegalArgumentException("Need one randomness per number.");
+
+        int n = vals.length;
+        a = new BigInteger[n];
+        A = new BigInteger[n];
+        B = new BigInteger[n];
+        sa = new BigInteger[n];
+        sb = new BigInteger[n];
+        for(int k = 0; k < n; k++) {
+            a[k] = vals[k].mod(q);
+            sa[k] = rs[k].mod(q);
+            A[k] = computeCommitment(a[k], sa[k]);
+            sb[k] = Util.randomBigInteger(q);
+            B[k] = computeCommitment(a[k].multiply(a[k]).mod(q), sb[k]);
+        }
+        return A;
+    }
+
+    /**
+     * Gets the commitments
+     */
+    public BigInteger[] getA() {
+        return A;
+    }
+
+    public BigInteger[] getB() {
+        return B;
+    }
+
+    /**
+     * Gets the randomness
+     */
+    public BigInteger[] getSa() {
+        return sa;
+    }
+
+    public BigInteger[] getSb() {
+        return sb;
+    }
+
+    /**
+     * The Fiat-Shamir challenge for the given transcript. A zero challenge
+     * is mapped to 1.
+     */
+    private static BigInteger challenge(BigInteger[] transcript) {
+        try {
+            BigInteger e = Util.secureHash(transcript, q);
+            return e.signum() == 0 ? BigInteger.ONE : e;
+        }
+        catch(GeneralSecurityException e) {
+            throw new RuntimeException("Can't compute the challenge: " + e);
+        }
+    }
+
+    /**
+     * @return t = H(g, h, A, B, Ca), from which the weights e_k = t^k are
+     *         derived.
+     */
+    private BigInteger weightSeed(BigInteger[] commitment, int n) {
+        BigInteger[] msg = new BigInteger[3*n+2];
+        msg[0] = g;
+        msg[1] = h;
+        System.arraycopy(commitment, 0, msg, 2, 3*n);
+        return challenge(msg);
+    }
+
+    /**
+     * Constructs the aggregated square proof.
+     */
+    public Proof getProof() {
+        AggregateSquareCommitmentProof proof = new AggregateSquareCommitmentProof();
+        if(A == null || B == null)
+            throw new RuntimeException("Must commit to the numbers before"
+                    + " constructing the proof!");
+
+        int n = A.length;
+        BigInteger[] commitment = new BigInteger[3*n+1];
+        BigInteger[] x = new BigInteger[n];
+        BigInteger[] ra = new BigInteger[n];
+        for(int k = 0; k < n; k++) {
+            x[k] = Util.randomBigInteger(q);
+            ra[k] = Util.randomBigInteger(q);
+            commitment[k] = A[k];
+            commitment[n+k] = B[k];
+            commitment[2*n+k] = powG(x[k]).multiply(powH(ra[k])).mod(p); // Ca_k
+        }
+
+        BigInteger t = weightSeed(commitment, n);
+        BigInteger rb = Util.randomBigInteger(q);
+        BigInteger[] bases = new BigInteger[n+1];
+        BigInteger[] exps = new BigInteger[n+1];
+        BigInteger e = BigInteger.ONE;
+        BigInteger sum = BigInteger.ZERO;    // sum(e_k*(sb_k - a_k*sa_k))
+        for(int k = 0; k < n; k++) {
+            bases[k] = A[k];
+            exps[k] = e.multiply(x[k]).mod(q);
+            sum = sum.add(e.multiply(sb[k].subtract(a[k].multiply(sa[k]))))
+                    .mod(q);
+            e = e.multiply(t).mod(q);
+        }
+        bases[n] = h;
+        exps[n] = rb;
+        commitment[3*n] = Util.multiModPow(bases, exps, p);          // Cb
+
+        BigInteger c = challenge(new BigInteger[] {t, commitment[3*n]});
+
+        BigInteger[] response = new BigInteger[2*n+1];
+        for(int k = 0; k < n; k++) {
+            response[k] = c.multiply(a[k]).add(x[k]).mod(q);          // v_k
+            response[n+k] = c.multiply(sa[k]).add(ra[k]).mod(q);      // za_k
+        }
+        response[2*n] = c.multiply(sum).add(rb).mod(q);               // zb
+
+        proof.commitment = commitment;
+        proof.challenge = new BigInteger[] {c};
+        proof.response = response;
+        return proof;
+    }
+
+
+    /**
+     * The aggregated proof. The commitment holds A_0..A_(N-1), B_0..B_(N-1),
+     * Ca_0..Ca_(N-1) and Cb. The response holds v_0..v_(N-1),
+     * za_0..za_(N-1) and zb.
+     */
+    public static class AggregateSquareCommitmentProof extends Proof
+            implements Serializable {
+        private static final long serialVersionUID = 6529685098267757690L;
+        public AggregateSquareCommitmentProof() { super(); }
+
+        /**
+         * Rebuilds a proof received from a prover.
+         */
+        public AggregateSquareCommitmentProof(BigInteger[] commitment,
+                                              BigInteger[] challenge,
+                                              BigInteger[] response) {
+            super(commitment, challenge, response);
+        }
+
+        /**
+         * The proof is built by {@link AggregateSquareCommitment#getProof()}.
+         */
+        public void construct() {
+        }
+
+        /**
+         * @return N, the number of squares proved, or -1 if the proof is
+         *         malformed.
+         */
+        public int getN() {
+            if(commitment == null || commitment.length % 3 != 1)
+                return -1;
+            return commitment.length/3;
+        }
+
+        /**
+         * @return A_k, the commitment to the k-th number
+         */
+        public BigInteger getA(int k) {
+            return commitment[k];
+        }
+
+        /**
+         * @return B_k, the commitment to the square of the k-th number
+         */
+        public BigInteger getB(int k) {
+            return commitment[getN()+k];
+        }
+    }
+
+
+    /**
+     * @return true if x is in G_q. The quadratic residues mod a safe prime
+     *         are exactly G_q so the Jacobi symbol decides it.
+     */
+    private static boolean inGroup(BigInteger x) {
+        return x != null && x.signum() > 0 && x.compareTo(p) < 0
+                && Util.jacobi(x, p) == 1;
+    }
+
+    /**
+     * @return true if x is in Z_q
+     */
+    private static boolean inField(BigInteger x) {
+        return x != null && x.signum() >= 0 && x.compareTo(q) < 0;
+    }
+
+    /**
+     * Verifies the given proof using our own parameters.
+     * <p>
+     * The random weights of the folded checks only work if all the
+     * commitments are in G_q, which is checked first.
+     */
+    public boolean verify(Proof proof) {
+        if(!(proof instanceof AggregateSquareCommitmentProof))
+            return false;
+        BigInteger[] cm = proof.getCommitment();
+        BigInteger[] s = proof.getChallenge();
+        BigInteger[] r = proof.getResponse();
+        int n = ((AggregateSquareCommitmentProof)proof).getN();
+
+        if(n < 0 || s == null || s.length != 1 || r == null
+                || r.length != 2*n+1) {
+            System.out.println("Aggregated square proof has the wrong shape.");
+            return false;
+        }
+        for(int i = 0; i < cm.length; i++) {
+            if(!inGroup(cm[i])) {
+                System.out.println("Aggregated square proof commitment " + i
+                        + " is not in G_q.");
+                return false;
+            }
+        }
+        for(int i = 0; i < r.length; i++) {
+            if(!inField(r[i])) {
+                System.out.println("Aggregated square proof response " + i
+                        + " is not in Z_q.");
+                return false;
+            }
+        }
+
+        BigInteger t = weightSeed(cm, n);
+        BigInteger c = s[0];
+        if(!c.equals(challenge(new BigInteger[] {t, cm[3*n]}))) {
+            System.out.println("Challenge is not equal to the hash!");
+            return false;
+        }
+
+        // With random weights w_k the product
+        //   prod (A_k^c Ca_k g^-v_k h^-za_k)^w_k
+        //   * prod B_k^(e_k*c) A_k^(-e_k*v_k) Cb h^-zb
+        // is 1 iff all the checks hold, except with probability 2^-128.
+        // All the elements are in G_q so the exponents can be taken mod q.
+        // The sides are arranged so that the Ca_k get the short w_k as
+        // exponents.
+        BigInteger[] bases = new BigInteger[3*n+3];
+        BigInteger[] exps = new BigInteger[3*n+3];
+        BigInteger gExp = BigInteger.ZERO;
+        BigInteger hExp = r[2*n];
+        BigInteger e = BigInteger.ONE;
+        for(int k = 0; k < n; k++) {
+            BigInteger w = new BigInteger(WEIGHT_BITS, Util.rand);
+            BigInteger v = r[k];
+            gExp = gExp.add(w.multiply(v)).mod(q);
+            hExp = hExp.add(w.multiply(r[n+k])).mod(q);
+            bases[k] = cm[k];                                         // A_k
+            exps[k] = w.multiply(c).subtract(e.multiply(v)).mod(q);
+            bases[n+k] = cm[n+k];                                     // B_k
+            exps[n+k] = e.multiply(c).mod(q);
+            bases[2*n+k] = cm[2*n+k];                                 // Ca_k
+            exps[2*n+k] = w;
+            e = e.multiply(t).mod(q);
+        }
+        bases[3*n] = cm[3*n];                                         // Cb
+        exps[3*n] = BigInteger.ONE;
+        bases[3*n+1] = g;
+        exps[3*n+1] = gExp.negate().mod(q);
+        bases[3*n+2] = h;
+        exps[3*n+2] = hExp.negate().mod(q);
+
+        if(!Util.multiModPow(bases, exps, p).equals(BigInteger.ONE)) {
+            System.out.println("Aggregated square proof verification failed.");
+            return false;
+        }
+        return true;
+    }
+}
@@ -77,7 +77,7 @@ public class BitCommitment extends Commitment implements Serializable{
             throw new IllegalArgumentException("BitCommitment.commit can only"
                     + "be invoked with 0 or 1!");
 
-        return super.commit(new BigInteger(String.valueOf(val)));
+        return super.commit(BigInteger.valueOf(val));
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -87,7 +87,7 @@ public class BitCommitment extends Commitment implements Serializable{
             throw new IllegalArgumentException("BitCommitment.commit can only"
                     + "be invoked with 0 or 1!");
 
-        return super.commit(new BigInteger(String.valueOf(val)), r);
+        return super.commit(BigInteger.valueOf(val), r);
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -125,9 +125,24 @@ public class BitCommitment extends Commitment implements Serializable{
         return proof;
     }
 
+    /**
+     * Rebuilds a proof received from a prover, e.g. one read off the wire.
+     * The proof belongs to this commitment, not to the prover's, so it
+     * carries none of the prover's secrets.
+     */
+    public BitCommitmentProof newProof(BigInteger[] commitment,
+                                       BigInteger[] challenge,
+                                       BigInteger[] response) {
+        BitCommitmentProof proof = new BitCommitmentProof();
+        proof.commitment = commitment;
+        proof.challenge = challenge;
+        proof.response = response;
+        return proof;
+    }
+
     // f(r) = h^r. The onw way group homomorphism
     public BigInteger f(BigInteger i){
-        return h.modPow(i, P4PParameters.p);
+        return powH(i);
     }
 
 
@@ -181,7 +196,7 @@ public class BitCommitment extends Commitment implements Serializable{
                  */
                 BigInteger t = (commitment[0].modInverse(P4PParameters.p)).modPow(e1, P4PParameters.p);
                 // c^ -e1 
-                t = t.multiply(g.modPow(e1, P4PParameters.p));
+                t = t.multiply(powG(e1));
                 m1 = (t.multiply(f(z1))).mod(P4PParameters.p); // f(z1) * c ^ (-e1) * g ^ e1
 
                 commitment[1] = m0;
@@ -206,7 +221,8 @@ public class BitCommitment extends Commitment implements Serializable{
 
                 // calculate m0, m1:
                 m1 = f(v);
-                m0 = f(z0).multiply((commitment[0].modInverse(P4PParameters.p)).modPow(e0, P4PParameters.p));
+                m0 = f(z0).multiply((commitment[0].modInverse(P4PParameters.p)).modPow(e0, P4PParameters.p))
+                    .mod(P4PParameters.p);
                 // f(z0) * c ^ (-e0)
 
                 commitment[1] = m0;
@@ -61,13 +61,29 @@ public class Commitment extends P4PParameters implements Serializable {
      */
 
     public void sanityCheck() {
+        Object[] last = checked;
+        if(last != null && p.equals(last[0]) && g.equals(last[1])
+                && h.equals(last[2]))
+            return;     // Already checked these
+
         if(!g.modPow(q, p).equals(BigInteger.ONE))
             throw new IllegalArgumentException("g does not have the correct order!");
 
         if(!h.modPow(q, p).equals(BigInteger.ONE))
             throw new IllegalArgumentException("h does not have the correct order!");
+
+        checked = new Object[] {p, g, h};
     }
 
+    private static volatile Object[] checked = null;
+    // The last p, g and h that passed the sanity check. A prover creates
+    // several commitments per checksum, all with the same parameters, and
+    // each check costs two exponentiations.
+
+    private transient FixedBaseTable gTable = null;
+    private transient FixedBaseTable hTable = null;
+    // Precomputed powers of g and h, if any have been registered
+
     // The committer:
 
     /**
@@ -86,6 +102,22 @@ public class Commitment extends P4PParameters implements Serializable {
         this.g = g;
         this.h = h;
         sanityCheck();
+        gTable = FixedBaseTable.lookup(g);
+        hTable = FixedBaseTable.lookup(h);
+    }
+
+    /**
+     * @return g^e mod p
+     */
+    protected final BigInteger powG(BigInteger e) {
+        return gTable != null ? gTable.pow(e) : g.modPow(e, p);
+    }
+
+    /**
+     * @return h^e mod p
+     */
+    protected final BigInteger powH(BigInteger e) {
+        return hTable != null ? hTable.pow(e) : h.modPow(e, p);
     }
 
     /**
@@ -97,9 +129,9 @@ public class Commitment extends P4PParameters implements Serializable {
         //BigInteger rr = r.mod(q);
 
         if(val.equals(BigInteger.ONE))
-            return g.multiply(h.modPow(r, p)).mod(p);
+            return g.multiply(powH(r)).mod(p);
         else if (val.equals(BigInteger.ZERO))
-            return h.modPow(r, p).mod(p);
+            return powH(r).mod(p);
 
         /**
          * Note: NativeBigInteger seems to be unable to handle negative 
@@ -107,7 +139,7 @@ public class Commitment extends P4PParameters implements Serializable {
          * are all non-negative.
          */
         //return g.modPow(val, p).multiply(h.modPow(r, p)).mod(p);
-        return g.modPow(val.mod(q), p).multiply(h.modPow(r, p)).mod(p);
+        return powG(val.mod(q)).multiply(powH(r)).mod(p);
     }
 
 
@@ -116,7 +148,7 @@ public class Commitment extends P4PParameters implements Serializable {
      */
 
     public BigInteger commit(long val) {
-        return commit(new BigInteger(new Long(val).toString()));
+        return commit(BigInteger.valueOf(val));
     }
 
     /**
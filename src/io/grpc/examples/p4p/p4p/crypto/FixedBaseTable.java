@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import io.grpc.examples.p4p.p4p.util.Montgomery;
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+
+/**
+ * Precomputed powers of a fixed base mod p for fast exponentiation. The
+ * table holds base^(d*2^(w*j)) for every w-bit digit d and window j, so
+ * base^e is one multiplication per non-zero window of e and no squarings.
+ * With w = 8 this is about twice as fast as <code>modPow</code>, at the cost
+ * of 255*bitLength(p)/8 precomputed numbers.
+ * <p>
+ * Nearly all the prover's exponentiations are of g and h, so a prover that
+ * builds many proofs should {@link #precompute} tables for them once.
+ * {@link Commitment}s created afterwards with the same generators pick them
+ * up.
+ */
+
+public class FixedBaseTable extends P4PParameters {
+    private static final int W = 8;                 // Window size in bits
+    private static final int DIGITS = 1 << W;
+
+    private final BigInteger base;
+    private final BigInteger modulus;
+    private final Montgomery mont;
+    private final int maxBits;
+    private final BigInteger[][] table;
+    // table[j][d] = base^(d*2^(W*j)) in Montgomery form
+
+    /**
+     * Builds the table for exponents of up to <code>maxBits</code> bits.
+     */
+    public FixedBaseTable(BigInteger base, BigInteger modulus, int maxBits) {
+        this.base = base;
+        this.modulus = modulus;
+        this.mont = new Montgomery(modulus);
+        this.maxBits = maxBits;
+
+        int nWindows = (maxBits + W - 1)/W;
+        table = new BigInteger[nWindows][DIGITS];
+        BigInteger b = mont.toMontgomery(base.mod(modulus));
+        for(int j = 0; j < nWindows; j++) {
+            table[j][1] = b;
+            for(int d = 2; d < DIGITS; d++)
+                table[j][d] = mont.multiply(table[j][d-1], b);
+            b = mont.multiply(table[j][DIGITS-1], b);   // b^(2^W)
+        }
+    }
+
+    public BigInteger getBase() {
+        return base;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     * @return base^e mod modulus. Exponents that are negative or too long
+     *         for the table fall back to <code>modPow</code>.
+     */
+    public BigInteger pow(BigInteger e) {
+        if(e.signum() < 0 || e.bitLength() > maxBits)
+            return base.modPow(e, modulus);
+
+        BigInteger acc = null;
+        int nWindows = (e.bitLength() + W - 1)/W;
+        for(int j = 0; j < nWindows; j++) {
+            int d = 0;
+            for(int b = W - 1; b >= 0; b--)
+                d = (d << 1) | (e.testBit(j*W + b) ? 1 : 0);
+            if(d != 0)
+                acc = acc == null ? table[j][d] : mont.multiply(acc, table[j][d]);
+        }
+        return acc == null ? BigInteger.ONE : mont.fromMontgomery(acc);
+    }
+
+    // The tables in use:
+
+    private static volatile FixedBaseTable[] tables = new FixedBaseTable[0];
+
+    /**
+     * Builds and registers the table of a base mod the current p, unless
+     * there already is one. It covers exponents up to the length of p.
+     *
+     * @return the table
+     */
+    public static FixedBaseTable precompute(BigInteger base) {
+        FixedBaseTable t = lookup(base);
+        if(t != null)
+            return t;
+
+        t = new FixedBaseTable(base, p, p.bitLength());
+        synchronized(FixedBaseTable.class) {
+            FixedBaseTable[] old = tables;
+            FixedBaseTable[] next = new FixedBaseTable[old.length + 1];
+            int n = 0;
+            for(int i = 0; i < old.length; i++) {
+                // Drop the tables for an old p:
+                if(old[i].modulus.equals(p))
+                    next[n++] = old[i];
+            }
+            next[n++] = t;
+            tables = Arrays.copyOf(next, n);
+        }
+        return t;
+    }
+
+    /**
+     * @return the registered table of a base mod the current p, or
+     *         <code>null</code> if there is none.
+     */
+    public static FixedBaseTable lookup(BigInteger base) {
+        FixedBaseTable[] ts = tables;
+        for(int i = 0; i < ts.length; i++) {
+            if(ts[i].base.equals(base) && ts[i].modulus.equals(p))
+                return ts[i];
+        }
+        return null;
+    }
+
+    /**
+     * Drops all the tables.
+     */
+    public static synchronized void clear() {
+        tables = new FixedBaseTable[0];
+    }
+}
@@ -32,6 +32,7 @@
 package io.grpc.examples.p4p.p4p.crypto;
 
 import java.math.BigInteger;
+import java.security.MessageDigest;
 
 import io.grpc.examples.p4p.p4p.util.P4PParameters;
 
@@ -86,6 +87,60 @@ public abstract class Proof extends P4PParameters {
      */
     public abstract void construct();
 
+    /**
+     * Feeds the proof to a message digest, e.g. to recognize a proof that
+     * has been seen before. Subclasses that carry more data than the three
+     * messages should override this and call it.
+     */
+    public void updateDigest(MessageDigest md) {
+        updateDigest(md, commitment);
+        updateDigest(md, challenge);
+        updateDigest(md, response);
+    }
+
+    /**
+     * Feeds an array of numbers to a message digest. The length of the
+     * array and of each number go in too so that different arrays never feed
+     * the same bytes.
+     */
+    protected static void updateDigest(MessageDigest md, BigInteger[] a) {
+        if(a == null) {
+            updateDigest(md, -1);
+            return;
+        }
+
+        updateDigest(md, a.length);
+        for(int i = 0; i < a.length; i++) {
+            if(a[i] == null) {
+                updateDigest(md, -1);
+                continue;
+            }
+            byte[] bytes = a[i].toByteArray();
+            updateDigest(md, bytes.length);
+            md.update(bytes);
+        }
+    }
+
+    /**
+     * Feeds a proof, which may be <code>null</code>, to a message digest.
+     */
+    protected static void updateDigest(MessageDigest md, Proof proof) {
+        if(proof == null) {
+            updateDigest(md, -1);
+            return;
+        }
+        updateDigest(md, 0);
+        proof.updateDigest(md);
+    }
+
+    /**
+     * Feeds a number to a message digest, little-endian.
+     */
+    protected static void updateDigest(MessageDigest md, long x) {
+        for(int i = 0; i < 8; i++)
+            md.update((byte)(x >>> (i<<3)));
+    }
+
     /**
      * Verify the proof. To be overriden by subclasses.
      */
@@ -0,0 +1,575 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.crypto;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+import io.grpc.examples.p4p.p4p.util.Util;
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+
+/**
+ * A commitment to a number in [0, 2^n) with a logarithmic-size ZKP that it
+ * is in that range. The proof is the range proof of
+ * <p>
+ *     <i>Benedikt B&uuml;nz, Jonathan Bootle, Dan Boneh, Andrew Poelstra,
+ *     Pieter Wuille and Greg Maxwell, Bulletproofs: Short Proofs for
+ *     Confidential Transactions and More, IEEE S&amp;P 2018</i>
+ * <p>
+ * over G_q, the order q subgroup of Z_p^*. It replaces n separate
+ * {@link BitCommitment} proofs with 4 commitments, 5 numbers and an inner
+ * product argument of 2*log(n) commitments. The verifier does a single
+ * multi-exponentiation over about 2n bases.
+ * <p>
+ * The inner product argument needs a power of 2 number of bits so n is
+ * padded. The padding bits get weight 0 instead of 2^i, i.e. the proof shows
+ * that the committed value is sum(a[i]*w[i]) with a[i] bits and w[i] = 2^i
+ * for i < n, 0 otherwise. The padding bits are still proved to be bits but
+ * do not count.
+ * <p>
+ * The vector generators G[i], H[i] and the generator u of the inner product
+ * are derived by hashing into G_q so nobody knows a discrete log relation
+ * between them, or with g and h.
+ */
+
+public class RangeCommitment extends Commitment implements Serializable {
+    private static final long serialVersionUID = 6529685098267757690L;
+    private final int numBits;     // n
+    private final int paddedBits;  // n rounded up to a power of 2
+    private final int rounds;      // log2(paddedBits)
+
+    /**
+     * @param numBits   the committed number must be less than 2^numBits.
+     */
+    public RangeCommitment(NativeBigInteger g, NativeBigInteger h, int numBits) {
+        super(g, h);
+        if(numBits < 1)
+            throw new IllegalArgumentException("Need at least one bit.");
+
+        this.numBits = numBits;
+        int n = 1, k = 0;
+        while(n < numBits) {
+            n <<= 1;
+            k++;
+        }
+        this.paddedBits = n;
+        this.rounds = k;
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    // The generators:
+
+    private static final String SEED = "P4P range proof generators";
+
+    /**
+     * The generators for a given padded length and system parameters.
+     */
+    private static class Generators {
+        BigInteger p, g, h;
+        BigInteger[] G, H;
+        BigInteger u;
+    }
+
+    private static Generators generators = null;
+
+    /**
+     * Returns the vector generators for the current system parameters,
+     * deriving them if needed. They are cached and extended when a longer
+     * proof is needed.
+     */
+    private Generators getGenerators() {
+        synchronized(RangeCommitment.class) {
+            Generators gens = generators;
+            if(gens == null || !gens.p.equals(p) || !gens.g.equals(g)
+                    || !gens.h.equals(h) || gens.G.length < paddedBits) {
+                gens = new Generators();
+                gens.p = p;
+                gens.g = g;
+                gens.h = h;
+                gens.G = new BigInteger[paddedBits];
+                gens.H = new BigInteger[paddedBits];
+                for(int i = 0; i < paddedBits; i++) {
+                    gens.G[i] = hashToGroup("G", i);
+                    gens.H[i] = hashToGroup("H", i);
+                }
+                gens.u = hashToGroup("u", 0);
+                generators = gens;
+            }
+            return gens;
+        }
+    }
+
+    /**
+     * Hashes a label to a generator of G_q. The hash is taken mod p and
+     * squared, which lands in the quadratic residues, i.e. G_q since p is a
+     * safe prime. Any element of G_q other than 1 generates it.
+     */
+    private BigInteger hashToGroup(String label, int index) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-512");
+            int length = p.bitLength()/8 + 16;
+            // Extra bytes so that the result is close to uniform mod p
+            for(int counter = 0; ; counter++) {
+                byte[] bytes = new byte[length];
+                int n = 0;
+                for(int block = 0; n < length; block++) {
+                    md.reset();
+                    md.update(SEED.getBytes("UTF-8"));
+                    md.update(p.toByteArray());
+                    md.update(g.toByteArray());
+                    md.update(h.toByteArray());
+                    md.update(label.getBytes("UTF-8"));
+                    md.update(Util.bytesFromInt(index));
+                    md.update(Util.bytesFromInt(counter));
+                    md.update(Util.bytesFromInt(block));
+                    byte[] d = md.digest();
+                    int len = Math.min(d.length, length - n);
+                    System.arraycopy(d, 0, bytes, n, len);
+                    n += len;
+                }
+                BigInteger x = new BigInteger(1, bytes).mod(p);
+                x = x.multiply(x).mod(p);
+                if(!x.equals(BigInteger.ONE) && !x.equals(BigInteger.ZERO))
+                    return x;
+            }
+        }
+        catch(GeneralSecurityException e) {
+            throw new RuntimeException("Can't hash to the group: " + e);
+        }
+        catch(java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException("Can't hash to the group: " + e);
+        }
+    }
+
+    /**
+     * The Fiat-Shamir challenge for the given transcript. A zero challenge
+     * is negligibly likely but can't be inverted so it is mapped to 1.
+     */
+    private static BigInteger challenge(BigInteger[] transcript) {
+        try {
+            BigInteger e = Util.secureHash(transcript, q);
+            return e.signum() == 0 ? BigInteger.ONE : e;
+        }
+        catch(GeneralSecurityException e) {
+            throw new RuntimeException("Can't compute the challenge: " + e);
+        }
+    }
+
+    /**
+     * @return true if x is in G_q. The quadratic residues mod a safe prime
+     *         are exactly G_q so the Jacobi symbol decides it.
+     */
+    private static boolean inGroup(BigInteger x) {
+        return x != null && x.signum() > 0 && x.compareTo(p) < 0
+                && Util.jacobi(x, p) == 1;
+    }
+
+    /**
+     * @return true if x is in Z_q
+     */
+    private static boolean inField(BigInteger x) {
+        return x != null && x.signum() >= 0 && x.compareTo(q) < 0;
+    }
+
+    /**
+     * @return the weight of bit i: 2^i for i < numBits, 0 for the padding.
+     */
+    private BigInteger weight(int i) {
+        return i < numBits ? Util.powerOfTwo(i) : BigInteger.ZERO;
+    }
+
+    /**
+     * (z - z^2)*sum(y^i) - z^3*sum(w[i]), the part of t(0) the verifier
+     * can compute by himself.
+     */
+    private BigInteger delta(BigInteger y, BigInteger z) {
+        BigInteger sumY = BigInteger.ZERO;
+        BigInteger yi = BigInteger.ONE;
+        for(int i = 0; i < paddedBits; i++) {
+            sumY = sumY.add(yi);
+            yi = yi.multiply(y).mod(q);
+        }
+        BigInteger sumW = BigInteger.ZERO.setBit(numBits).subtract(BigInteger.ONE);
+        BigInteger z2 = z.multiply(z).mod(q);
+        BigInteger z3 = z2.multiply(z).mod(q);
+        return z.subtract(z2).multiply(sumY)
+                .subtract(z3.multiply(sumW)).mod(q);
+    }
+
+    private static BigInteger innerProduct(BigInteger[] a, BigInteger[] b,
+                                           int aFrom, int bFrom, int n) {
+        BigInteger s = BigInteger.ZERO;
+        for(int i = 0; i < n; i++)
+            s = s.add(a[aFrom+i].multiply(b[bFrom+i]));
+        return s.mod(q);
+    }
+
+    // The prover:
+
+    /**
+     * Constructs the range proof for the committed value. The value must be
+     * committed to with {@link #commit(BigInteger, BigInteger)} or
+     * {@link #commit(BigInteger)} first. A value outside [0, 2^n) gives a
+     * proof that does not verify.
+     */
+    public Proof getProof() {
+        if(val == null)
+            throw new RuntimeException("Must commit to a value first"
+                    + " before constructing the proof!");
+
+        Generators gens = getGenerators();
+        int n = paddedBits;
+        BigInteger V = computeCommitment(val, r);
+
+        // a_L are the bits, a_R = a_L - 1:
+        BigInteger[] aL = new BigInteger[n];
+        BigInteger[] aR = new BigInteger[n];
+        BigInteger minusOne = q.subtract(BigInteger.ONE);
+        BigInteger alpha = Util.randomBigInteger(q);
+        BigInteger A = h.modPow(alpha, p);
+        BigInteger Hinv = BigInteger.ONE;   // prod of H[i] where a_R[i] = -1
+        for(int i = 0; i < n; i++) {
+            boolean bit = i < numBits && val.testBit(i);
+            aL[i] = bit ? BigInteger.ONE : BigInteger.ZERO;
+            aR[i] = bit ? BigInteger.ZERO : minusOne;
+            if(bit)
+                A = A.multiply(gens.G[i]).mod(p);
+            else
+                Hinv = Hinv.multiply(gens.H[i]).mod(p);
+        }
+        A = A.multiply(Hinv.modInverse(p)).mod(p);
+
+        // The blinding vectors:
+        BigInteger[] sL = new BigInteger[n];
+        BigInteger[] sR = new BigInteger[n];
+        BigInteger rho = Util.randomBigInteger(q);
+        BigInteger[] bases = new BigInteger[2*n+1];
+        BigInteger[] exps = new BigInteger[2*n+1];
+        for(int i = 0; i < n; i++) {
+            sL[i] = Util.randomBigInteger(q);
+            sR[i] = Util.randomBigInteger(q);
+            bases[i] = gens.G[i];
+            exps[i] = sL[i];
+            bases[n+i] = gens.H[i];
+            exps[n+i] = sR[i];
+        }
+        bases[2*n] = h;
+        exps[2*n] = rho;
+        BigInteger S = Util.multiModPow(bases, exps, p);
+
+        BigInteger y = challenge(new BigInteger[] {g, h, V, A, S});
+        BigInteger z = challenge(new BigInteger[] {y, A, S});
+        BigInteger z2 = z.multiply(z).mod(q);
+
+        // l(X) = l0 + l1*X, r(X) = r0 + r1*X:
+        BigInteger[] l0 = new BigInteger[n];
+        BigInteger[] r0 = new BigInteger[n];
+        BigInteger[] r1 = new BigInteger[n];
+        BigInteger[] yPowers = new BigInteger[n];
+        BigInteger yi = BigInteger.ONE;
+        for(int i = 0; i < n; i++) {
+            yPowers[i] = yi;
+            l0[i] = aL[i].subtract(z).mod(q);
+            r0[i] = yi.multiply(aR[i].add(z)).add(z2.multiply(weight(i))).mod(q);
+            r1[i] = yi.multiply(sR[i]).mod(q);
+            yi = yi.multiply(y).mod(q);
+        }
+        BigInteger t1 = innerProduct(l0, r1, 0, 0, n)
+                .add(innerProduct(sL, r0, 0, 0, n)).mod(q);
+        BigInteger t2 = innerProduct(sL, r1, 0, 0, n);
+
+        BigInteger tau1 = Util.randomBigInteger(q);
+        BigInteger tau2 = Util.randomBigInteger(q);
+        BigInteger T1 = g.modPow(t1, p).multiply(h.modPow(tau1, p)).mod(p);
+        BigInteger T2 = g.modPow(t2, p).multiply(h.modPow(tau2, p)).mod(p);
+
+        BigInteger x = challenge(new BigInteger[] {z, T1, T2});
+        BigInteger[] lx = new BigInteger[n];
+        BigInteger[] rx = new BigInteger[n];
+        for(int i = 0; i < n; i++) {
+            lx[i] = l0[i].add(sL[i].multiply(x)).mod(q);
+            rx[i] = r0[i].add(r1[i].multiply(x)).mod(q);
+        }
+        BigInteger tHat = innerProduct(lx, rx, 0, 0, n);
+        BigInteger taux = tau2.multiply(x).multiply(x)
+                .add(tau1.multiply(x)).add(z2.multiply(r)).mod(q);
+        BigInteger mu = alpha.add(rho.multiply(x)).mod(q);
+
+        // The inner product argument that P = G^l*H'^r*U^<l, r> with
+        // H'[i] = H[i]^(y^-i):
+        BigInteger xu = challenge(new BigInteger[] {x, taux, mu, tHat});
+        BigInteger U = gens.u.modPow(xu, p);
+        BigInteger yInv = y.modInverse(q);
+        BigInteger[] Gs = new BigInteger[n];
+        BigInteger[] Hs = new BigInteger[n];
+        BigInteger yInvI = BigInteger.ONE;
+        for(int i = 0; i < n; i++) {
+            Gs[i] = gens.G[i];
+            Hs[i] = gens.H[i].modPow(yInvI, p);
+            yInvI = yInvI.multiply(yInv).mod(q);
+        }
+
+        BigInteger[] L = new BigInteger[rounds];
+        BigInteger[] R = new BigInteger[rounds];
+        BigInteger e = xu;
+        for(int j = 0; j < rounds; j++) {
+            n >>= 1;
+            BigInteger cL = innerProduct(lx, rx, 0, n, n);
+            BigInteger cR = innerProduct(lx, rx, n, 0, n);
+
+            bases = new BigInteger[2*n+1];
+            exps = new BigInteger[2*n+1];
+            for(int i = 0; i < n; i++) {
+                bases[i] = Gs[n+i];
+                exps[i] = lx[i];
+                bases[n+i] = Hs[i];
+                exps[n+i] = rx[n+i];
+            }
+            bases[2*n] = U;
+            exps[2*n] = cL;
+            L[j] = Util.multiModPow(bases, exps, p);
+            for(int i = 0; i < n; i++) {
+                bases[i] = Gs[i];
+                exps[i] = lx[n+i];
+                bases[n+i] = Hs[n+i];
+                exps[n+i] = rx[i];
+            }
+            exps[2*n] = cR;
+            R[j] = Util.multiModPow(bases, exps, p);
+
+            e = challenge(new BigInteger[] {e, L[j], R[j]});
+            BigInteger eInv = e.modInverse(q);
+            for(int i = 0; i < n; i++) {
+                lx[i] = lx[i].multiply(e).add(lx[n+i].multiply(eInv)).mod(q);
+                rx[i] = rx[i].multiply(eInv).add(rx[n+i].multiply(e)).mod(q);
+                Gs[i] = Util.multiModPow(new BigInteger[] {Gs[i], Gs[n+i]},
+                        new BigInteger[] {eInv, e}, p);
+                Hs[i] = Util.multiModPow(new BigInteger[] {Hs[i], Hs[n+i]},
+                        new BigInteger[] {e, eInv}, p);
+            }
+        }
+
+        return new RangeCommitmentProof(numBits,
+                new BigInteger[] {V, A, S, T1, T2},
+                new BigInteger[] {taux, mu, tHat, lx[0], rx[0]}, L, R);
+    }
+
+
+    /**
+     * The range proof. Unlike the other proofs this is a static class so
+     * that it does not carry the prover's commitment, and with it the
+     * committed value, when it is serialized.
+     */
+    public static class RangeCommitmentProof extends Proof implements Serializable {
+        private static final long serialVersionUID = 6529685098267757690L;
+        private int numBits = 0;
+        private BigInteger[] L = null;
+        private BigInteger[] R = null;
+        // The commitments of the inner product argument rounds
+
+        /**
+         * @param numBits       the range is [0, 2^numBits)
+         * @param commitment    V, A, S, T1 and T2
+         * @param response      tau_x, mu, t, a and b
+         * @param L             the left commitment of each round
+         * @param R             the right commitment of each round
+         */
+        public RangeCommitmentProof(int numBits, BigInteger[] commitment,
+                                    BigInteger[] response, BigInteger[] L,
+                                    BigInteger[] R) {
+            super(commitment, null, response);
+            this.numBits = numBits;
+            this.L = L;
+            this.R = R;
+        }
+
+        /**
+         * The proof is built by {@link RangeCommitment#getProof()}.
+         */
+        public void construct() {
+        }
+
+        public int getNumBits() {
+            return numBits;
+        }
+
+        public BigInteger[] getL() {
+            return L;
+        }
+
+        public BigInteger[] getR() {
+            return R;
+        }
+
+        public void updateDigest(MessageDigest md) {
+            super.updateDigest(md);
+            updateDigest(md, numBits);
+            updateDigest(md, L);
+            updateDigest(md, R);
+        }
+    }
+
+    // The verifier:
+
+    /**
+     * Verifies a range proof using our own parameters. The proof must be for
+     * our number of bits.
+     */
+    public boolean verify(Proof proof) {
+        if(!(proof instanceof RangeCommitmentProof))
+            return false;
+        RangeCommitmentProof rp = (RangeCommitmentProof)proof;
+        BigInteger[] c = rp.getCommitment();
+        BigInteger[] s = rp.getResponse();
+        BigInteger[] L = rp.getL();
+        BigInteger[] R = rp.getR();
+
+        if(rp.getNumBits() != numBits || c == null || c.length != 5
+                || s == null || s.length != 5 || L == null || R == null
+                || L.length != rounds || R.length != rounds) {
+            System.out.println("Range proof has the wrong shape.");
+            return false;
+        }
+        for(int i = 0; i < c.length; i++) {
+            if(!inGroup(c[i])) {
+                System.out.println("Range proof commitment " + i
+                        + " is not in G_q.");
+                return false;
+            }
+        }
+        for(int j = 0; j < rounds; j++) {
+            if(!inGroup(L[j]) || !inGroup(R[j])) {
+                System.out.println("Range proof round " + j
+                        + " is not in G_q.");
+                return false;
+            }
+        }
+        for(int i = 0; i < s.length; i++) {
+            if(!inField(s[i])) {
+                System.out.println("Range proof response " + i
+                        + " is not in Z_q.");
+                return false;
+            }
+        }
+
+        Generators gens = getGenerators();
+        int n = paddedBits;
+        BigInteger V = c[0], A = c[1], S = c[2], T1 = c[3], T2 = c[4];
+        BigInteger taux = s[0], mu = s[1], tHat = s[2], a = s[3], b = s[4];
+
+        BigInteger y = challenge(new BigInteger[] {g, h, V, A, S});
+        BigInteger z = challenge(new BigInteger[] {y, A, S});
+        BigInteger x = challenge(new BigInteger[] {z, T1, T2});
+        BigInteger xu = challenge(new BigInteger[] {x, taux, mu, tHat});
+        BigInteger[] e = new BigInteger[rounds];
+        BigInteger[] eInv = new BigInteger[rounds];
+        BigInteger prev = xu;
+        for(int j = 0; j < rounds; j++) {
+            e[j] = challenge(new BigInteger[] {prev, L[j], R[j]});
+            eInv[j] = e[j].modInverse(q);
+            prev = e[j];
+        }
+
+        // s[i] = prod_j e[j]^(+1 if bit j of i from the top is set, else -1)
+        BigInteger[] sv = new BigInteger[n];
+        for(int i = 0; i < n; i++) {
+            BigInteger si = BigInteger.ONE;
+            for(int j = 0; j < rounds; j++) {
+                boolean set = ((i >> (rounds - 1 - j)) & 1) == 1;
+                si = si.multiply(set ? e[j] : eInv[j]).mod(q);
+            }
+            sv[i] = si;
+        }
+        // Note that 1/s[i] = s[n-1-i].
+
+        // Both checks are folded into one multi-exponentiation. With a random
+        // weight w the product
+        //   (V^(z^2) g^(delta-t) h^(-tau_x) T1^x T2^(x^2))^w
+        //   * A S^x G^(-z-a*s) H^(z + (z^2*w[i] - b/s[i])*y^-i) h^(-mu)
+        //   * u^(xu*(t-ab)) prod L^(e^2) R^(e^-2)
+        // is 1 iff both hold, except with negligible probability.
+        BigInteger weight = Util.randomBigInteger(q);
+        while(weight.signum() == 0)
+            weight = Util.randomBigInteger(q);
+        BigInteger z2 = z.multiply(z).mod(q);
+        BigInteger yInv = y.modInverse(q);
+
+        int k = 2*n + 2*rounds + 8;
+        BigInteger[] bases = new BigInteger[k];
+        BigInteger[] exps = new BigInteger[k];
+        int m = 0;
+        bases[m] = V;
+        exps[m++] = weight.multiply(z2).mod(q);
+        bases[m] = g;
+        exps[m++] = weight.multiply(delta(y, z).subtract(tHat)).mod(q);
+        bases[m] = h;
+        exps[m++] = weight.multiply(taux).add(mu).negate().mod(q);
+        bases[m] = T1;
+        exps[m++] = weight.multiply(x).mod(q);
+        bases[m] = T2;
+        exps[m++] = weight.multiply(x).multiply(x).mod(q);
+        bases[m] = A;
+        exps[m++] = BigInteger.ONE;
+        bases[m] = S;
+        exps[m++] = x;
+        bases[m] = gens.u;
+        exps[m++] = xu.multiply(tHat.subtract(a.multiply(b))).mod(q);
+        BigInteger yInvI = BigInteger.ONE;
+        for(int i = 0; i < n; i++) {
+            bases[m] = gens.G[i];
+            exps[m++] = z.add(a.multiply(sv[i])).negate().mod(q);
+            bases[m] = gens.H[i];
+            exps[m++] = z2.multiply(weight(i)).subtract(b.multiply(sv[n-1-i]))
+                    .multiply(yInvI).add(z).mod(q);
+            yInvI = yInvI.multiply(yInv).mod(q);
+        }
+        for(int j = 0; j < rounds; j++) {
+            bases[m] = L[j];
+            exps[m++] = e[j].multiply(e[j]).mod(q);
+            bases[m] = R[j];
+            exps[m++] = eInv[j].multiply(eInv[j]).mod(q);
+        }
+        BigInteger result = Util.multiModPow(bases, exps, p);
+        if(!result.equals(BigInteger.ONE)) {
+            System.out.println("Range proof verification failed.");
+            return false;
+        }
+        return true;
+    }
+}
@@ -177,6 +177,21 @@ public class SquareCommitment extends Commitment implements Serializable{
         return proof;
     }
 
+    /**
+     * Rebuilds a proof received from a prover, e.g. one read off the wire.
+     * The proof belongs to this commitment, not to the prover's, so it
+     * carries none of the prover's secrets.
+     */
+    public SquareCommitmentProof newProof(BigInteger[] commitment,
+                                          BigInteger[] challenge,
+                                          BigInteger[] response) {
+        SquareCommitmentProof proof = new SquareCommitmentProof();
+        proof.commitment = commitment;
+        proof.challenge = challenge;
+        proof.response = response;
+        return proof;
+    }
+
 
     /**
      * A zero-knowledge proof that two commitments contain a number and its 
@@ -202,8 +217,8 @@ public class SquareCommitment extends Commitment implements Serializable{
             BigInteger ra = Util.randomBigInteger(P4PParameters.q);
             BigInteger rb = Util.randomBigInteger(P4PParameters.q);
 
-            commitment[2] = g.modPow(x, P4PParameters.p).multiply(h.modPow(ra, P4PParameters.p)).mod(P4PParameters.p);  // Ca
-            commitment[3] = A.modPow(x, P4PParameters.p).multiply(h.modPow(rb, P4PParameters.p)).mod(P4PParameters.p);  // Cb
+            commitment[2] = powG(x).multiply(powH(ra)).mod(P4PParameters.p);  // Ca
+            commitment[3] = A.modPow(x, P4PParameters.p).multiply(powH(rb)).mod(P4PParameters.p);  // Cb
             // The first two elements are the commitments to a and b.
             // The next two elements are Ca and Cb
 
@@ -34,6 +34,7 @@ package io.grpc.examples.p4p.p4p.crypto;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 
 import io.grpc.examples.p4p.p4p.util.P4PParameters;
@@ -73,7 +74,7 @@ public class ThreeWayCommitment extends Commitment implements Serializable{
     public ThreeWayCommitment(NativeBigInteger g, NativeBigInteger h,
                               long c) {
         super(g, h);
-        this.CONST = new NativeBigInteger(new BigInteger(String.valueOf(c)).abs());
+        this.CONST = new NativeBigInteger(BigInteger.valueOf(c).abs());
     }
 
     /**
@@ -96,7 +97,7 @@ public class ThreeWayCommitment extends Commitment implements Serializable{
             throw new RuntimeException("ThreeWayCommitment.commit can only"
                     + "be invoked with 0 or +/-" + c);
 
-        return super.commit(new BigInteger(String.valueOf(val)));
+        return super.commit(BigInteger.valueOf(val));
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -107,7 +108,7 @@ public class ThreeWayCommitment extends Commitment implements Serializable{
             throw new RuntimeException("ThreeWayCommitment.commit can only"
                     + "be invoked with 0 or +/-" + c);
 
-        return super.commit(new BigInteger(String.valueOf(val)), r);
+        return super.commit(BigInteger.valueOf(val), r);
         // Commitment is smart enough to avoid doing exponetiation 
         // if val is either 0 or 1.
     }
@@ -133,6 +134,25 @@ public class ThreeWayCommitment extends Commitment implements Serializable{
         return proof;
     }
 
+    /**
+     * Rebuilds a proof received from a prover, e.g. one read off the wire.
+     * The proof belongs to this commitment, not to the prover's, so it
+     * carries none of the prover's secrets.
+     *
+     * @param commitment    the 3-way commitment
+     * @param bcp1          the proof for C1
+     * @param bcp2          the proof for C2
+     */
+    public ThreeWayCommitmentProof newProof(BigInteger commitment,
+                                            BitCommitment.BitCommitmentProof bcp1,
+                                            BitCommitment.BitCommitmentProof bcp2) {
+        ThreeWayCommitmentProof proof = new ThreeWayCommitmentProof();
+        proof.commitment = new BigInteger[] {commitment};
+        proof.bcp1 = bcp1;
+        proof.bcp2 = bcp2;
+        return proof;
+    }
+
     /**
      * A zero-knowledge proof that the commitment contains 0,or +/-c. The protocol 
      * is based on
@@ -227,6 +247,12 @@ public class ThreeWayCommitment extends Commitment implements Serializable{
         public BitCommitment.BitCommitmentProof getDenominatorProof() {
             return bcp2;
         }
+
+        public void updateDigest(MessageDigest md) {
+            super.updateDigest(md);
+            updateDigest(md, bcp1);
+            updateDigest(md, bcp2);
+        }
     }
 
     /**
@@ -0,0 +1,553 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A long lived listener that hands the connections it accepts to a bounded
+ * pool of worker threads.
+ * <p>
+ * The listening socket is opened once and stays open until {@link #close()}
+ * so connections are never refused because the endpoint happens to be
+ * between two listeners. It is a TCP socket unless the acceptor is given
+ * another {@link Transport}, e.g. a Unix domain socket. Each accepted
+ * connection is passed to a {@link Handler} which turns it into a task
+ * for the pool. The pool has a
+ * fixed number of threads and a bounded queue. When both are full the
+ * connection is closed right away and counted as rejected rather than
+ * letting the backlog grow without bound.
+ * <p>
+ * Alternatively every connection can get a thread of its own, a virtual
+ * thread if the VM has them (see {@link #setVirtualThreads(boolean)}).
+ * This suits many mostly idle connections, which would otherwise each hold
+ * a pool thread. The handlers keep doing plain blocking I/O either way. In
+ * this mode the number of connections served at once is capped by
+ * {@link #setMaxConnections(int)}. When the cap is reached the acceptor
+ * stops accepting until a connection finishes, so new clients wait in the
+ * listen backlog instead of being refused.
+ * <p>
+ * The acceptor keeps counts of the connections accepted, rejected,
+ * completed and failed and of how long tasks wait in the queue before a
+ * worker picks them up. Reading them does not stop the acceptor.
+ * <p>
+ * When accepting fails, e.g. because the process is out of file
+ * descriptors, the acceptor pauses before it tries again, from 10 ms up to
+ * 100 ms while the failures go on, and reports them at most once a second.
+ */
+
+public class Acceptor implements Runnable {
+    /**
+     * Makes the task that serves one connection. Called by the accept
+     * thread so it should not block. In particular it should not read from
+     * the connection; the task should do that. The task owns the
+     * connection and must close it.
+     */
+    public interface Handler {
+        Runnable newTask(Transport.Connection connection) throws IOException;
+    }
+
+    private static final long MIN_ACCEPT_PAUSE = 10;    // ms
+    private static final long MAX_ACCEPT_PAUSE = 100;   // ms
+
+    private final int port;
+    private final Handler handler;
+    private final String name;
+    private Transport transport;
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 64;
+    private int backlog = 50;
+    private boolean perConnection = false;
+    private int maxConnections = 10000;
+
+    private volatile ServerSocketChannel serverChannel = null;
+    private volatile boolean closed = false;
+    private ExecutorService pool = null;
+    private Semaphore permits = null;       // Only in per connection mode
+
+    private final AtomicLong accepted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong started = new AtomicLong(0);
+    private final AtomicLong queueWait = new AtomicLong(0);   // in ns
+    private final AtomicInteger maxQueued = new AtomicInteger(0);
+    private final AtomicInteger running = new AtomicInteger(0);
+
+    /**
+     * @param name      the name of the endpoint. Used for the thread names
+     *                  and in messages.
+     * @param port      the port to listen on. 0 picks a free port.
+     * @param handler   makes the tasks for the accepted connections
+     */
+    public Acceptor(String name, int port, Handler handler) {
+        if(handler == null)
+            throw new IllegalArgumentException("Handler must not be null.");
+        this.name = name;
+        this.port = port;
+        this.handler = handler;
+        this.transport = Transport.tcp(null, port);
+    }
+
+    /**
+     * Sets where to listen. Must be called before the acceptor is started.
+     */
+    public void setTransport(Transport transport) {
+        checkNotStarted();
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the number of worker threads. Must be called before the acceptor
+     * is started.
+     */
+    public void setThreads(int nThreads) {
+        if(nThreads < 1)
+            throw new IllegalArgumentException("Need at least one thread.");
+        checkNotStarted();
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Sets the number of connections that can wait for a worker. Must be
+     * called before the acceptor is started.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if(queueCapacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+        checkNotStarted();
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the listen backlog of the server socket, i.e. the number of
+     * connections the OS holds before the acceptor takes them. Must be
+     * called before the acceptor is started.
+     */
+    public void setBacklog(int backlog) {
+        checkNotStarted();
+        this.backlog = backlog;
+    }
+
+    /**
+     * Serves every connection in a thread of its own instead of in the
+     * pool. The threads are virtual if the VM supports them and platform
+     * threads otherwise. Must be called before the acceptor is started.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        checkNotStarted();
+        this.perConnection = virtualThreads;
+    }
+
+    /**
+     * Sets the maximum number of connections served at once when every
+     * connection has its own thread. Must be called before the acceptor is
+     * started.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if(maxConnections < 1)
+            throw new IllegalArgumentException("Need at least one connection.");
+        checkNotStarted();
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return <code>true</code> if the VM has virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch(NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets the threads, queue capacity, connection limit and transport from
+     * command line style arguments: <code>-t threads -q queue -v -c
+     * maxConnections -unix dir</code>. <code>-v</code> turns on the thread
+     * per connection mode. See {@link Transport#configure(String[], String,
+     * int)} for <code>-unix</code>. Unknown arguments are ignored.
+     */
+    public void configure(String[] args) {
+        setTransport(Transport.configure(args, null, port));
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("-v")) {
+                setVirtualThreads(true);
+                continue;
+            }
+            if(i == args.length - 1)
+                break;
+            try {
+                if(args[i].equals("-c"))
+                    setMaxConnections(Integer.parseInt(args[++i]));
+                else if(args[i].equals("-t"))
+                    setThreads(Integer.parseInt(args[++i]));
+                else if(args[i].equals("-q"))
+                    setQueueCapacity(Integer.parseInt(args[++i]));
+            }
+            catch(NumberFormatException e) {
+                System.out.println("Bad argument to " + args[i-1] + ": " + args[i]);
+            }
+        }
+    }
+
+    private void checkNotStarted() {
+        if(serverChannel != null)
+            throw new IllegalStateException("Acceptor already started.");
+    }
+
+    /**
+     * Opens the listening socket and the pool. After this returns
+     * connections are queued by the OS even if the accept loop has not
+     * been entered yet.
+     */
+    public synchronized void bind() throws IOException {
+        if(serverChannel != null)
+            return;
+
+        final AtomicInteger nWorkers = new AtomicInteger(0);
+        if(perConnection) {
+            pool = newPerConnectionExecutor();
+            permits = new Semaphore(maxConnections);
+        }
+        else
+            pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                          new ThreadFactory() {
+                                              public Thread newThread(Runnable r) {
+                                                  Thread t = new Thread(r, name + "-worker-"
+                                                                        + nWorkers.incrementAndGet());
+                                                  t.setDaemon(true);
+                                                  return t;
+                                              }
+                                          },
+                                          new ThreadPoolExecutor.AbortPolicy());
+
+        serverChannel = transport.bind(backlog);
+    }
+
+    /**
+     * Makes the executor for the thread per connection mode: a virtual
+     * thread per task if the VM has them, an unbounded cached pool of
+     * platform threads if not. Both are bounded by the permits.
+     */
+    private ExecutorService newPerConnectionExecutor() {
+        try {
+            return (ExecutorService)Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Exception e) {
+            System.out.println(name + ": virtual threads are not available. "
+                               + "Using a platform thread per connection.");
+        }
+
+        final AtomicInteger nWorkers = new AtomicInteger(0);
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(null, r, name + "-conn-"
+                                          + nWorkers.incrementAndGet(), 256*1024);
+                    // A small stack since there may be many of them
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Starts the accept loop in a new thread.
+     *
+     * @return the accept thread
+     */
+    public Thread start() throws IOException {
+        bind();
+        Thread t = new Thread(this, name + "-acceptor");
+        t.start();
+        return t;
+    }
+
+    /**
+     * The accept loop. Runs until the acceptor is closed. Call it directly
+     * to accept in the calling thread, e.g. from <code>main</code>.
+     */
+    public void run() {
+        try {
+            bind();
+        }
+        catch(IOException e) {
+            throw new RuntimeException("Cannot listen on " + transport + ": " + e);
+        }
+
+        System.out.println(name + " is listening on "
+                           + (transport.isUnix() ? transport.toString() : "port " + getPort()));
+        long pause = 0;             // After the last failed accept, in ms
+        int unreported = 0;         // Failed accepts not reported yet
+        long reportedAt = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        while(!closed) {
+            if(permits != null && !acquire())
+                break;
+
+            SocketChannel ch;
+            try {
+                ch = serverChannel.accept();
+            }
+            catch(IOException e) {
+                release();
+                if(closed)
+                    break;
+                unreported++;
+                long now = System.nanoTime();
+                if(now - reportedAt >= TimeUnit.SECONDS.toNanos(1)) {
+                    System.out.println(name + ": accept failed: " + e
+                                       + (unreported > 1 ? " (" + unreported + " times)" : ""));
+                    unreported = 0;
+                    reportedAt = now;
+                }
+                // Trying again right away would only spin, e.g. until a
+                // file descriptor is freed
+                pause = Math.min(Math.max(2*pause, MIN_ACCEPT_PAUSE), MAX_ACCEPT_PAUSE);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pause));
+                continue;
+            }
+            pause = 0;
+
+            accepted.incrementAndGet();
+            dispatch(new Transport.Connection(ch));
+        }
+    }
+
+    /**
+     * Waits for a connection permit. Gives up when the acceptor is closed.
+     *
+     * @return <code>true</code> if a permit was taken
+     */
+    private boolean acquire() {
+        try {
+            while(!closed) {
+                if(permits.tryAcquire(100, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private void release() {
+        if(permits != null)
+            permits.release();
+    }
+
+    private void dispatch(final Transport.Connection s) {
+        final Runnable task;
+        try {
+            task = handler.newTask(s);
+        }
+        catch(IOException e) {
+            failed.incrementAndGet();
+            closeQuietly(s);
+            release();
+            return;
+        }
+
+        final long queuedAt = System.nanoTime();
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    queueWait.addAndGet(System.nanoTime() - queuedAt);
+                    started.incrementAndGet();
+                    running.incrementAndGet();
+                    try {
+                        task.run();
+                        completed.incrementAndGet();
+                    }
+                    catch(RuntimeException e) {
+                        failed.incrementAndGet();
+                        System.out.println(name + ": connection from "
+                                           + s.getRemoteAddress() + " failed: " + e);
+                        closeQuietly(s);
+                    }
+                    finally {
+                        running.decrementAndGet();
+                        release();
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            closeQuietly(s);
+            release();
+            return;
+        }
+
+        int queued = getQueued();
+        int max;
+        while(queued > (max = maxQueued.get())
+              && !maxQueued.compareAndSet(max, queued))
+            ;
+    }
+
+    private static void closeQuietly(Transport.Connection s) {
+        try {
+            s.close();
+        }
+        catch(IOException e) {
+        }
+    }
+
+    /**
+     * Stops accepting, closes the listening socket and lets the workers
+     * finish the connections already taken.
+     */
+    public void close() {
+        closed = true;
+        ServerSocketChannel ch = serverChannel;
+        if(ch != null) {
+            try {
+                transport.unbind(ch);
+            }
+            catch(IOException e) {
+            }
+        }
+        if(pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Waits for the workers to finish after {@link #close()}.
+     *
+     * @return <code>true</code> if they finished in time
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return pool == null || pool.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return the port the acceptor listens on. The actual port if it was
+     *         constructed with 0.
+     */
+    public int getPort() {
+        ServerSocketChannel ch = serverChannel;
+        try {
+            return ch == null ? port : transport.getLocalPort(ch);
+        }
+        catch(IOException e) {
+            return port;
+        }
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of connections closed because the pool was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of connections whose task could not be made or
+     *         threw
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of connections being served right now
+     */
+    public int getActive() {
+        return running.get();
+    }
+
+    /**
+     * @return the number of connections waiting for a worker right now
+     */
+    public int getQueued() {
+        if(pool == null || permits != null)
+            return 0;
+        return ((ThreadPoolExecutor)pool).getQueue().size();
+    }
+
+    /**
+     * @return the largest number of connections seen waiting for a worker
+     */
+    public int getMaxQueued() {
+        return maxQueued.get();
+    }
+
+    /**
+     * @return the average time, in milliseconds, a connection waited for a
+     *         worker
+     */
+    public double getAverageQueueWait() {
+        long n = started.get();
+        return n == 0 ? 0 : queueWait.get()/1e6/n;
+    }
+
+    public String toString() {
+        return name + ": accepted " + getAccepted() + ", rejected " + getRejected()
+            + ", completed " + getCompleted() + ", failed " + getFailed()
+            + ", active " + getActive() + ", queued " + getQueued()
+            + " (max " + getMaxQueued() + ", avg wait "
+            + String.format("%.3f", getAverageQueueWait()) + " ms)";
+    }
+}
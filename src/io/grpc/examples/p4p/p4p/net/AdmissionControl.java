@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Admission control for the session endpoints. It bounds the memory held
+ * by submissions that have been received but not verified yet, and tells
+ * each session how many frames it may have in flight.
+ * <p>
+ * A handler reserves the size of each share and proof before it keeps
+ * it. When the reservation does not fit in {@link #getMaxPendingBytes()}
+ * the frame is dropped and answered with "retry later". A user's
+ * reservations are released once he has been verified or disqualified,
+ * and all of them at the start of an epoch. A user who never completes
+ * his submission holds his reservation until then.
+ * <p>
+ * The credit window advertised to the sessions is
+ * {@link #setCredits(int)} frames, and a single frame once three quarters
+ * of the budget is taken, so the senders slow down before they are
+ * refused.
+ */
+
+public class AdmissionControl {
+    public static final int SHARE = 0;
+    public static final int PROOF = 1;
+
+    private final long maxPendingBytes;
+    private volatile int credits = 32;
+
+    private long pending = 0;                   // Guarded by this
+    private final HashMap<Integer, long[]> reserved = new HashMap<Integer, long[]>();
+    // The bytes of each user's share and proof, then what they replaced.
+    // Guarded by this.
+    private long admitted = 0;                  // Guarded by this
+    private long shed = 0;                      // Guarded by this
+
+    /**
+     * @param maxPendingBytes   the most bytes of unverified submissions
+     *                          held at once
+     */
+    public AdmissionControl(long maxPendingBytes) {
+        if(maxPendingBytes <= 0)
+            throw new IllegalArgumentException("Budget must be positive.");
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Sets the window advertised to each session while the budget is not
+     * nearly used up. 32 by default.
+     */
+    public void setCredits(int credits) {
+        if(credits < 1)
+            throw new IllegalArgumentException("Need at least one credit.");
+        this.credits = credits;
+    }
+
+    /**
+     * Reserves room for a user's share or proof. It replaces what was
+     * reserved for the user's previous one.
+     *
+     * @param kind  {@link #SHARE} or {@link #PROOF}
+     * @return <code>false</code> if there is no room. Nothing is reserved
+     *         then and the previous reservation stays.
+     */
+    public synchronized boolean reserve(int user, int kind, long bytes) {
+        long[] r = reserved.get(user);
+        long old = r == null ? 0 : r[kind];
+        if(pending - old + bytes > maxPendingBytes) {
+            shed++;
+            return false;
+        }
+        if(r == null)
+            reserved.put(user, r = new long[4]);
+        r[2 + kind] = old;
+        r[kind] = bytes;
+        pending += bytes - old;
+        admitted++;
+        return true;
+    }
+
+    /**
+     * Undoes the last reservation of a user's share or proof, for a frame
+     * that was admitted but then not kept. What it replaced is reserved
+     * again.
+     */
+    public synchronized void unreserve(int user, int kind) {
+        long[] r = reserved.get(user);
+        if(r == null)
+            return;
+        pending += r[2 + kind] - r[kind];
+        r[kind] = r[2 + kind];
+        r[2 + kind] = 0;
+        admitted--;
+        if(r[SHARE] == 0 && r[PROOF] == 0)
+            reserved.remove(user);
+    }
+
+    /**
+     * Releases what was reserved for a user.
+     */
+    public synchronized void release(int user) {
+        long[] r = reserved.remove(user);
+        if(r != null)
+            pending -= r[SHARE] + r[PROOF];
+    }
+
+    /**
+     * Releases everything, e.g. at the start of an epoch.
+     */
+    public synchronized void reset() {
+        reserved.clear();
+        pending = 0;
+    }
+
+    /**
+     * @return the window to advertise to the sessions now
+     */
+    public synchronized int getCredits() {
+        return 4*pending >= 3*maxPendingBytes ? 1 : credits;
+    }
+
+    /**
+     * Sends a session the current window if it is not the one it was last
+     * sent, which is kept in <code>sent</code>.
+     *
+     * @return the window the session has now
+     */
+    public int advertise(NioServer.Connection c, int sent) {
+        int window = getCredits();
+        if(window != sent) {
+            ByteBuffer b = ByteBuffer.allocate(SessionCodec.CREDIT_SIZE);
+            SessionCodec.encodeCredit(b, window);
+            b.flip();
+            c.write(b);
+        }
+        return window;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pending;
+    }
+
+    /**
+     * @return the number of shares and proofs admitted
+     */
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    /**
+     * @return the number of shares and proofs refused for want of room
+     */
+    public synchronized long getShed() {
+        return shed;
+    }
+
+    public synchronized String toString() {
+        return pending + " of " + maxPendingBytes + " bytes pending, "
+            + admitted + " admitted, " + shed + " shed";
+    }
+}
@@ -0,0 +1,661 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * Submits user vectors asynchronously over a {@link SubmissionSession}.
+ * <p>
+ * {@link #submit(int, int, UserVector2)} returns at once with a future for
+ * the server's verdict. The proofs are constructed and sent by a pool of
+ * prover threads, so the proofs of the next users are constructed while
+ * those of the previous ones are on the wire. At most
+ * {@link #setWindow(int)} submissions are in flight. <code>submit</code>
+ * blocks when the window is full.
+ * <p>
+ * A submission that gets no verdict within {@link #setTimeout(long)}, or
+ * whose session is lost, is sent again on a new session, up to
+ * {@link #setRetries(int)} times. Its future then fails with the
+ * <code>TimeoutException</code> or <code>IOException</code>. The server
+ * may see the same submission twice. It ignores the second share and
+ * proof if the first have been counted, and sends the verdict on them
+ * again. A share or proof ignored on a later attempt is therefore taken as
+ * received.
+ * <p>
+ * A submission the server or the peer has no room for, i.e. whose share
+ * or proof is answered with "retry later", is sent again after
+ * {@link #setRetryDelay(long)}, doubled on each attempt. This counts as a
+ * retry too.
+ * <p>
+ * The verdict is the one the server sends once it has verified the user.
+ * A server that only acknowledges what it receives can be used with
+ * {@link #setAwaitVerdict(boolean)} off: the submission is then accepted
+ * once the server and the peer have accepted both the share and the proof.
+ * Either way a submission whose share or proof is not accepted on the
+ * first attempt, e.g. because it is for another epoch, is
+ * {@link Verdict#IGNORED}.
+ */
+
+public class AsyncSubmissionClient {
+    public enum Verdict {
+        ACCEPTED,
+        REJECTED,
+        IGNORED
+    }
+
+    private final Transport server;
+    private final Transport peer;
+
+    private int window = 64;
+    private long timeoutMillis = 60000;
+    private int retries = 2;
+    private long retryDelayMillis = 100;
+    private boolean awaitVerdict = true;
+    private int nProvers = Runtime.getRuntime().availableProcessors();
+    private ShareCodec.Encoding encoding = ShareCodec.Encoding.PACKED;
+
+    private Semaphore permits = null;
+    private ExecutorService provers = null;
+    private ScheduledExecutorService timer = null;
+    private volatile boolean closed = false;
+
+    private SubmissionSession session = null;     // Guarded by this
+    private int generation = 0;                   // Guarded by this
+    private final ConcurrentHashMap<Long, Submission> inFlight =
+        new ConcurrentHashMap<Long, Submission>();
+
+    private final AtomicLong submitted = new AtomicLong(0);
+    private final AtomicLong accepted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong ignored = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong resent = new AtomicLong(0);
+    private final AtomicLong deferred = new AtomicLong(0);
+
+    private static final int SERVER_SHARE = 1;
+    private static final int SERVER_PROOF = 2;
+    private static final int PEER_SHARE = 4;
+    private static final int PEER_PROOF = 8;
+
+    /**
+     * A submission in flight. Its fields other than the future are guarded
+     * by the submission.
+     */
+    private class Submission {
+        final int user;
+        final int epoch;
+        final CompletableFuture<Verdict> future = new CompletableFuture<Verdict>();
+        UserVector2 uv = null;          // Until the proofs are constructed
+        long F;
+        long[] u = null;
+        long[] v = null;
+        UserVector2.L2NormBoundProof2 serverProof = null;
+        UserVector2.L2NormBoundProof2 peerProof = null;
+        int attempts = 0;
+        int generation = -1;            // Of the session it was last sent on
+        int acks = 0;                   // The accepted frames of this attempt
+        int deferredAttempt = 0;        // The last attempt told to retry later
+        ScheduledFuture<?> timeout = null;
+
+        Submission(int user, int epoch) {
+            this.user = user;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Nothing is connected until the first submission.
+     */
+    public AsyncSubmissionClient(String serverHost, int serverPort,
+                                 String peerHost, int peerPort) {
+        this(Transport.tcp(serverHost, serverPort), Transport.tcp(peerHost, peerPort));
+    }
+
+    /**
+     * Nothing is connected until the first submission.
+     */
+    public AsyncSubmissionClient(Transport server, Transport peer) {
+        this.server = server;
+        this.peer = peer;
+    }
+
+    /**
+     * Sets the largest number of submissions in flight. Must be called
+     * before the first submission.
+     */
+    public void setWindow(int window) {
+        if(window < 1)
+            throw new IllegalArgumentException("Window must be at least 1.");
+        checkNotStarted();
+        this.window = window;
+    }
+
+    /**
+     * Sets how long to wait for the verdict on each attempt.
+     */
+    public void setTimeout(long timeoutMillis) {
+        if(timeoutMillis <= 0)
+            throw new IllegalArgumentException("Timeout must be positive.");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how many times a submission is sent again after a timeout or a
+     * lost session.
+     */
+    public void setRetries(int retries) {
+        if(retries < 0)
+            throw new IllegalArgumentException("Retries must not be negative.");
+        this.retries = retries;
+    }
+
+    /**
+     * Sets how long to wait before the first attempt to send again a
+     * submission the server had no room for. 100 ms by default.
+     */
+    public void setRetryDelay(long retryDelayMillis) {
+        if(retryDelayMillis < 0)
+            throw new IllegalArgumentException("Delay must not be negative.");
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Sets whether to wait for the server's verdict (the default) or only
+     * for the acknowledgements.
+     */
+    public void setAwaitVerdict(boolean awaitVerdict) {
+        this.awaitVerdict = awaitVerdict;
+    }
+
+    /**
+     * Sets the number of prover threads. Must be called before the first
+     * submission.
+     */
+    public void setProverThreads(int nProvers) {
+        if(nProvers < 1)
+            throw new IllegalArgumentException("Need at least one prover thread.");
+        checkNotStarted();
+        this.nProvers = nProvers;
+    }
+
+    public void setEncoding(ShareCodec.Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    private void checkNotStarted() {
+        if(permits != null)
+            throw new IllegalStateException("Client already started.");
+    }
+
+    private synchronized void start() throws IOException {
+        if(closed)
+            throw new IOException("Client closed.");
+        if(permits != null)
+            return;
+        provers = Executors.newFixedThreadPool(nProvers, daemons("prover"));
+        timer = Executors.newSingleThreadScheduledExecutor(daemons("timer"));
+        permits = new Semaphore(window);
+    }
+
+    private static ThreadFactory daemons(final String kind) {
+        return new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AsyncSubmissionClient-" + kind + "-"
+                                      + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Constructs the proofs of a user vector on a prover thread and submits
+     * them. The shares and the checksum coefficient vectors must have been
+     * set. The vector must not be changed until the future completes.
+     *
+     * @return the verdict
+     * @throws InterruptedException if interrupted while the window is full
+     */
+    public CompletableFuture<Verdict> submit(int user, int epoch, UserVector2 uv)
+        throws IOException, InterruptedException {
+        Submission s = admit(user, epoch);
+        s.uv = uv;
+        s.F = uv.getF();
+        dispatch(s);
+        return s.future;
+    }
+
+    /**
+     * Submits shares and proofs that have already been constructed. They
+     * are sent on a prover thread.
+     */
+    public CompletableFuture<Verdict> submit(int user, int epoch, long F,
+                                             long[] u, UserVector2.L2NormBoundProof2 serverProof,
+                                             long[] v, UserVector2.L2NormBoundProof2 peerProof)
+        throws IOException, InterruptedException {
+        Submission s = admit(user, epoch);
+        s.F = F;
+        s.u = u;
+        s.v = v;
+        s.serverProof = serverProof;
+        s.peerProof = peerProof;
+        dispatch(s);
+        return s.future;
+    }
+
+    /**
+     * Takes a slot in the window for a new submission.
+     */
+    private Submission admit(int user, int epoch) throws IOException, InterruptedException {
+        start();
+        permits.acquire();
+        final Submission s = new Submission(user, epoch);
+        final Long key = key(user, epoch);
+        s.future.whenComplete(new BiConsumer<Verdict, Throwable>() {
+            public void accept(Verdict verdict, Throwable t) {
+                synchronized(s) {
+                    if(s.timeout != null)
+                        s.timeout.cancel(false);
+                }
+                inFlight.remove(key, s);
+                permits.release();
+            }
+        });
+        Submission previous = inFlight.put(key, s);
+        if(previous != null)
+            fail(previous, new IOException("User " + user + " submitted again."));
+        submitted.incrementAndGet();
+        return s;
+    }
+
+    private void dispatch(final Submission s) {
+        try {
+            provers.execute(new Runnable() {
+                public void run() {
+                    send(s);
+                }
+            });
+        }
+        catch(RuntimeException e) {     // Rejected: closed meanwhile
+            fail(s, new IOException("Client closed."));
+        }
+    }
+
+    private static Long key(int user, int epoch) {
+        return ((long)epoch << 32) | (user & 0xffffffffL);
+    }
+
+    /**
+     * Constructs the proofs if need be and sends the submission. Runs on a
+     * prover thread.
+     */
+    private void send(final Submission s) {
+        if(s.future.isDone())
+            return;
+        try {
+            if(s.uv != null) {
+                UserVector2 uv = s.uv;
+                s.peerProof = (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(false);
+                s.serverProof = (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(true);
+                s.u = uv.getU();
+                s.v = uv.getV();
+                s.uv = null;
+            }
+        }
+        catch(RuntimeException e) {
+            s.future.completeExceptionally(e);
+            failed.incrementAndGet();
+            return;
+        }
+
+        SubmissionSession session;
+        final int attempt;
+        synchronized(s) {
+            attempt = ++s.attempts;
+            s.acks = 0;
+            s.timeout = null;
+        }
+        try {
+            synchronized(this) {
+                if(closed)
+                    throw new IOException("Client closed.");
+                if(this.session == null)
+                    connect();
+                session = this.session;
+                synchronized(s) {
+                    s.generation = generation;
+                }
+            }
+            session.submit(s.user, s.epoch, s.F, s.u, s.serverProof, s.v, s.peerProof);
+        }
+        catch(IOException e) {
+            lost(s.generation, e);
+            retry(s, e);
+            return;
+        }
+
+        synchronized(s) {
+            if(!s.future.isDone() && s.deferredAttempt != attempt)
+                s.timeout = timer.schedule(new Runnable() {
+                        public void run() {
+                            timedOut(s, attempt);
+                        }
+                    }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens a new session. Called with the lock held.
+     */
+    private void connect() throws IOException {
+        final int g = ++generation;
+        session = new SubmissionSession(server, new Listener(g, true),
+                                        peer, new Listener(g, false));
+        session.setEncoding(encoding);
+    }
+
+    /**
+     * Drops the session of the given generation, if it is still the
+     * current one, and sends again what was in flight on it.
+     */
+    private void lost(int g, IOException cause) {
+        SubmissionSession old;
+        synchronized(this) {
+            if(g != generation || session == null)
+                return;
+            old = session;
+            session = null;
+        }
+        old.close();
+        if(closed)
+            return;
+        System.out.println("Session lost: " + cause + ". Resending what was in flight.");
+        for(Submission s : inFlight.values()) {
+            boolean onLost;
+            synchronized(s) {
+                // Those being sent right now have no timeout yet. Their
+                // sender or their timeout retries them.
+                onLost = s.generation == g && s.timeout != null;
+                if(onLost) {
+                    s.timeout.cancel(false);
+                    s.timeout = null;
+                }
+            }
+            if(onLost)
+                retry(s, cause);
+        }
+    }
+
+    private void timedOut(Submission s, int attempt) {
+        synchronized(s) {
+            if(s.attempts != attempt || s.deferredAttempt == attempt)
+                return;     // Already being sent again
+        }
+        retry(s, new TimeoutException("No verdict on user " + s.user + " after "
+                                      + timeoutMillis + " ms."));
+    }
+
+    /**
+     * Sends a submission again once the endpoint has had time to catch up.
+     */
+    private void retryLater(final Submission s, int attempt) {
+        long delay = Math.min(timeoutMillis, retryDelayMillis << Math.min(attempt - 1, 20));
+        deferred.incrementAndGet();
+        try {
+            timer.schedule(new Runnable() {
+                    public void run() {
+                        retry(s, new IOException("No room for user " + s.user
+                                                  + " after " + s.attempts + " attempts."));
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch(RuntimeException e) {     // Rejected: closed meanwhile
+            fail(s, new IOException("Client closed."));
+        }
+    }
+
+    private void retry(Submission s, Exception cause) {
+        if(s.future.isDone())
+            return;
+        boolean again;
+        synchronized(s) {
+            again = !closed && s.attempts <= retries;
+        }
+        if(!again) {
+            fail(s, cause);
+            return;
+        }
+        resent.incrementAndGet();
+        dispatch(s);
+    }
+
+    private void fail(Submission s, Throwable cause) {
+        if(s.future.completeExceptionally(cause))
+            failed.incrementAndGet();
+    }
+
+    private void complete(Submission s, Verdict verdict) {
+        if(!s.future.complete(verdict))
+            return;
+        switch(verdict) {
+        case ACCEPTED:
+            accepted.incrementAndGet();
+            break;
+        case REJECTED:
+            rejected.incrementAndGet();
+            break;
+        default:
+            ignored.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hears one session of one generation.
+     */
+    private class Listener implements ClientSession.Listener {
+        private final int generation;
+        private final boolean server;
+
+        Listener(int generation, boolean server) {
+            this.generation = generation;
+            this.server = server;
+        }
+
+        public void acknowledged(SessionCodec.Ack ack) {
+            Submission s = inFlight.get(key(ack.getUser(), ack.getEpoch()));
+            if(s == null)
+                return;
+            int bit = ack.getType() == SessionCodec.SHARE
+                ? (server ? SERVER_SHARE : PEER_SHARE)
+                : (server ? SERVER_PROOF : PEER_PROOF);
+            boolean all;
+            int attempt;
+            synchronized(s) {
+                if(s.generation != generation)
+                    return;     // An ack of an earlier attempt
+                attempt = s.attempts;
+                if(ack.getStatus() == SessionCodec.RETRY_LATER) {
+                    if(s.deferredAttempt == attempt)
+                        return; // Both the share and the proof were refused
+                    s.deferredAttempt = attempt;
+                    if(s.timeout != null)
+                        s.timeout.cancel(false);
+                    s.timeout = null;
+                    all = false;
+                }
+                else if(ack.getStatus() != SessionCodec.ACCEPTED
+                         && (attempt == 1 || s.deferredAttempt == attempt)) {
+                    if(s.deferredAttempt == attempt)
+                        return; // E.g. a proof ignored since its share was
+                                // refused. It is sent again anyway.
+                    all = false;
+                }
+                else {
+                    // Accepted, or ignored on a later attempt because an
+                    // earlier one got there. The server then sends the
+                    // verdict again.
+                    s.acks |= bit;
+                    all = s.acks == (SERVER_SHARE | SERVER_PROOF | PEER_SHARE | PEER_PROOF);
+                    if(awaitVerdict || !all)
+                        return;
+                }
+            }
+            if(ack.getStatus() == SessionCodec.RETRY_LATER)
+                retryLater(s, attempt);
+            else if(all)
+                complete(s, Verdict.ACCEPTED);
+            else
+                complete(s, ack.getStatus() == SessionCodec.REJECTED
+                         ? Verdict.REJECTED : Verdict.IGNORED);
+        }
+
+        public void verdict(SessionCodec.Ack verdict) {
+            Submission s = inFlight.get(key(verdict.getUser(), verdict.getEpoch()));
+            if(s != null)
+                complete(s, verdict.getStatus() == SessionCodec.ACCEPTED
+                         ? Verdict.ACCEPTED : Verdict.REJECTED);
+        }
+
+        public void closed(IOException cause) {
+            if(cause != null)
+                lost(generation, cause);
+        }
+    }
+
+    /**
+     * Waits until every submission so far has completed.
+     *
+     * @return <code>false</code> if the time ran out first
+     */
+    public boolean awaitAll(long timeoutMillis) throws InterruptedException {
+        Semaphore p;
+        synchronized(this) {
+            p = permits;
+        }
+        if(p == null)
+            return true;
+        if(!p.tryAcquire(window, timeoutMillis, TimeUnit.MILLISECONDS))
+            return false;
+        p.release(window);
+        return true;
+    }
+
+    /**
+     * @return the number of submissions whose verdict has not come yet
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getIgnored() {
+        return ignored.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of times a submission was sent again
+     */
+    public long getResent() {
+        return resent.get();
+    }
+
+    /**
+     * @return the number of times a submission was told to retry later
+     */
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    /**
+     * Closes the sessions. The submissions still in flight fail.
+     */
+    public void close() {
+        SubmissionSession s;
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            s = session;
+            session = null;
+        }
+        if(provers != null) {
+            provers.shutdownNow();
+            timer.shutdownNow();
+        }
+        if(s != null)
+            s.close();
+        Iterator<Submission> it = inFlight.values().iterator();
+        while(it.hasNext())
+            fail(it.next(), new IOException("Client closed."));
+    }
+
+    public String toString() {
+        return getSubmitted() + " submitted: " + getAccepted() + " accepted, "
+            + getRejected() + " rejected, " + getIgnored() + " ignored, "
+            + getFailed() + " failed, " + getInFlight() + " in flight, "
+            + getResent() + " resent, " + getDeferred() + " told to retry later";
+    }
+}
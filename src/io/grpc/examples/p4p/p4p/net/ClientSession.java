@@ -0,0 +1,445 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * The client end of a session: one connection, opened once, that carries
+ * the {@link SessionCodec} frames of any number of users.
+ * <p>
+ * The <code>send</code> methods only queue the frame in the session's
+ * output buffer and never wait for the acknowledgement, so the frames of
+ * many users are pipelined. {@link #flush()} pushes them out. A reader
+ * thread takes the acknowledgements and verdicts as they come back and
+ * passes them to the {@link Listener}. The counts of frames sent and
+ * acknowledged tell how many are in flight.
+ * <p>
+ * The endpoint may limit the frames in flight with CREDIT frames. A
+ * <code>send</code> then blocks while the window is full.
+ * <p>
+ * The connection is a TCP socket or, to an endpoint on the same host, a
+ * Unix domain socket (see {@link Transport}) or a {@link SharedMemoryLink},
+ * which carry the same frames.
+ * <p>
+ * The methods may be called from any thread. Frames are sent in the order
+ * the calls are made.
+ */
+
+public class ClientSession {
+    /**
+     * Hears what comes back on a session. Called on the reader thread.
+     */
+    public interface Listener {
+        void acknowledged(SessionCodec.Ack ack);
+
+        /**
+         * Called when the server sends the verdict on a user.
+         */
+        void verdict(SessionCodec.Ack verdict);
+
+        /**
+         * Called once when the connection is lost or closed.
+         *
+         * @param cause the failure, or <code>null</code> if the session
+         *              was closed by {@link #close()} or by the other end
+         */
+        void closed(IOException cause);
+    }
+
+    private static final int MAX_FRAME_SIZE = 1<<16;
+
+    private final String name;
+    private final Closeable connection;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Listener listener;
+    private final Thread reader;
+    private final Object writeLock = new Object();
+    private ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+    // Guarded by writeLock
+
+    // The reader thread only takes this, never writeLock, so it keeps
+    // reading acknowledgements while a writer is blocked on the socket.
+    private long sent = 0;          // Guarded by this
+    private long acknowledged = 0;  // Guarded by this
+    private long rejected = 0;      // Guarded by this
+    private long retryLater = 0;    // Guarded by this
+    private int window = Integer.MAX_VALUE;     // Guarded by this
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    /**
+     * Connects to a session endpoint.
+     *
+     * @param listener  hears the acknowledgements. May be <code>null</code>.
+     */
+    public ClientSession(String host, int port, Listener listener) throws IOException {
+        this(Transport.tcp(host, port), listener);
+    }
+
+    /**
+     * Connects to a session endpoint by TCP or a Unix domain socket.
+     *
+     * @param listener  hears the acknowledgements. May be <code>null</code>.
+     */
+    public ClientSession(Transport transport, Listener listener) throws IOException {
+        this(transport.toString(), transport.connect(), listener);
+    }
+
+    /**
+     * Opens a session on a shared-memory link.
+     *
+     * @param listener  hears the acknowledgements. May be <code>null</code>.
+     */
+    public ClientSession(SharedMemoryLink link, Listener listener) {
+        this(link.toString(), link, link.getInput().getInputStream(),
+             link.getOutput().getOutputStream(), listener);
+    }
+
+    private ClientSession(String name, Transport.Connection connection,
+                          Listener listener) {
+        this(name, connection, connection.getInputStream(),
+             connection.getOutputStream(), listener);
+    }
+
+    private ClientSession(String name, Closeable connection, InputStream in,
+                          OutputStream out, Listener listener) {
+        this.name = name;
+        this.listener = listener;
+        this.connection = connection;
+        this.in = in;
+        this.out = new BufferedOutputStream(out, 64*1024);
+
+        this.reader = new Thread(new Runnable() {
+            public void run() {
+                readAcks();
+            }
+        }, "ClientSession-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Opens a session on the shared-memory link in <code>dir</code> if an
+     * endpoint serves one there and no other client has it, otherwise by
+     * TCP.
+     *
+     * @param dir       the link's directory, or <code>null</code> for TCP
+     * @param listener  hears the acknowledgements. May be <code>null</code>.
+     */
+    public static ClientSession open(String host, int port, File dir,
+                                     Listener listener) throws IOException {
+        SharedMemoryLink link = dir == null ? null : SharedMemoryLink.attach(dir);
+        if(link != null)
+            return new ClientSession(link, listener);
+        return new ClientSession(host, port, listener);
+    }
+
+    public void sendShare(int user, int epoch, long F, long[] share,
+                          ShareCodec.Encoding encoding) throws IOException {
+        synchronized(writeLock) {
+            ByteBuffer b = buffer(SessionCodec.shareFrameSize(share.length, F, encoding));
+            SessionCodec.encodeShare(b, user, epoch, F, share, encoding);
+            send(b);
+        }
+    }
+
+    public void sendProof(int user, int epoch, UserVector2.L2NormBoundProof2 proof)
+        throws IOException {
+        synchronized(writeLock) {
+            ByteBuffer b = buffer(SessionCodec.proofFrameSize(proof));
+            SessionCodec.encodeProof(b, user, epoch, proof);
+            send(b);
+        }
+    }
+
+    public void sendY(int user, int epoch, BigInteger[] Y) throws IOException {
+        synchronized(writeLock) {
+            ByteBuffer b = buffer(SessionCodec.yFrameSize(Y.length));
+            SessionCodec.encodeY(b, user, epoch, Y);
+            send(b);
+        }
+    }
+
+    public void sendDisqualify(int user, int epoch) throws IOException {
+        synchronized(writeLock) {
+            ByteBuffer b = buffer(SessionCodec.DISQUALIFY_SIZE);
+            SessionCodec.encodeDisqualify(b, user, epoch);
+            send(b);
+        }
+    }
+
+    /**
+     * Sends the peer's sum of the epoch.
+     */
+    public void sendPeerSum(int epoch, long[] sum) throws IOException {
+        synchronized(writeLock) {
+            ByteBuffer b = buffer(SessionCodec.peerSumFrameSize(sum.length));
+            SessionCodec.encodePeerSum(b, epoch, sum);
+            send(b);
+        }
+    }
+
+    /**
+     * @return the frame buffer, cleared and at least <code>size</code>
+     *         bytes long
+     */
+    private ByteBuffer buffer(int size) throws IOException {
+        checkOpen();
+        if(buffer.capacity() < size)
+            buffer = ByteBuffer.allocate(Math.max(size, 2*buffer.capacity()));
+        buffer.clear();
+        return buffer;
+    }
+
+    private void send(ByteBuffer b) throws IOException {
+        awaitCredit();
+        out.write(b.array(), 0, b.position());
+        synchronized(this) {
+            sent++;
+        }
+    }
+
+    /**
+     * Waits until the window has room for one more frame. Called with the
+     * write lock held.
+     */
+    private void awaitCredit() throws IOException {
+        synchronized(this) {
+            if(sent - acknowledged < window)
+                return;
+        }
+        out.flush();    // What is buffered must go out to be acknowledged
+        synchronized(this) {
+            while(sent - acknowledged >= window) {
+                checkOpen();
+                try {
+                    wait();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for credit.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the frames queued so far.
+     */
+    public void flush() throws IOException {
+        synchronized(writeLock) {
+            checkOpen();
+            out.flush();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if(failure != null)
+            throw failure;
+        if(closed)
+            throw new IOException("Session to " + name + " closed.");
+    }
+
+    private void readAcks() {
+        IOException cause = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(this.in));
+            while(true) {
+                ByteBuffer frame = SessionCodec.readFrame(in, MAX_FRAME_SIZE);
+                byte type = SessionCodec.getType(frame);
+                if(type == SessionCodec.VERDICT) {
+                    SessionCodec.Ack verdict = SessionCodec.decodeVerdict(frame);
+                    if(listener != null)
+                        listener.verdict(verdict);
+                    continue;
+                }
+                if(type == SessionCodec.CREDIT) {
+                    int w = SessionCodec.decodeCredit(frame);
+                    synchronized(this) {
+                        window = w;
+                        notifyAll();
+                    }
+                    continue;
+                }
+                if(type != SessionCodec.ACK)
+                    throw new IOException("Unexpected frame on session to " + name + ".");
+                SessionCodec.Ack ack = SessionCodec.decodeAck(frame);
+                synchronized(this) {
+                    acknowledged++;
+                    if(ack.getStatus() == SessionCodec.REJECTED)
+                        rejected++;
+                    else if(ack.getStatus() == SessionCodec.RETRY_LATER)
+                        retryLater++;
+                    notifyAll();
+                }
+                if(listener != null)
+                    listener.acknowledged(ack);
+            }
+        }
+        catch(EOFException e) {
+        }
+        catch(IOException e) {
+            if(!closed)
+                cause = e;
+        }
+        failure = cause != null ? cause
+            : new IOException("Session to " + name + " closed.");
+        closeConnection();
+        synchronized(this) {
+            notifyAll();
+        }
+        if(listener != null)
+            listener.closed(cause);
+    }
+
+    /**
+     * Waits until every frame sent so far has been acknowledged. Flushes
+     * first.
+     *
+     * @return <code>false</code> if the time ran out first
+     * @throws IOException if the session fails meanwhile
+     */
+    public boolean awaitAcknowledged(long timeoutMillis)
+        throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        flush();
+        synchronized(this) {
+            while(acknowledged < sent) {
+                if(failure != null)
+                    throw failure;
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0)
+                    return false;
+                wait(wait);
+            }
+        }
+        return true;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of frames the endpoint had no room for
+     */
+    public synchronized long getRetryLater() {
+        return retryLater;
+    }
+
+    /**
+     * @return the credit window, <code>Integer.MAX_VALUE</code> until the
+     *         endpoint sets one
+     */
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of frames sent but not acknowledged yet
+     */
+    public synchronized long getInFlight() {
+        return sent - acknowledged;
+    }
+
+    public boolean isOpen() {
+        return !closed && failure == null;
+    }
+
+    /**
+     * Sends what is queued and closes the connection. Acknowledgements not
+     * received yet are lost.
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            notifyAll();        // A writer waiting for credit gives up
+        }
+        synchronized(writeLock) {
+            try {
+                if(failure == null)
+                    out.flush();
+            }
+            catch(IOException e) {
+            }
+        }
+        closeConnection();
+        if(Thread.currentThread() == reader)
+            return;     // Closed by the listener
+        try {
+            reader.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeConnection() {
+        try {
+            connection.close();
+        }
+        catch(IOException e) {
+        }
+    }
+
+    public String toString() {
+        return "Session to " + name + ": " + getSent() + " sent, "
+            + getAcknowledged() + " acknowledged, " + getRejected() + " rejected, "
+            + getRetryLater() + " to retry later";
+    }
+}
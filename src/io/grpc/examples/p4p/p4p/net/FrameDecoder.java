@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts the bytes read from a connection into frames.
+ * <p>
+ * {@link NioServer} calls {@link #decode(ByteBuffer)} whenever new bytes
+ * arrive, with the buffer flipped so that the unconsumed bytes are between
+ * its position and limit. The bytes may stop anywhere, in the middle of a
+ * frame or even of its header. A decoder instance belongs to one
+ * connection so it may keep state between calls.
+ */
+
+public interface FrameDecoder {
+    /**
+     * Decodes the next frame.
+     *
+     * @param in    the bytes received and not consumed yet
+     * @return the frame, with the position of <code>in</code> moved past
+     *         it, or <code>null</code> if <code>in</code> does not hold a
+     *         whole frame yet. In that case nothing must be consumed.
+     * @throws IOException if the bytes are not a valid frame. The
+     *         connection is closed.
+     */
+    Object decode(ByteBuffer in) throws IOException;
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames that start with their length, a 2 or 4 byte big endian
+ * unsigned integer that does not count itself. With a 2 byte length this
+ * is the format of <code>DataOutputStream.writeUTF</code>.
+ * <p>
+ * The frame is returned as a read-only slice of the connection's read
+ * buffer, positioned after the length. It is only valid until the handler
+ * returns from <code>frameReceived</code>. Copy it to keep it longer.
+ */
+
+public class LengthPrefixedDecoder implements FrameDecoder {
+    private final int lengthBytes;
+    private final int maxFrameSize;
+
+    /**
+     * @param lengthBytes   the size of the length field: 2 or 4
+     * @param maxFrameSize  the largest frame, not counting the length,
+     *                      accepted
+     */
+    public LengthPrefixedDecoder(int lengthBytes, int maxFrameSize) {
+        if(lengthBytes != 2 && lengthBytes != 4)
+            throw new IllegalArgumentException("Length must be 2 or 4 bytes.");
+        if(maxFrameSize < 0)
+            throw new IllegalArgumentException("Maximum frame size must not be negative.");
+        this.lengthBytes = lengthBytes;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public Object decode(ByteBuffer in) throws IOException {
+        if(in.remaining() < lengthBytes)
+            return null;
+
+        int start = in.position();
+        long length = lengthBytes == 2 ? in.getShort(start) & 0xffff
+            : in.getInt(start) & 0xffffffffL;
+        if(length > maxFrameSize)
+            throw new IOException("Frame of " + length + " bytes exceeds the limit of "
+                                  + maxFrameSize + ".");
+        if(in.remaining() < lengthBytes + length)
+            return null;
+
+        ByteBuffer frame = in.duplicate();
+        frame.position(start + lengthBytes);
+        frame.limit(start + lengthBytes + (int)length);
+        in.position(frame.limit());
+        return frame.slice().asReadOnlyBuffer();
+    }
+}
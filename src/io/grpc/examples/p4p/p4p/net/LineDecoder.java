@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes lines of text ended by <code>'\n'</code>. A <code>'\r'</code>
+ * before it is dropped too. The bytes are read as ISO-8859-1 so any byte
+ * sequence comes back unchanged when written out the same way.
+ */
+
+public class LineDecoder implements FrameDecoder {
+    private int scanned = 0;
+    // The number of bytes after the position already known not to be '\n'.
+    // Saves scanning a long partial line again for every read.
+
+    public Object decode(ByteBuffer in) {
+        int start = in.position();
+        int end = in.limit();
+        for(int i = start + scanned; i < end; i++) {
+            if(in.get(i) != '\n')
+                continue;
+
+            int lineEnd = i;
+            if(lineEnd > start && in.get(lineEnd-1) == '\r')
+                lineEnd--;
+            byte[] b = new byte[lineEnd - start];
+            in.get(b);
+            in.position(i+1);
+            scanned = 0;
+            return new String(b, StandardCharsets.ISO_8859_1);
+        }
+        scanned = end - start;
+        return null;
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ring buffer in a memory-mapped file that carries a stream of bytes from
+ * one thread to another, which may be in another process on the same host.
+ * <p>
+ * The header of the file holds two sequence counters, each on a cache line
+ * of its own: the number of bytes written so far, advanced only by the
+ * writer, and the number read so far, advanced only by the reader. The
+ * bytes between the two are in the ring. The writer copies into the free
+ * part of the ring and then publishes its new count, the reader copies out
+ * and publishes its own, so a transfer costs one copy on either side and
+ * no lock. There must be at most one writer and one reader.
+ * <p>
+ * A side that finds the ring full, or empty, spins for a moment, if there
+ * is more than one processor, and then parks for growing periods of up to 100us, since the other side
+ * cannot wake it.
+ * <p>
+ * Closing the write end lets the reader read what is left and then see the
+ * end of the stream. Closing the read end makes the writes fail.
+ */
+
+public class MappedRing {
+    private static final int MAGIC = 0x50345052;
+    private static final int MAGIC_AT = 0;
+    private static final int CAPACITY_AT = 4;
+    private static final int WRITER_AT = 8;         // 1 once a writer attached
+    private static final int WRITE_CLOSED_AT = 12;
+    private static final int READ_CLOSED_AT = 16;
+    private static final int WRITTEN_AT = 64;
+    private static final int READ_AT = 128;
+    private static final int HEADER_SIZE = 192;
+
+    private static final int SPINS =
+        Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+    // On one processor spinning only delays the other side
+    private static final int YIELDS = 100;
+    private static final long MAX_PARK = 100000;    // In ns
+
+    private static final VarHandle INT =
+        MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final ByteBuffer data;
+    private final int capacity;
+    private volatile boolean closed = false;
+
+    private MappedRing(File file, RandomAccessFile raf, MappedByteBuffer map,
+                       int capacity) {
+        this.file = file;
+        this.raf = raf;
+        this.map = map;
+        this.capacity = capacity;
+        map.position(HEADER_SIZE);
+        this.data = map.slice();
+        map.clear();
+    }
+
+    /**
+     * Creates a new, empty ring in the given file. An existing file is
+     * deleted first, so that whoever still has it mapped keeps the old ring.
+     *
+     * @param capacity  the size of the ring in bytes
+     */
+    public static MappedRing create(File f, int capacity) throws IOException {
+        if(capacity < 1 || capacity > Integer.MAX_VALUE - HEADER_SIZE)
+            throw new IllegalArgumentException("Ring capacity out of range: " + capacity);
+
+        f.delete();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        MappedByteBuffer map;
+        try {
+            raf.setLength(HEADER_SIZE + capacity);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                       HEADER_SIZE + capacity);
+        }
+        catch(IOException e) {
+            raf.close();
+            throw e;
+        }
+        map.order(ByteOrder.nativeOrder());
+        map.putInt(CAPACITY_AT, capacity);
+        INT.setRelease(map, MAGIC_AT, MAGIC);   // Last, so that open sees a whole header
+        return new MappedRing(f, raf, map, capacity);
+    }
+
+    /**
+     * Maps a ring another thread or process has created.
+     *
+     * @throws IOException if the file is not there or is not a ring
+     */
+    public static MappedRing open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            long length = raf.length();
+            if(length < HEADER_SIZE)
+                throw new IOException(f + " is not a ring.");
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                        0, length);
+            map.order(ByteOrder.nativeOrder());
+            int capacity = map.getInt(CAPACITY_AT);
+            if((int)INT.getAcquire(map, MAGIC_AT) != MAGIC
+               || capacity < 1 || HEADER_SIZE + (long)capacity != length)
+                throw new IOException(f + " is not a ring.");
+            return new MappedRing(f, raf, map, capacity);
+        }
+        catch(IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Claims the write end, for the one writer.
+     *
+     * @return <code>false</code> if another writer has it
+     */
+    public boolean attachWriter() {
+        return INT.compareAndSet(map, WRITER_AT, 0, 1);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes all of <code>src</code>, waiting for room as needed.
+     *
+     * @throws IOException if the read end is closed, or this ring is
+     */
+    public void write(ByteBuffer src) throws IOException {
+        int idle = 0;
+        while(src.hasRemaining()) {
+            if((int)INT.getAcquire(map, READ_CLOSED_AT) != 0)
+                throw new IOException("Read end of " + file + " closed.");
+            checkOpen();
+            long w = (long)LONG.getOpaque(map, WRITTEN_AT);     // Only we change it
+            long free = capacity - (w - (long)LONG.getAcquire(map, READ_AT));
+            if(free == 0) {
+                idle = idle(idle);
+                continue;
+            }
+            idle = 0;
+            int at = (int)(w % capacity);
+            int n = (int)Math.min(Math.min(free, src.remaining()), capacity - at);
+            ByteBuffer d = data.duplicate();
+            d.position(at);
+            ByteBuffer s = src.duplicate();
+            s.limit(s.position() + n);
+            d.put(s);
+            src.position(src.position() + n);
+            LONG.setRelease(map, WRITTEN_AT, w + n);
+        }
+    }
+
+    /**
+     * Reads what is in the ring, up to the room in <code>dst</code>,
+     * waiting until there is something.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if(!dst.hasRemaining())
+            return 0;
+
+        int idle = 0;
+        long r = (long)LONG.getOpaque(map, READ_AT);    // Only we change it
+        long available;
+        while((available = (long)LONG.getAcquire(map, WRITTEN_AT) - r) == 0) {
+            if((int)INT.getAcquire(map, WRITE_CLOSED_AT) != 0
+               && (long)LONG.getAcquire(map, WRITTEN_AT) == r)
+                return -1;
+            checkOpen();
+            idle = idle(idle);
+        }
+
+        int total = 0;
+        while(available > 0 && dst.hasRemaining()) {
+            int at = (int)(r % capacity);
+            int n = (int)Math.min(Math.min(available, dst.remaining()), capacity - at);
+            ByteBuffer s = data.duplicate();
+            s.position(at);
+            s.limit(at + n);
+            dst.put(s);
+            r += n;
+            available -= n;
+            total += n;
+        }
+        LONG.setRelease(map, READ_AT, r);
+        return total;
+    }
+
+    /**
+     * Waits a little longer each time it is called in a row.
+     *
+     * @return the count of calls in a row
+     */
+    private int idle(int idle) throws InterruptedIOException {
+        if(idle < SPINS)
+            Thread.onSpinWait();
+        else if(idle < SPINS + YIELDS)
+            Thread.yield();
+        else {
+            LockSupport.parkNanos(Math.min(MAX_PARK, 1000L << Math.min(20, idle - SPINS - YIELDS)));
+            if(Thread.interrupted())
+                throw new InterruptedIOException("Interrupted while waiting on " + file + ".");
+        }
+        return idle + 1;
+    }
+
+    private void checkOpen() throws IOException {
+        if(closed)
+            throw new IOException(file + " closed.");
+    }
+
+    /**
+     * @return a stream that reads from the ring. The reads block as
+     *         {@link #read(ByteBuffer)} does.
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return MappedRing.this.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            public int available() {
+                return (int)Math.min(Integer.MAX_VALUE,
+                                     (long)LONG.getAcquire(map, WRITTEN_AT)
+                                     - (long)LONG.getAcquire(map, READ_AT));
+            }
+        };
+    }
+
+    /**
+     * @return a stream that writes to the ring. Every write is visible to
+     *         the reader when it returns; <code>flush</code> does nothing.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                MappedRing.this.write(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * Tells the reader that nothing more will be written.
+     */
+    public void closeWrite() {
+        INT.setRelease(map, WRITE_CLOSED_AT, 1);
+    }
+
+    /**
+     * Tells the writer that nothing more will be read.
+     */
+    public void closeRead() {
+        INT.setRelease(map, READ_CLOSED_AT, 1);
+    }
+
+    /**
+     * Closes this handle. A read or write blocked on it fails. The file is
+     * unmapped when the buffer is garbage collected.
+     */
+    public void close() {
+        closed = true;
+        try {
+            raf.close();
+        }
+        catch(IOException e) {
+        }
+    }
+
+    public String toString() {
+        long written = (long)LONG.getAcquire(map, WRITTEN_AT);
+        long read = (long)LONG.getAcquire(map, READ_AT);
+        return file + ": " + written + " bytes written, " + read + " read, "
+            + capacity + " capacity";
+    }
+}
@@ -0,0 +1,677 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking server. A fixed number of event loop threads, each with
+ * its own {@link Selector}, serve all the connections, however many there
+ * are. A connection stays on the loop it was given when it was accepted.
+ * <p>
+ * Each connection has a direct read buffer and a direct write buffer.
+ * What is read is cut into frames by the connection's
+ * {@link FrameDecoder}, which copes with frames that arrive in pieces, and
+ * each frame is passed to the {@link Handler}. The read buffer grows, up to
+ * {@link #setMaxFrameSize(int)}, when a frame does not fit. Writes never
+ * block. Whatever the socket does not take right away is queued and sent
+ * when it becomes writable.
+ * <p>
+ * Handlers run on the loop thread and must not block, since every other
+ * connection on the loop waits meanwhile. Work that takes a while should be
+ * handed to another thread, which can reply through
+ * {@link Connection#write(ByteBuffer)}.
+ * <p>
+ * The number of open connections can be capped with
+ * {@link #setMaxConnections(int)}. At the cap the server stops accepting
+ * until a connection closes, so new clients wait in the listen backlog
+ * instead of each taking two buffers.
+ * <p>
+ * The server listens on TCP unless given another {@link Transport}, e.g.
+ * a Unix domain socket.
+ */
+
+public class NioServer {
+    /**
+     * Serves the connections of a server. One instance serves all of them
+     * so it must be thread safe if there is more than one loop.
+     */
+    public interface Handler {
+        /**
+         * @return a new decoder for a new connection
+         */
+        FrameDecoder newDecoder();
+
+        /**
+         * Called on the connection's loop thread for every frame.
+         *
+         * @throws IOException to close the connection
+         */
+        void frameReceived(Connection c, Object frame) throws IOException;
+
+        /**
+         * Called on the connection's loop thread once the connection is
+         * closed, by either end.
+         */
+        void closed(Connection c);
+    }
+
+    private final String name;
+    private final int port;
+    private final Handler handler;
+    private Transport transport;
+    private int nLoops = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+    private int bufferSize = 16*1024;
+    private int maxFrameSize = 16*1024*1024;
+    private int maxConnections = Integer.MAX_VALUE;
+
+    private ServerSocketChannel serverChannel = null;
+    private SelectionKey acceptKey = null;
+    private boolean acceptPaused = false;   // Only touched by loop 0
+    private EventLoop[] loops = null;
+    private int nextLoop = 0;
+    private volatile boolean closed = false;
+
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final AtomicLong accepted = new AtomicLong(0);
+    private final AtomicLong pauses = new AtomicLong(0);
+    private final AtomicLong frames = new AtomicLong(0);
+    private final AtomicLong bytesRead = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+
+    /**
+     * @param name      the name of the server. Used for the thread names
+     *                  and in messages.
+     * @param port      the port to listen on. 0 picks a free port.
+     * @param handler   serves the connections
+     */
+    public NioServer(String name, int port, Handler handler) {
+        if(handler == null)
+            throw new IllegalArgumentException("Handler must not be null.");
+        this.name = name;
+        this.port = port;
+        this.handler = handler;
+        this.transport = Transport.tcp(null, port);
+    }
+
+    /**
+     * Sets where to listen. Must be called before the server is started.
+     */
+    public void setTransport(Transport transport) {
+        checkNotStarted();
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the number of event loop threads. Must be called before the
+     * server is started.
+     */
+    public void setThreads(int nLoops) {
+        if(nLoops < 1)
+            throw new IllegalArgumentException("Need at least one thread.");
+        checkNotStarted();
+        this.nLoops = nLoops;
+    }
+
+    /**
+     * Sets the initial size of the read buffer and the size of the write
+     * buffer of each connection. Must be called before the server is
+     * started.
+     */
+    public void setBufferSize(int bufferSize) {
+        if(bufferSize < 64)
+            throw new IllegalArgumentException("Buffer too small.");
+        checkNotStarted();
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the size the read buffer may grow to. A connection that sends a
+     * frame larger than this is closed. Must be called before the server
+     * is started.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        checkNotStarted();
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Sets the largest number of connections open at once. Must be called
+     * before the server is started.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if(maxConnections < 1)
+            throw new IllegalArgumentException("Need at least one connection.");
+        checkNotStarted();
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the number of threads and the transport from command line style
+     * arguments: <code>-t threads -unix dir</code>, see
+     * {@link Transport#configure(String[], String, int)}. Unknown arguments
+     * are ignored.
+     */
+    public void configure(String[] args) {
+        setTransport(Transport.configure(args, null, port));
+        for(int i = 0; i < args.length - 1; i++) {
+            if(!args[i].equals("-t"))
+                continue;
+            try {
+                setThreads(Integer.parseInt(args[++i]));
+            }
+            catch(NumberFormatException e) {
+                System.out.println("Bad argument to -t: " + args[i]);
+            }
+        }
+    }
+
+    private void checkNotStarted() {
+        if(loops != null)
+            throw new IllegalStateException("Server already started.");
+    }
+
+    /**
+     * Binds the port and starts the event loops.
+     */
+    public synchronized void start() throws IOException {
+        checkNotStarted();
+
+        EventLoop[] l = new EventLoop[nLoops];
+        for(int i = 0; i < nLoops; i++)
+            l[i] = new EventLoop(i);
+
+        serverChannel = transport.bind(1024);
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(l[0].selector, SelectionKey.OP_ACCEPT);
+
+        loops = l;
+        for(int i = 0; i < nLoops; i++) {
+            l[i].thread = new Thread(l[i], name + "-loop-" + i);
+            l[i].thread.start();
+        }
+        System.out.println(name + " is listening on "
+                           + (transport.isUnix() ? transport.toString() : "port " + getPort())
+                           + " with " + nLoops + " event loops");
+    }
+
+    /**
+     * Stops the loops and closes the listening socket and all the
+     * connections.
+     */
+    public void close() {
+        closed = true;
+        EventLoop[] l = loops;
+        if(l == null)
+            return;
+        for(int i = 0; i < l.length; i++)
+            l[i].selector.wakeup();
+    }
+
+    /**
+     * Waits for the loops to stop after {@link #close()}.
+     */
+    public void join() throws InterruptedException {
+        EventLoop[] l = loops;
+        if(l == null)
+            return;
+        for(int i = 0; i < l.length; i++)
+            l[i].thread.join();
+    }
+
+    /**
+     * @return the port the server listens on. The actual port if it was
+     *         constructed with 0.
+     */
+    public int getPort() {
+        ServerSocketChannel ch = serverChannel;
+        try {
+            return ch == null ? port : transport.getLocalPort(ch);
+        }
+        catch(IOException e) {
+            return port;
+        }
+    }
+
+    /**
+     * @return the number of connections open right now
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of times accepting was paused because the server
+     *         was at {@link #getMaxConnections()}
+     */
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public String toString() {
+        return name + ": " + getConnections() + " connections (" + getAccepted()
+            + " accepted), " + getFrames() + " frames, " + getBytesRead()
+            + " bytes read, " + getBytesWritten() + " bytes written";
+    }
+
+    /**
+     * Takes all pending connections and gives them to the loops in turn.
+     * Runs on loop 0.
+     */
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while(true) {
+            if(connections.get() >= maxConnections) {
+                acceptKey.interestOps(0);
+                acceptPaused = true;
+                pauses.incrementAndGet();
+                // In case one closed meanwhile:
+                if(connections.get() < maxConnections)
+                    resumeAccept();
+                return;
+            }
+            if((ch = serverChannel.accept()) == null)
+                return;
+            ch.configureBlocking(false);
+            Transport.setOptions(ch);
+            accepted.incrementAndGet();
+            connections.incrementAndGet();
+
+            final EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            final Connection c = new Connection(ch, loop);
+            loop.execute(new Runnable() {
+                public void run() {
+                    c.register();
+                }
+            });
+        }
+    }
+
+    /**
+     * Accepts again after a pause. Runs on loop 0.
+     */
+    private void resumeAccept() {
+        if(!acceptPaused || !acceptKey.isValid())
+            return;
+        acceptPaused = false;
+        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+    }
+
+    private final Runnable resumer = new Runnable() {
+        public void run() {
+            resumeAccept();
+        }
+    };
+
+    private class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks =
+            new ConcurrentLinkedQueue<Runnable>();
+        private Thread thread = null;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on this loop. May be called from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if(Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        public void run() {
+            while(!closed) {
+                // Tasks first: those the loop queued for itself do not wake
+                // the selector.
+                Runnable task;
+                while((task = tasks.poll()) != null)
+                    task.run();
+
+                try {
+                    selector.select();
+                }
+                catch(IOException e) {
+                    System.out.println(name + ": select failed: " + e);
+                    break;
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(key.attachment() == null) {
+                        try {
+                            accept();
+                        }
+                        catch(IOException e) {
+                            System.out.println(name + ": accept failed: " + e);
+                        }
+                        continue;
+                    }
+
+                    Connection c = (Connection)key.attachment();
+                    try {
+                        if(key.isReadable())
+                            c.read();
+                        if(key.isValid() && key.isWritable())
+                            c.flush();
+                    }
+                    catch(CancelledKeyException e) {
+                        c.close();
+                    }
+                    catch(IOException e) {
+                        c.close();
+                    }
+                    catch(RuntimeException e) {
+                        System.out.println(name + ": handler failed on "
+                                           + c.getRemoteAddress() + ": " + e);
+                        c.close();
+                    }
+                }
+            }
+
+            // Closed. Tear down what this loop owns:
+            Runnable task;
+            while((task = tasks.poll()) != null)
+                task.run();
+            for(SelectionKey key : selector.keys()) {
+                if(key.attachment() != null)
+                    ((Connection)key.attachment()).doClose();
+            }
+            try {
+                if(index == 0)
+                    transport.unbind(serverChannel);
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+        }
+    }
+
+    /**
+     * A connection to a client. Its methods may be called from any thread.
+     */
+    public final class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final FrameDecoder decoder;
+        private SelectionKey key = null;
+        private ByteBuffer in;
+        // Read buffer, in write mode. Only touched by the loop.
+        private final ByteBuffer out;
+        // Write buffer, in write mode: the bytes pending are from 0 to the
+        // position. Guarded by this.
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        // What did not fit in out. Guarded by this.
+        private boolean flushScheduled = false;
+        private volatile boolean open = true;
+        private volatile Object attachment = null;
+
+        private final Runnable flusher = new Runnable() {
+            public void run() {
+                synchronized(Connection.this) {
+                    flushScheduled = false;
+                }
+                try {
+                    flush();
+                }
+                catch(IOException e) {
+                    close();
+                }
+            }
+        };
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.decoder = handler.newDecoder();
+            this.in = ByteBuffer.allocateDirect(bufferSize);
+            this.out = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        private void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            }
+            catch(IOException e) {
+                doClose();
+            }
+        }
+
+        public SocketAddress getRemoteAddress() {
+            try {
+                return channel.getRemoteAddress();
+            }
+            catch(IOException e) {
+                return null;
+            }
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Attaches an object, e.g. the state of a protocol, to the
+         * connection.
+         */
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        /**
+         * Reads what has arrived and hands the complete frames to the
+         * handler.
+         */
+        private void read() throws IOException {
+            int n = channel.read(in);
+            if(n < 0) {
+                close();
+                return;
+            }
+            bytesRead.addAndGet(n);
+
+            in.flip();
+            try {
+                Object frame;
+                while(open && (frame = decoder.decode(in)) != null) {
+                    frames.incrementAndGet();
+                    handler.frameReceived(this, frame);
+                }
+            }
+            finally {
+                in.compact();
+            }
+
+            if(!in.hasRemaining()) {
+                // A frame larger than the buffer
+                if(in.capacity() >= maxFrameSize)
+                    throw new IOException("Frame larger than " + maxFrameSize + " bytes.");
+                ByteBuffer b = ByteBuffer.allocateDirect((int)Math.min(maxFrameSize,
+                                                                       2L*in.capacity()));
+                in.flip();
+                b.put(in);
+                in = b;
+            }
+        }
+
+        /**
+         * Queues bytes to be sent. Never blocks. The bytes from the
+         * position to the limit of <code>src</code> are taken, the buffer
+         * can be reused as soon as this returns.
+         */
+        public void write(ByteBuffer src) {
+            if(!open)
+                return;
+
+            boolean schedule;
+            synchronized(this) {
+                if(pending.isEmpty() && out.remaining() >= src.remaining())
+                    out.put(src);
+                else {
+                    ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+                    copy.put(src);
+                    copy.flip();
+                    pending.add(copy);
+                }
+                schedule = !flushScheduled;
+                flushScheduled = true;
+            }
+            if(schedule)
+                loop.execute(flusher);
+        }
+
+        public void write(byte[] b) {
+            write(ByteBuffer.wrap(b));
+        }
+
+        /**
+         * Sends as much as the socket takes. Runs on the loop.
+         */
+        private void flush() throws IOException {
+            if(!open || key == null)
+                return;
+
+            synchronized(this) {
+                while(true) {
+                    while(!pending.isEmpty() && out.hasRemaining()) {
+                        ByteBuffer b = pending.peek();
+                        if(b.remaining() <= out.remaining()) {
+                            out.put(b);
+                            pending.poll();
+                        }
+                        else {
+                            ByteBuffer part = b.duplicate();
+                            part.limit(part.position() + out.remaining());
+                            out.put(part);
+                            b.position(part.position());
+                        }
+                    }
+
+                    out.flip();
+                    int n = channel.write(out);
+                    bytesWritten.addAndGet(n);
+                    boolean drained = !out.hasRemaining();
+                    out.compact();
+                    if(!drained || pending.isEmpty())
+                        break;
+                }
+
+                boolean more = out.position() > 0 || !pending.isEmpty();
+                key.interestOps(more ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                : SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Closes the connection. Bytes not sent yet are dropped.
+         */
+        public void close() {
+            if(loop.inLoop())
+                doClose();
+            else {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        doClose();
+                    }
+                });
+            }
+        }
+
+        private void doClose() {
+            if(!open)
+                return;
+            open = false;
+            if(key != null)
+                key.cancel();
+            try {
+                channel.close();
+            }
+            catch(IOException e) {
+            }
+            if(connections.decrementAndGet() == maxConnections - 1)
+                loops[0].execute(resumer);
+            handler.closed(this);
+        }
+    }
+}
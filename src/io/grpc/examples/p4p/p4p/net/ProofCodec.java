@@ -0,0 +1,527 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import io.grpc.examples.p4p.p4p.crypto.AggregateSquareCommitment;
+import io.grpc.examples.p4p.p4p.crypto.BitCommitment;
+import io.grpc.examples.p4p.p4p.crypto.Proof;
+import io.grpc.examples.p4p.p4p.crypto.RangeCommitment;
+import io.grpc.examples.p4p.p4p.crypto.SquareCommitment;
+import io.grpc.examples.p4p.p4p.crypto.ThreeWayCommitment;
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+
+/**
+ * The binary wire format of an L2 norm bound proof, instead of Java
+ * serialization.
+ * <p>
+ * Serializing a <code>UserVector2.L2NormBoundProof2</code> also serializes
+ * the <code>UserVector2</code> it belongs to, i.e. the user's data, both
+ * shares and the challenge vectors, and the commitment objects behind the
+ * sub-proofs, with their committed values and randomness. This format
+ * carries only the numbers the verifier needs:
+ * <pre>
+ *   int     length of the rest of the frame
+ *   byte    version (1)
+ *   byte    flags: 1 = server proof, 2 = aggregated squares,
+ *                  4 = inner product range proof
+ *   int     user ID
+ *   int     epoch
+ *   short   W, the width of a number in bytes
+ *   int     N, the number of checksums
+ *   long    the N checksums
+ *   W       the N checksum randomness
+ * and in a server proof:
+ *   W       the commitment to 2*(sum of squares)
+ *   W       the N modular reduction correctors B_i
+ *   W       the N 3-way proofs, each two bit proofs. The 3-way commitment
+ *           itself is B_i so it is not repeated.
+ *   W       the N square proofs, or one aggregated square proof
+ *   int     the number of bits in the range
+ *   ...     the bit proofs, one per bit, or the inner product range proof
+ *           (int rounds, V A S T1 T2, tau_x mu t a b, L and R)
+ * </pre>
+ * A bit proof is 3 commitments, a challenge and 4 responses. A square
+ * proof is 4 commitments, a challenge and 3 responses. Every number is a
+ * group element or a scalar, so it is less than p and is written unsigned
+ * in W = ceil(|p|/8) bytes, big endian like the rest.
+ * <p>
+ * A codec instance decodes proofs for the verifier's vector it was made
+ * with. The numbers are read straight out of the frame, without an
+ * intermediate copy if it is a heap buffer. Decoding is thread safe.
+ */
+
+public class ProofCodec extends P4PParameters {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 1 + 1 + 4 + 4 + 2 + 4;
+
+    private static final int SERVER = 1;
+    private static final int AGGREGATED = 2;
+    private static final int INNER_PRODUCT = 4;
+
+    private static final int MAX_BITS = 4096;
+    private static final int MAX_ROUNDS = 32;
+
+    /**
+     * The fixed part of a frame, enough to log or route it.
+     */
+    public static class Header {
+        private final int flags;
+        private final int user;
+        private final int epoch;
+        private final int width;
+        private final int N;
+
+        Header(int flags, int user, int epoch, int width, int N) {
+            this.flags = flags;
+            this.user = user;
+            this.epoch = epoch;
+            this.width = width;
+            this.N = N;
+        }
+
+        public boolean isForServer() {
+            return (flags & SERVER) != 0;
+        }
+
+        public boolean isAggregated() {
+            return (flags & AGGREGATED) != 0;
+        }
+
+        public boolean isInnerProduct() {
+            return (flags & INNER_PRODUCT) != 0;
+        }
+
+        public int getUser() {
+            return user;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return the width of a number in bytes
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return the number of checksums
+         */
+        public int getN() {
+            return N;
+        }
+    }
+
+    /**
+     * A decoded proof and who sent it.
+     */
+    public static class UserProof {
+        private final Header header;
+        private final UserVector2.L2NormBoundProof2 proof;
+
+        UserProof(Header header, UserVector2.L2NormBoundProof2 proof) {
+            this.header = header;
+            this.proof = proof;
+        }
+
+        public int getUser() {
+            return header.getUser();
+        }
+
+        public int getEpoch() {
+            return header.getEpoch();
+        }
+
+        public UserVector2.L2NormBoundProof2 getProof() {
+            return proof;
+        }
+    }
+
+    private final UserVector2 owner;
+    private final BitCommitment bc;
+    private final SquareCommitment sc;
+    private final ThreeWayCommitment tc;
+    private final int width;
+
+    /**
+     * @param owner the verifier's vector. The decoded proofs belong to it.
+     */
+    public ProofCodec(UserVector2 owner) {
+        this.owner = owner;
+        this.bc = new BitCommitment(owner.getG(), owner.getH());
+        this.sc = new SquareCommitment(owner.getG(), owner.getH());
+        this.tc = new ThreeWayCommitment(owner.getG(), owner.getH(), owner.getF());
+        this.width = elementWidth();
+    }
+
+    /**
+     * @return W, the number of bytes a number takes
+     */
+    public static int elementWidth() {
+        return (p.bitLength() + 7)/8;
+    }
+
+    /**
+     * @return the size of the frame of a proof, length included
+     */
+    public static int encodedSize(UserVector2.L2NormBoundProof2 proof) {
+        int W = elementWidth();
+        int N = proof.getChecksums().length;
+        int size = 4 + HEADER_SIZE + N*8 + N*W;
+        if(!proof.isForServer())
+            return size;
+
+        size += W + N*W + N*2*8*W;
+        if(proof.getAggregateSquareProof() != null)
+            size += (5*N + 3)*W;
+        else
+            size += N*8*W;
+        size += 4;
+        RangeCommitment.RangeCommitmentProof rp = proof.getRangeProof();
+        if(rp != null)
+            size += 4 + 10*W + 2*rp.getL().length*W;
+        else
+            size += proof.getBitCommitmentProofs().length*8*W;
+        return size;
+    }
+
+    /**
+     * Writes the frame of a proof, length included, to <code>out</code>.
+     *
+     * @throws IllegalArgumentException if the proof is incomplete or
+     *         malformed
+     * @throws java.nio.BufferOverflowException if <code>out</code> does
+     *         not have {@link #encodedSize} bytes left
+     */
+    public static void encode(ByteBuffer out, int user, int epoch,
+                              UserVector2.L2NormBoundProof2 proof) {
+        int W = elementWidth();
+        long[] checksums = proof.getChecksums();
+        if(checksums == null)
+            throw new IllegalArgumentException("Proof not constructed.");
+        int N = checksums.length;
+        AggregateSquareCommitment.AggregateSquareCommitmentProof ascProof =
+            proof.getAggregateSquareProof();
+        RangeCommitment.RangeCommitmentProof rangeProof = proof.getRangeProof();
+
+        int flags = 0;
+        if(proof.isForServer()) {
+            flags |= SERVER;
+            if(ascProof != null)
+                flags |= AGGREGATED;
+            if(rangeProof != null)
+                flags |= INNER_PRODUCT;
+        }
+
+        int start = out.position();
+        out.putInt(0);          // The length. Filled in at the end.
+        out.put(VERSION);
+        out.put((byte)flags);
+        out.putInt(user);
+        out.putInt(epoch);
+        out.putShort((short)W);
+        out.putInt(N);
+        for(int i = 0; i < N; i++)
+            out.putLong(checksums[i]);
+        put(out, proof.getChecksumRandomness(), N, W);
+
+        if(proof.isForServer()) {
+            put(out, proof.getCommitment()[0], W);
+            BigInteger[] B = proof.getMdCorrector();
+            put(out, B, N, W);
+
+            ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs =
+                proof.getThreeWayCommitmentProofs();
+            check(tcProofs, N);
+            for(int i = 0; i < N; i++) {
+                if(!B[i].equals(tcProofs[i].getCommitment()[0]))
+                    throw new IllegalArgumentException("3-way proof " + i
+                                                       + " is not for B[" + i + "].");
+                put(out, tcProofs[i].getNumeratorProof(), 3, 1, 4, W);
+                put(out, tcProofs[i].getDenominatorProof(), 3, 1, 4, W);
+            }
+
+            if(ascProof != null)
+                put(out, ascProof, 3*N + 1, 1, 2*N + 1, W);
+            else {
+                SquareCommitment.SquareCommitmentProof[] scProofs =
+                    proof.getSquareCommitmentProofs();
+                check(scProofs, N);
+                for(int i = 0; i < N; i++)
+                    put(out, scProofs[i], 4, 1, 3, W);
+            }
+
+            if(rangeProof != null) {
+                int rounds = rangeProof.getL().length;
+                out.putInt(rangeProof.getNumBits());
+                out.putInt(rounds);
+                put(out, rangeProof.getCommitment(), 5, W);
+                put(out, rangeProof.getResponse(), 5, W);
+                put(out, rangeProof.getL(), rounds, W);
+                put(out, rangeProof.getR(), rounds, W);
+            }
+            else {
+                BitCommitment.BitCommitmentProof[] bcProofs =
+                    proof.getBitCommitmentProofs();
+                out.putInt(bcProofs.length);
+                for(int i = 0; i < bcProofs.length; i++)
+                    put(out, bcProofs[i], 3, 1, 4, W);
+            }
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    private static void check(Object[] a, int n) {
+        if(a == null || a.length != n)
+            throw new IllegalArgumentException("Expected " + n + " proofs.");
+    }
+
+    private static void put(ByteBuffer out, Proof proof, int nCommitment,
+                            int nChallenge, int nResponse, int W) {
+        if(proof == null)
+            throw new IllegalArgumentException("Missing proof.");
+        put(out, proof.getCommitment(), nCommitment, W);
+        put(out, proof.getChallenge(), nChallenge, W);
+        put(out, proof.getResponse(), nResponse, W);
+    }
+
+    private static void put(ByteBuffer out, BigInteger[] a, int n, int W) {
+        if(a == null || a.length != n)
+            throw new IllegalArgumentException("Expected " + n + " numbers.");
+        for(int i = 0; i < n; i++)
+            put(out, a[i], W);
+    }
+
+    static void put(ByteBuffer out, BigInteger x, int W) {
+        if(x == null || x.signum() < 0 || x.bitLength() > 8*W)
+            throw new IllegalArgumentException("Number does not fit in " + W + " bytes.");
+        byte[] b = x.toByteArray();
+        int skip = b.length > W ? 1 : 0;    // The sign byte
+        for(int i = b.length - skip; i < W; i++)
+            out.put((byte)0);
+        out.put(b, skip, b.length - skip);
+    }
+
+    /**
+     * Reads the header of a frame without consuming it. The position of
+     * <code>in</code> must be right after the length. Needs no system
+     * parameters.
+     */
+    public static Header readHeader(ByteBuffer in) throws IOException {
+        if(in.remaining() < HEADER_SIZE)
+            throw new IOException("Proof frame truncated.");
+        int pos = in.position();
+        if(in.get(pos) != VERSION)
+            throw new IOException("Unknown proof format version.");
+        int flags = in.get(pos + 1);
+        int user = in.getInt(pos + 2);
+        int epoch = in.getInt(pos + 6);
+        int W = in.getShort(pos + 10) & 0xffff;
+        int N = in.getInt(pos + 12);
+        if(N < 0 || W == 0)
+            throw new IOException("Malformed proof header.");
+        return new Header(flags, user, epoch, W, N);
+    }
+
+    /**
+     * Decodes a proof frame. The position of <code>in</code> must be right
+     * after the length and its limit at the end of the frame.
+     *
+     * @throws IOException if the frame is malformed or is for another
+     *         group
+     */
+    public UserProof decode(ByteBuffer in) throws IOException {
+        Header header = readHeader(in);
+        if(header.getWidth() != width)
+            throw new IOException("Proof numbers are " + header.getWidth()
+                                  + " bytes. Expected " + width + ".");
+        int N = header.getN();
+        int W = width;
+        in.position(in.position() + HEADER_SIZE);
+        if(N > in.remaining()/(8 + W))
+            throw new IOException("Proof frame truncated.");
+
+        byte[] scratch = in.hasArray() ? null : new byte[W];
+        try {
+            long[] checksums = new long[N];
+            in.asLongBuffer().get(checksums);
+            in.position(in.position() + 8*N);
+            BigInteger[] checksumRandomness = get(in, N, scratch);
+
+            UserVector2.L2NormBoundProof2 proof;
+            if(!header.isForServer())
+                proof = owner.newPeerProof(checksums, checksumRandomness);
+            else {
+                BigInteger squareSumCommitment = get(in, scratch);
+                BigInteger[] B = get(in, N, scratch);
+                ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs =
+                    new ThreeWayCommitment.ThreeWayCommitmentProof[N];
+                for(int i = 0; i < N; i++) {
+                    BitCommitment.BitCommitmentProof bcp1 = getBitProof(in, scratch);
+                    BitCommitment.BitCommitmentProof bcp2 = getBitProof(in, scratch);
+                    tcProofs[i] = tc.newProof(B[i], bcp1, bcp2);
+                }
+
+                SquareCommitment.SquareCommitmentProof[] scProofs;
+                AggregateSquareCommitment.AggregateSquareCommitmentProof ascProof = null;
+                if(header.isAggregated()) {
+                    scProofs = new SquareCommitment.SquareCommitmentProof[0];
+                    ascProof = new AggregateSquareCommitment.AggregateSquareCommitmentProof(
+                        get(in, 3*N + 1, scratch), get(in, 1, scratch),
+                        get(in, 2*N + 1, scratch));
+                }
+                else {
+                    scProofs = new SquareCommitment.SquareCommitmentProof[N];
+                    for(int i = 0; i < N; i++)
+                        scProofs[i] = sc.newProof(get(in, 4, scratch), get(in, 1, scratch),
+                                                  get(in, 3, scratch));
+                }
+
+                int numBits = in.getInt();
+                if(numBits < 0 || numBits > MAX_BITS)
+                    throw new IOException("Range of " + numBits + " bits out of bounds.");
+                BitCommitment.BitCommitmentProof[] bcProofs;
+                RangeCommitment.RangeCommitmentProof rangeProof = null;
+                if(header.isInnerProduct()) {
+                    int rounds = in.getInt();
+                    if(rounds < 0 || rounds > MAX_ROUNDS)
+                        throw new IOException(rounds + " range proof rounds out of bounds.");
+                    bcProofs = new BitCommitment.BitCommitmentProof[0];
+                    BigInteger[] commitment = get(in, 5, scratch);
+                    BigInteger[] response = get(in, 5, scratch);
+                    rangeProof = new RangeCommitment.RangeCommitmentProof(
+                        numBits, commitment, response, get(in, rounds, scratch),
+                        get(in, rounds, scratch));
+                }
+                else {
+                    bcProofs = new BitCommitment.BitCommitmentProof[numBits];
+                    for(int i = 0; i < numBits; i++)
+                        bcProofs[i] = getBitProof(in, scratch);
+                }
+
+                proof = owner.newServerProof(checksums, checksumRandomness,
+                                             squareSumCommitment, B, tcProofs,
+                                             scProofs, ascProof, bcProofs, rangeProof);
+            }
+
+            if(in.hasRemaining())
+                throw new IOException("Trailing bytes after proof.");
+            return new UserProof(header, proof);
+        }
+        catch(BufferUnderflowException e) {
+            throw new IOException("Proof frame truncated.");
+        }
+    }
+
+    private BitCommitment.BitCommitmentProof getBitProof(ByteBuffer in, byte[] scratch) {
+        return bc.newProof(get(in, 3, scratch), get(in, 1, scratch), get(in, 4, scratch));
+    }
+
+    private BigInteger[] get(ByteBuffer in, int n, byte[] scratch) {
+        if(n > in.remaining()/width)
+            throw new BufferUnderflowException();
+        BigInteger[] a = new BigInteger[n];
+        for(int i = 0; i < n; i++)
+            a[i] = get(in, scratch);
+        return a;
+    }
+
+    private BigInteger get(ByteBuffer in, byte[] scratch) {
+        if(scratch == null) {
+            // Straight out of the frame
+            int pos = in.position();
+            if(in.remaining() < width)
+                throw new BufferUnderflowException();
+            BigInteger x = new BigInteger(1, in.array(), in.arrayOffset() + pos, width);
+            in.position(pos + width);
+            return x;
+        }
+        in.get(scratch, 0, width);
+        return new BigInteger(1, scratch, 0, width);
+    }
+
+    /**
+     * Reads a number of W bytes.
+     */
+    static BigInteger get(ByteBuffer in, int W) {
+        if(in.hasArray()) {
+            int pos = in.position();
+            if(in.remaining() < W)
+                throw new BufferUnderflowException();
+            BigInteger x = new BigInteger(1, in.array(), in.arrayOffset() + pos, W);
+            in.position(pos + W);
+            return x;
+        }
+        byte[] b = new byte[W];
+        in.get(b);
+        return new BigInteger(1, b);
+    }
+
+    /**
+     * Writes the frame of a proof to a stream.
+     */
+    public static void write(DataOutputStream out, int user, int epoch,
+                             UserVector2.L2NormBoundProof2 proof) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(encodedSize(proof));
+        encode(b, user, epoch, proof);
+        out.write(b.array(), 0, b.position());
+        out.flush();
+    }
+
+    /**
+     * Reads a frame from a stream.
+     *
+     * @param maxFrameSize  the largest frame accepted
+     * @return the frame without the length, ready for
+     *         {@link #decode(ByteBuffer)} or {@link #readHeader(ByteBuffer)}
+     */
+    public static ByteBuffer readFrame(DataInputStream in, int maxFrameSize)
+        throws IOException {
+        int length = in.readInt();
+        if(length < HEADER_SIZE || length > maxFrameSize)
+            throw new IOException("Proof frame of " + length + " bytes out of range.");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return ByteBuffer.wrap(b);
+    }
+}
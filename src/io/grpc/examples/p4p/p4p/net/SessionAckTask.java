@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves one session on a blocking connection, as an {@link Acceptor}
+ * task. It reads {@link SessionCodec} frames until the client closes the
+ * connection, prints each share and proof, and acknowledges it as
+ * accepted. Nothing is verified. Any other frame ends the session.
+ */
+
+public class SessionAckTask implements Runnable {
+    public static final int MAX_DIMENSION = 1<<22;
+    public static final int MAX_FRAME_SIZE = 1<<26;
+
+    private final Transport.Connection s;
+
+    public SessionAckTask(Transport.Connection s) {
+        this.s = s;
+    }
+
+    public void run() {
+        try {
+            // Opened here rather than in the constructor so that the accept
+            // thread never blocks on a slow client.
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+            // A session: frames until the client closes it
+            while(true) {
+                ByteBuffer frame;
+                try {
+                    frame = SessionCodec.readFrame(in, MAX_FRAME_SIZE);
+                }
+                catch(EOFException e) {
+                    break;
+                }
+                byte type = SessionCodec.getType(frame);
+                int user;
+                int epoch;
+                if(type == SessionCodec.SHARE) {
+                    ShareCodec.Share share = SessionCodec.decodeShare(frame, MAX_DIMENSION);
+                    user = share.getUser();
+                    epoch = share.getEpoch();
+                    System.out.println("Share of user " + user + " (epoch "
+                            + epoch + "): " + share.getVector().length
+                            + " elements");
+                }
+                else if(type == SessionCodec.PROOF) {
+                    ProofCodec.Header proof = ProofCodec.readHeader(SessionCodec.unwrap(frame));
+                    user = proof.getUser();
+                    epoch = proof.getEpoch();
+                    System.out.println("Proof of user " + user + " (epoch "
+                            + epoch + "): " + proof.getN() + " checksums, "
+                            + frame.remaining() + " bytes");
+                }
+                else
+                    throw new IOException("Unexpected session frame of type " + type);
+                ack.clear();
+                SessionCodec.encodeAck(ack, type, user, epoch, SessionCodec.ACCEPTED);
+                out.write(ack.array(), 0, ack.position());
+                if(in.available() == 0)
+                    out.flush();
+            }
+            out.flush();
+        }
+        catch(IOException ex) {
+            Logger.getLogger(SessionAckTask.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        try {
+            System.out.println("Socket Closing");
+            s.close();
+        }
+        catch(IOException ex) {
+            Logger.getLogger(SessionAckTask.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * The frames of a session, a connection that stays open and carries the
+ * submissions of any number of users, in both directions.
+ * <p>
+ * Every frame is
+ * <pre>
+ *   int     length of the rest of the frame
+ *   byte    type
+ *   ...     the body
+ * </pre>
+ * and the bodies are:
+ * <pre>
+ *   SHARE       a {@link ShareCodec} frame, its length included
+ *   PROOF       a {@link ProofCodec} frame, its length included
+ *   Y           int user ID, int epoch, int N, then the N commitments Y,
+ *               each in {@link ProofCodec#elementWidth()} bytes
+ *   DISQUALIFY  int user ID, int epoch
+ *   ACK         byte the type acknowledged, int user ID, int epoch,
+ *               byte status: 0 = accepted, 1 = ignored, 2 = rejected,
+ *               3 = retry later
+ *   VERDICT     int user ID, int epoch, byte status: 0 = the user
+ *               passed the verification, 2 = he failed it
+ *   CREDIT      int window
+ *   PEER_SUM    int epoch, int m, then the peer's sum, m longs in
+ *               little-endian order
+ * </pre>
+ * The sum is little-endian so that on the usual hosts it is copied as it
+ * is, which matters for a large m.
+ * <p>
+ * Shares and proofs keep their own formats so that a session carries
+ * exactly what a connection per message would. The receiver acknowledges
+ * every SHARE, PROOF, Y, DISQUALIFY and PEER_SUM, the last with user ID
+ * -1, in the order they arrived, so a
+ * sender may send many frames before it reads the acknowledgements. The
+ * server sends a user the VERDICT on his submission, on the session that
+ * carried his proof, once he has been verified. That may be long after
+ * the acknowledgements, and in any order.
+ * <p>
+ * Y, DISQUALIFY and PEER_SUM decide who is counted and what is added up,
+ * so only the privacy peer may send them. An endpoint takes them on a
+ * session only the peer can open, e.g. a port of its own on a private
+ * address, a Unix domain socket or a {@link SharedMemoryLink}, and closes a
+ * user's session that sends one.
+ * <p>
+ * The receiver controls the flow with CREDIT frames: the sender must not
+ * have more than <i>window</i> frames unacknowledged. Until the first
+ * CREDIT there is no limit. A receiver that is short of memory answers a
+ * share or proof with "retry later" and drops it. The sender should send
+ * it again after a while.
+ * <p>
+ * The length lets a {@link LengthPrefixedDecoder} cut the frames. The
+ * <code>decode</code> methods take the frame after the type.
+ */
+
+public class SessionCodec {
+    public static final byte SHARE = 1;
+    public static final byte PROOF = 2;
+    public static final byte Y = 3;
+    public static final byte DISQUALIFY = 4;
+    public static final byte ACK = 5;
+    public static final byte VERDICT = 6;
+    public static final byte CREDIT = 7;
+    public static final byte PEER_SUM = 8;
+
+    public static final byte ACCEPTED = 0;
+    public static final byte IGNORED = 1;
+    public static final byte REJECTED = 2;
+    public static final byte RETRY_LATER = 3;
+
+    public static final int HEADER_SIZE = 4 + 1;
+    public static final int DISQUALIFY_SIZE = HEADER_SIZE + 4 + 4;
+    public static final int ACK_SIZE = HEADER_SIZE + 1 + 4 + 4 + 1;
+    public static final int VERDICT_SIZE = HEADER_SIZE + 4 + 4 + 1;
+    public static final int CREDIT_SIZE = HEADER_SIZE + 4;
+
+    /**
+     * The commitments Y a peer sends for a user.
+     */
+    public static class YMessage {
+        private final int user;
+        private final int epoch;
+        private final BigInteger[] Y;
+
+        YMessage(int user, int epoch, BigInteger[] Y) {
+            this.user = user;
+            this.epoch = epoch;
+            this.Y = Y;
+        }
+
+        public int getUser() {
+            return user;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public BigInteger[] getY() {
+            return Y;
+        }
+    }
+
+    /**
+     * The sum of the shares that passed, which the peer sends at the end of
+     * an epoch.
+     */
+    public static class PeerSum {
+        private final int epoch;
+        private final long[] sum;
+
+        PeerSum(int epoch, long[] sum) {
+            this.epoch = epoch;
+            this.sum = sum;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public long[] getSum() {
+            return sum;
+        }
+    }
+
+    /**
+     * The acknowledgement of a frame. Also what a DISQUALIFY frame, with
+     * type DISQUALIFY, and a VERDICT frame, with type VERDICT, carry.
+     */
+    public static class Ack {
+        private final byte type;
+        private final int user;
+        private final int epoch;
+        private final byte status;
+
+        Ack(byte type, int user, int epoch, byte status) {
+            this.type = type;
+            this.user = user;
+            this.epoch = epoch;
+            this.status = status;
+        }
+
+        /**
+         * @return the type of the frame acknowledged
+         */
+        public byte getType() {
+            return type;
+        }
+
+        public int getUser() {
+            return user;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+    }
+
+    public static int shareFrameSize(int m, long F, ShareCodec.Encoding encoding) {
+        return HEADER_SIZE + ShareCodec.maxFrameSize(m, F, encoding);
+    }
+
+    public static int proofFrameSize(UserVector2.L2NormBoundProof2 proof) {
+        return HEADER_SIZE + ProofCodec.encodedSize(proof);
+    }
+
+    public static int yFrameSize(int N) {
+        return HEADER_SIZE + 4 + 4 + 4 + N*ProofCodec.elementWidth();
+    }
+
+    public static int peerSumFrameSize(int m) {
+        return HEADER_SIZE + 4 + 4 + 8*m;
+    }
+
+    public static void encodeShare(ByteBuffer out, int user, int epoch, long F,
+                                   long[] share, ShareCodec.Encoding encoding) {
+        int start = begin(out, SHARE);
+        ShareCodec.encode(out, user, epoch, F, share, encoding);
+        end(out, start);
+    }
+
+    public static void encodeProof(ByteBuffer out, int user, int epoch,
+                                   UserVector2.L2NormBoundProof2 proof) {
+        int start = begin(out, PROOF);
+        ProofCodec.encode(out, user, epoch, proof);
+        end(out, start);
+    }
+
+    public static void encodeY(ByteBuffer out, int user, int epoch, BigInteger[] Y) {
+        int W = ProofCodec.elementWidth();
+        int start = begin(out, SessionCodec.Y);
+        out.putInt(user);
+        out.putInt(epoch);
+        out.putInt(Y.length);
+        for(int i = 0; i < Y.length; i++)
+            ProofCodec.put(out, Y[i], W);
+        end(out, start);
+    }
+
+    public static void encodeDisqualify(ByteBuffer out, int user, int epoch) {
+        int start = begin(out, DISQUALIFY);
+        out.putInt(user);
+        out.putInt(epoch);
+        end(out, start);
+    }
+
+    public static void encodeAck(ByteBuffer out, byte type, int user, int epoch,
+                                 byte status) {
+        int start = begin(out, ACK);
+        out.put(type);
+        out.putInt(user);
+        out.putInt(epoch);
+        out.put(status);
+        end(out, start);
+    }
+
+    public static void encodeVerdict(ByteBuffer out, int user, int epoch, byte status) {
+        int start = begin(out, VERDICT);
+        out.putInt(user);
+        out.putInt(epoch);
+        out.put(status);
+        end(out, start);
+    }
+
+    public static void encodeCredit(ByteBuffer out, int window) {
+        int start = begin(out, CREDIT);
+        out.putInt(window);
+        end(out, start);
+    }
+
+    public static void encodePeerSum(ByteBuffer out, int epoch, long[] sum) {
+        int start = begin(out, PEER_SUM);
+        out.putInt(epoch);
+        out.putInt(sum.length);
+        out.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(sum);
+        out.position(out.position() + 8*sum.length);
+        end(out, start);
+    }
+
+    private static int begin(ByteBuffer out, byte type) {
+        int start = out.position();
+        out.putInt(0);          // The length. Filled in at the end.
+        out.put(type);
+        return start;
+    }
+
+    private static void end(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    /**
+     * Reads the type of a frame. The position of <code>in</code> must be
+     * right after the length. It is left right after the type.
+     */
+    public static byte getType(ByteBuffer in) throws IOException {
+        if(!in.hasRemaining())
+            throw new IOException("Empty session frame.");
+        return in.get();
+    }
+
+    /**
+     * Positions the body of a SHARE or PROOF frame for
+     * <code>ShareCodec.decode</code> or <code>ProofCodec.decode</code>,
+     * i.e. right after the inner length, which must match.
+     */
+    public static ByteBuffer unwrap(ByteBuffer in) throws IOException {
+        if(in.remaining() < 4 || in.getInt() != in.remaining())
+            throw new IOException("Inner frame length does not match the session frame.");
+        return in;
+    }
+
+    public static ShareCodec.Share decodeShare(ByteBuffer in, int maxDimension)
+        throws IOException {
+        return ShareCodec.decode(unwrap(in), maxDimension);
+    }
+
+    /**
+     * @param maxN  the largest number of commitments accepted
+     */
+    public static YMessage decodeY(ByteBuffer in, int maxN) throws IOException {
+        int W = ProofCodec.elementWidth();
+        try {
+            int user = in.getInt();
+            int epoch = in.getInt();
+            int N = in.getInt();
+            if(N < 0 || N > maxN || in.remaining() != N*W)
+                throw new IOException("Malformed Y frame.");
+            BigInteger[] Y = new BigInteger[N];
+            for(int i = 0; i < N; i++)
+                Y[i] = ProofCodec.get(in, W);
+            return new YMessage(user, epoch, Y);
+        }
+        catch(BufferUnderflowException e) {
+            throw new IOException("Y frame truncated.");
+        }
+    }
+
+    /**
+     * @return the user and epoch, with type DISQUALIFY and status 0
+     */
+    public static Ack decodeDisqualify(ByteBuffer in) throws IOException {
+        if(in.remaining() != 8)
+            throw new IOException("Malformed disqualification frame.");
+        return new Ack(DISQUALIFY, in.getInt(), in.getInt(), ACCEPTED);
+    }
+
+    public static Ack decodeAck(ByteBuffer in) throws IOException {
+        if(in.remaining() != ACK_SIZE - HEADER_SIZE)
+            throw new IOException("Malformed acknowledgement frame.");
+        return new Ack(in.get(), in.getInt(), in.getInt(), in.get());
+    }
+
+    /**
+     * @return the user, epoch and status, with type VERDICT
+     */
+    public static Ack decodeVerdict(ByteBuffer in) throws IOException {
+        if(in.remaining() != VERDICT_SIZE - HEADER_SIZE)
+            throw new IOException("Malformed verdict frame.");
+        return new Ack(VERDICT, in.getInt(), in.getInt(), in.get());
+    }
+
+    /**
+     * @return the window
+     */
+    public static int decodeCredit(ByteBuffer in) throws IOException {
+        if(in.remaining() != CREDIT_SIZE - HEADER_SIZE)
+            throw new IOException("Malformed credit frame.");
+        int window = in.getInt();
+        if(window < 1)
+            throw new IOException("Credit window must be positive.");
+        return window;
+    }
+
+    /**
+     * @param m  the dimension of the sum expected
+     */
+    public static PeerSum decodePeerSum(ByteBuffer in, int m) throws IOException {
+        if(in.remaining() < 8)
+            throw new IOException("Peer sum frame truncated.");
+        int epoch = in.getInt();
+        if(in.getInt() != m || in.remaining() != 8L*m)
+            throw new IOException("Peer sum does not match the dimension " + m + ".");
+        long[] sum = new long[m];
+        in.duplicate().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(sum);
+        in.position(in.limit());
+        return new PeerSum(epoch, sum);
+    }
+
+    /**
+     * Reads a frame from a stream.
+     *
+     * @param maxFrameSize  the largest frame accepted
+     * @return the frame without the length, ready for
+     *         {@link #getType(ByteBuffer)}
+     */
+    public static ByteBuffer readFrame(DataInputStream in, int maxFrameSize)
+        throws IOException {
+        int length = in.readInt();
+        if(length < 1 || length > maxFrameSize)
+            throw new IOException("Session frame of " + length + " bytes out of range.");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return ByteBuffer.wrap(b);
+    }
+}
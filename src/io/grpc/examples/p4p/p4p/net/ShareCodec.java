@@ -0,0 +1,287 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary wire format of a share vector.
+ * <p>
+ * A share is sent as one frame:
+ * <pre>
+ *   int     length of the rest of the frame
+ *   byte    version (1)
+ *   byte    encoding: 0 = packed, 1 = varint
+ *   int     user ID
+ *   int     epoch
+ *   int     m, the dimension
+ *   long    F, the order of the field
+ *   ...     the m elements
+ * </pre>
+ * All integers are big endian. In the <i>packed</i> encoding each element
+ * is shifted from Z_F, i.e. [-F/2, F/2], to [0, F] and written in the
+ * fewest whole bytes that hold F, e.g. 4 bytes for a 32 bit field. In the
+ * <i>varint</i> encoding each element is zigzag encoded and written 7 bits
+ * per byte, low bits first, so that small elements take a byte or two.
+ * That suits sparse or small vectors, not random shares. Both keep the
+ * exact <code>long</code> value of the elements. This matters since the
+ * checksums are computed with wrapping arithmetic.
+ * <p>
+ * The length lets a {@link LengthPrefixedDecoder} cut the frames. The
+ * <code>decode</code> methods take the frame after the length.
+ */
+
+public class ShareCodec {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 1 + 1 + 4 + 4 + 4 + 8;
+
+    public enum Encoding {
+        PACKED,
+        VARINT
+    }
+
+    /**
+     * A decoded share.
+     */
+    public static class Share {
+        private final int user;
+        private final int epoch;
+        private final long F;
+        private final long[] vector;
+
+        Share(int user, int epoch, long F, long[] vector) {
+            this.user = user;
+            this.epoch = epoch;
+            this.F = F;
+            this.vector = vector;
+        }
+
+        public int getUser() {
+            return user;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public long getF() {
+            return F;
+        }
+
+        public long[] getVector() {
+            return vector;
+        }
+    }
+
+    /**
+     * @return the number of bytes a packed element takes in a field of
+     *         order F
+     */
+    public static int packedWidth(long F) {
+        return (64 - Long.numberOfLeadingZeros(F) + 7)/8;
+    }
+
+    /**
+     * @return the largest size, length included, of the frame of an
+     *         m-dimensional share in a field of order F
+     */
+    public static int maxFrameSize(int m, long F, Encoding encoding) {
+        int width = encoding == Encoding.PACKED ? packedWidth(F) : 10;
+        return 4 + HEADER_SIZE + m*width;
+    }
+
+    /**
+     * Writes the frame of a share, length included, to <code>out</code>.
+     *
+     * @throws IllegalArgumentException if an element is not in Z_F and
+     *         the encoding is packed
+     * @throws java.nio.BufferOverflowException if <code>out</code> does
+     *         not have {@link #maxFrameSize} bytes left
+     */
+    public static void encode(ByteBuffer out, int user, int epoch, long F,
+                              long[] share, Encoding encoding) {
+        if(F <= 0)
+            throw new IllegalArgumentException("Field order must be positive.");
+
+        int start = out.position();
+        out.putInt(0);          // The length. Filled in at the end.
+        out.put(VERSION);
+        out.put((byte)encoding.ordinal());
+        out.putInt(user);
+        out.putInt(epoch);
+        out.putInt(share.length);
+        out.putLong(F);
+
+        if(encoding == Encoding.PACKED) {
+            long offset = F/2 + 1;
+            int width = packedWidth(F);
+            for(int i = 0; i < share.length; i++) {
+                long x = share[i] + offset;
+                if(x < 0 || x > F)
+                    throw new IllegalArgumentException("Element " + i + " not in Z_F.");
+                putPacked(out, x, width);
+            }
+        }
+        else {
+            for(int i = 0; i < share.length; i++) {
+                long x = (share[i] << 1) ^ (share[i] >> 63);    // zigzag
+                while((x & ~0x7fL) != 0) {
+                    out.put((byte)((x & 0x7f) | 0x80));
+                    x >>>= 7;
+                }
+                out.put((byte)x);
+            }
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    private static void putPacked(ByteBuffer out, long x, int width) {
+        switch(width) {
+        case 8:
+            out.putLong(x);
+            return;
+        case 4:
+            out.putInt((int)x);
+            return;
+        default:
+            for(int shift = 8*(width-1); shift >= 0; shift -= 8)
+                out.put((byte)(x >>> shift));
+        }
+    }
+
+    private static long getPacked(ByteBuffer in, int width) {
+        switch(width) {
+        case 8:
+            return in.getLong();
+        case 4:
+            return in.getInt() & 0xffffffffL;
+        default:
+            long x = 0;
+            for(int i = 0; i < width; i++)
+                x = (x << 8) | (in.get() & 0xff);
+            return x;
+        }
+    }
+
+    /**
+     * Decodes a share frame. The position of <code>in</code> must be right
+     * after the length and its limit at the end of the frame.
+     *
+     * @param in            the frame
+     * @param maxDimension  the largest dimension accepted
+     * @throws IOException if the frame is malformed
+     */
+    public static Share decode(ByteBuffer in, int maxDimension) throws IOException {
+        try {
+            if(in.get() != VERSION)
+                throw new IOException("Unknown share format version.");
+            int enc = in.get();
+            if(enc < 0 || enc >= Encoding.values().length)
+                throw new IOException("Unknown share encoding " + enc + ".");
+            Encoding encoding = Encoding.values()[enc];
+            int user = in.getInt();
+            int epoch = in.getInt();
+            int m = in.getInt();
+            long F = in.getLong();
+            if(m < 0 || m > maxDimension)
+                throw new IOException("Share dimension " + m + " out of range.");
+            if(F <= 0)
+                throw new IOException("Field order must be positive.");
+
+            long[] v = new long[m];
+            if(encoding == Encoding.PACKED) {
+                int width = packedWidth(F);
+                if(in.remaining() != (long)m*width)
+                    throw new IOException("Share frame has " + in.remaining()
+                                          + " bytes of elements. Expected " + (long)m*width + ".");
+                long offset = F/2 + 1;
+                for(int i = 0; i < m; i++) {
+                    long x = getPacked(in, width);
+                    if(x < 0 || x > F)
+                        throw new IOException("Element " + i + " not in Z_F.");
+                    v[i] = x - offset;
+                }
+            }
+            else {
+                for(int i = 0; i < m; i++) {
+                    long x = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        if(shift > 63)
+                            throw new IOException("Varint too long.");
+                        b = in.get();
+                        x |= (long)(b & 0x7f) << shift;
+                        shift += 7;
+                    } while(b < 0);
+                    v[i] = (x >>> 1) ^ -(x & 1);
+                }
+                if(in.hasRemaining())
+                    throw new IOException("Trailing bytes after share.");
+            }
+            return new Share(user, epoch, F, v);
+        }
+        catch(BufferUnderflowException e) {
+            throw new IOException("Share frame truncated.");
+        }
+    }
+
+    /**
+     * Writes the frame of a share to a stream.
+     */
+    public static void write(DataOutputStream out, int user, int epoch, long F,
+                             long[] share, Encoding encoding) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(maxFrameSize(share.length, F, encoding));
+        encode(b, user, epoch, F, share, encoding);
+        out.write(b.array(), 0, b.position());
+        out.flush();
+    }
+
+    /**
+     * Reads the frame of a share from a stream.
+     *
+     * @param maxDimension  the largest dimension accepted
+     */
+    public static Share read(DataInputStream in, int maxDimension) throws IOException {
+        int length = in.readInt();
+        if(length < HEADER_SIZE || length > HEADER_SIZE + 10L*maxDimension)
+            throw new IOException("Share frame of " + length + " bytes out of range.");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return decode(ByteBuffer.wrap(b), maxDimension);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A two-way connection over shared memory between an endpoint and one
+ * client on the same host: a directory with two {@link MappedRing}s,
+ * <code>up</code> from the client to the endpoint and <code>down</code>
+ * back.
+ * <p>
+ * The endpoint creates the rings, the client attaches to them. Only one
+ * client may be attached at a time; {@link #attach(File)} tells a second
+ * one that the link is taken, so that it can connect by TCP instead.
+ */
+
+public class SharedMemoryLink implements Closeable {
+    public static final String UP = "up";
+    public static final String DOWN = "down";
+
+    private final File dir;
+    private final MappedRing in;
+    private final MappedRing out;
+
+    private SharedMemoryLink(File dir, MappedRing in, MappedRing out) {
+        this.dir = dir;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Creates the endpoint's end of a link. Rings left in the directory by
+     * a previous link are replaced.
+     *
+     * @param dir       the directory, created if it does not exist
+     * @param capacity  the size of each ring in bytes
+     */
+    public static SharedMemoryLink create(File dir, int capacity) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir + ".");
+        MappedRing down = MappedRing.create(new File(dir, DOWN), capacity);
+        MappedRing up;
+        try {
+            up = MappedRing.create(new File(dir, UP), capacity);  // Last: clients look for it
+        }
+        catch(IOException e) {
+            down.close();
+            throw e;
+        }
+        return new SharedMemoryLink(dir, up, down);
+    }
+
+    /**
+     * Attaches a client to the link in the given directory.
+     *
+     * @return the client's end, or <code>null</code> if there is no link
+     *         there or another client has it
+     */
+    public static SharedMemoryLink attach(File dir) {
+        MappedRing up;
+        try {
+            up = MappedRing.open(new File(dir, UP));
+        }
+        catch(IOException e) {
+            return null;
+        }
+        if(!up.attachWriter()) {
+            up.close();
+            return null;
+        }
+        try {
+            return new SharedMemoryLink(dir, MappedRing.open(new File(dir, DOWN)), up);
+        }
+        catch(IOException e) {
+            up.closeWrite();
+            up.close();
+            return null;
+        }
+    }
+
+    /**
+     * @return the ring this end reads
+     */
+    public MappedRing getInput() {
+        return in;
+    }
+
+    /**
+     * @return the ring this end writes
+     */
+    public MappedRing getOutput() {
+        return out;
+    }
+
+    /**
+     * Closes both directions. The other end reads what was written and then
+     * sees the end of the stream.
+     */
+    public void close() {
+        out.closeWrite();
+        in.closeRead();
+        out.close();
+        in.close();
+    }
+
+    public String toString() {
+        return "shm:" + dir;
+    }
+}
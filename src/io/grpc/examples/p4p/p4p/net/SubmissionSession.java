@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.IOException;
+
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * What a user, or a simulator standing in for many users, needs to submit
+ * vectors: a {@link ClientSession} to the server and one to the privacy
+ * peer, both opened once and kept for every submission.
+ * <p>
+ * A submission sends the server's share and the server's proof to the
+ * server and the peer's share and the peer's proof to the peer. It does
+ * not wait for them to be acknowledged, so the submissions of many users
+ * are pipelined on the two connections. The peer then sends Y, or the
+ * disqualification, to the server on a session of its own.
+ */
+
+public class SubmissionSession {
+    private final ClientSession server;
+    private final ClientSession peer;
+    private ShareCodec.Encoding encoding = ShareCodec.Encoding.PACKED;
+
+    /**
+     * @param listener  hears the acknowledgements of both sessions. May be
+     *                  <code>null</code>.
+     */
+    public SubmissionSession(String serverHost, int serverPort, String peerHost,
+                             int peerPort, ClientSession.Listener listener)
+        throws IOException {
+        this(serverHost, serverPort, listener, peerHost, peerPort, listener);
+    }
+
+    /**
+     * @param serverListener    hears the server's acknowledgements and
+     *                          verdicts. May be <code>null</code>.
+     * @param peerListener      hears the peer's acknowledgements. May be
+     *                          <code>null</code>.
+     */
+    public SubmissionSession(String serverHost, int serverPort,
+                             ClientSession.Listener serverListener,
+                             String peerHost, int peerPort,
+                             ClientSession.Listener peerListener)
+        throws IOException {
+        this(Transport.tcp(serverHost, serverPort), serverListener,
+             Transport.tcp(peerHost, peerPort), peerListener);
+    }
+
+    /**
+     * Connects by TCP or Unix domain sockets. The listeners are as above.
+     */
+    public SubmissionSession(Transport toServer, ClientSession.Listener serverListener,
+                             Transport toPeer, ClientSession.Listener peerListener)
+        throws IOException {
+        this.server = new ClientSession(toServer, serverListener);
+        try {
+            this.peer = new ClientSession(toPeer, peerListener);
+        }
+        catch(IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the encoding of the shares. Packed by default.
+     */
+    public void setEncoding(ShareCodec.Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public ShareCodec.Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Constructs the proofs of a user vector and submits it. The shares
+     * and the checksum coefficient vectors must have been set.
+     */
+    public void submit(int user, int epoch, UserVector2 uv) throws IOException {
+        UserVector2.L2NormBoundProof2 peerProof =
+            (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(false);
+        UserVector2.L2NormBoundProof2 serverProof =
+            (UserVector2.L2NormBoundProof2)uv.getL2NormBoundProof2(true);
+        submit(user, epoch, uv.getF(), uv.getU(), serverProof, uv.getV(), peerProof);
+    }
+
+    /**
+     * Submits shares and proofs that have already been constructed.
+     */
+    public void submit(int user, int epoch, long F,
+                       long[] u, UserVector2.L2NormBoundProof2 serverProof,
+                       long[] v, UserVector2.L2NormBoundProof2 peerProof)
+        throws IOException {
+        server.sendShare(user, epoch, F, u, encoding);
+        server.sendProof(user, epoch, serverProof);
+        server.flush();
+        peer.sendShare(user, epoch, F, v, encoding);
+        peer.sendProof(user, epoch, peerProof);
+        peer.flush();
+    }
+
+    /**
+     * Waits until everything submitted so far has been acknowledged by
+     * both ends.
+     *
+     * @return <code>false</code> if the time ran out first
+     */
+    public boolean awaitAcknowledged(long timeoutMillis)
+        throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        return server.awaitAcknowledged(timeoutMillis)
+            && peer.awaitAcknowledged(Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    public ClientSession getServerSession() {
+        return server;
+    }
+
+    public ClientSession getPeerSession() {
+        return peer;
+    }
+
+    public void close() {
+        server.close();
+        peer.close();
+    }
+}
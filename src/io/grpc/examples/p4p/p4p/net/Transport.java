@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.net;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Where an endpoint listens and its clients connect: a TCP port or, for
+ * hops within a host, a Unix domain socket, which skips the TCP/IP stack.
+ * <p>
+ * {@link #configure(String[], String, int)} chooses from command line
+ * style arguments, so that every endpoint and client takes the same
+ * <code>-unix dir</code>. The socket of port <i>p</i> is then the file
+ * <code>dir/p4p-</code><i>p</i><code>.sock</code>, and endpoints and
+ * clients keep naming each other by port.
+ * <p>
+ * Both kinds of connection are a blocking {@link SocketChannel}, which a
+ * {@link Connection} presents as a pair of streams.
+ */
+
+public class Transport {
+    private final String host;
+    private final int port;
+    private final Path path;        // null for TCP
+
+    private Transport(String host, int port, Path path) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    /**
+     * @param host  the host to connect to. Not used to listen.
+     * @param port  the port. 0 picks a free port to listen on.
+     */
+    public static Transport tcp(String host, int port) {
+        return new Transport(host, port, null);
+    }
+
+    /**
+     * @param path  the socket file
+     * @param port  the port the endpoint would have on TCP. Only reported.
+     */
+    public static Transport unix(Path path, int port) {
+        return new Transport(null, port, path);
+    }
+
+    /**
+     * Chooses the transport from command line style arguments:
+     * <code>-unix dir</code> for the Unix domain socket of the port in
+     * <code>dir</code>, TCP otherwise. Unknown arguments are ignored.
+     */
+    public static Transport configure(String[] args, String host, int port) {
+        for(int i = 0; i < args.length - 1; i++) {
+            if(args[i].equals("-unix"))
+                return unix(new File(args[i+1], "p4p-" + port + ".sock").toPath(), port);
+        }
+        return tcp(host, port);
+    }
+
+    public boolean isUnix() {
+        return path != null;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the socket file, or <code>null</code> for TCP
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Opens a listening channel. A socket file left by an endpoint that is
+     * gone is replaced.
+     */
+    public ServerSocketChannel bind(int backlog) throws IOException {
+        if(path != null)
+            Files.deleteIfExists(path);
+        ServerSocketChannel ch = path != null
+            ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+            : ServerSocketChannel.open();
+        try {
+            if(path != null)
+                ch.bind(UnixDomainSocketAddress.of(path), backlog);
+            else {
+                ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                ch.bind(new InetSocketAddress(port), backlog);
+            }
+        }
+        catch(IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    /**
+     * Closes a channel from {@link #bind(int)} and removes its socket file.
+     */
+    public void unbind(ServerSocketChannel ch) throws IOException {
+        ch.close();
+        if(path != null)
+            Files.deleteIfExists(path);
+    }
+
+    /**
+     * @return the port a TCP channel from {@link #bind(int)} listens on,
+     *         or the configured port for a Unix domain socket
+     */
+    public int getLocalPort(ServerSocketChannel ch) throws IOException {
+        if(path != null)
+            return port;
+        SocketAddress a = ch.getLocalAddress();
+        return a == null ? port : ((InetSocketAddress)a).getPort();
+    }
+
+    /**
+     * Sets the options of a new connection. Nagle is off on TCP since the
+     * endpoints send small frames and wait for the answers.
+     */
+    public static void setOptions(SocketChannel ch) throws IOException {
+        if(ch.getRemoteAddress() instanceof InetSocketAddress)
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Connects a blocking channel to the endpoint.
+     */
+    public SocketChannel open() throws IOException {
+        SocketChannel ch = path != null ? SocketChannel.open(StandardProtocolFamily.UNIX)
+            : SocketChannel.open();
+        try {
+            ch.connect(path != null ? UnixDomainSocketAddress.of(path)
+                       : new InetSocketAddress(host, port));
+            setOptions(ch);
+        }
+        catch(IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    public Connection connect() throws IOException {
+        return new Connection(open());
+    }
+
+    public String toString() {
+        return path != null ? "unix:" + path : host + ":" + port;
+    }
+
+    /**
+     * A connected, blocking channel as a pair of streams. One thread may
+     * read while another writes. The streams are not buffered.
+     */
+    public static class Connection implements Closeable {
+        private final SocketChannel channel;
+
+        // Not Channels.newInputStream and newOutputStream: before Java 19
+        // their reads and writes take the same lock, so a blocked read
+        // would hold up the writes.
+        private final InputStream in = new InputStream() {
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0)
+                    return 0;
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                while(bb.hasRemaining())
+                    channel.write(bb);
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+
+        public Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public SocketChannel getChannel() {
+            return channel;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * @return the address of the other end, or <code>null</code> if
+         *         it is not known
+         */
+        public SocketAddress getRemoteAddress() {
+            try {
+                return channel.getRemoteAddress();
+            }
+            catch(IOException e) {
+                return null;
+            }
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+import io.grpc.examples.p4p.p4p.net.AdmissionControl;
+import io.grpc.examples.p4p.p4p.net.ClientSession;
+import io.grpc.examples.p4p.p4p.net.FrameDecoder;
+import io.grpc.examples.p4p.p4p.net.LengthPrefixedDecoder;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.ProofCodec;
+import io.grpc.examples.p4p.p4p.net.SessionCodec;
+import io.grpc.examples.p4p.p4p.net.ShareCodec;
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+import io.grpc.examples.p4p.p4p.util.StripedAccumulator;
+
+/**
+ * Serves the users' sessions on the privacy peer's {@link NioServer}.
+ * <p>
+ * The users send their shares and the peer's proofs as
+ * {@link SessionCodec} frames. Each is acknowledged as soon as it is
+ * decoded. Once a user's share and proof have both arrived the peer
+ * verifies them on a worker thread, adds the share to the peer's sum if
+ * they pass and sends Y, or the disqualification, to the server on a
+ * session of its own, and at the end of the epoch sends its sum there too.
+ * If the server is on the same host that session may be on shared memory,
+ * see {@link ClientSession#open}. Frames of another epoch are ignored.
+ * <p>
+ * A user is settled once, by the first of his submissions to be verified
+ * in the epoch. The server hears about him only then, and his later
+ * shares and proofs are ignored, so his share in the peer's sum always
+ * goes with what the server was told.
+ * <p>
+ * With an {@link AdmissionControl} the shares and proofs waiting for
+ * verification are kept within its budget, as on the server.
+ */
+
+public class PeerSessionHandler implements NioServer.Handler {
+    private final int m;
+    private final long F;
+    private final int l;
+    private final NativeBigInteger g;
+    private final NativeBigInteger h;
+    private final ProofCodec codec;
+    private final ClientSession server;
+    private final int maxFrameSize;
+    private final StripedAccumulator sum;
+    private final ExecutorService pool;
+
+    private volatile int epoch = 0;
+    private volatile int[][] c = null;
+    private volatile AdmissionControl admission = null;
+    private final ConcurrentHashMap<Integer, Submission> pending =
+        new ConcurrentHashMap<Integer, Submission>();
+    private final ConcurrentHashMap<Integer, Boolean> settled =
+        new ConcurrentHashMap<Integer, Boolean>();
+    // Whether each user verified so far passed. A user who submits again,
+    // e.g. because he was told to retry later, is only settled once.
+
+    /**
+     * A user's share and proof, until both are there.
+     */
+    private static class Submission {
+        long[] v = null;
+        UserVector2.L2NormBoundProof2 proof = null;
+    }
+
+    /**
+     * @param server        the session to the server, for Y
+     * @param nThreads      the number of verifier threads
+     * @param maxFrameSize  the largest frame accepted
+     */
+    public PeerSessionHandler(int m, long F, int l, NativeBigInteger g,
+                              NativeBigInteger h, ClientSession server,
+                              int nThreads, int maxFrameSize) {
+        this.m = m;
+        this.F = F;
+        this.l = l;
+        this.g = g;
+        this.h = h;
+        this.codec = new ProofCodec(new UserVector2(m, F, l, g, h));
+        this.server = server;
+        this.maxFrameSize = maxFrameSize;
+        this.sum = new StripedAccumulator(m, F, nThreads);
+        this.pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger(0);
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PeerSessionHandler-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts an epoch: sets the challenge vectors the server sent for it
+     * and clears the sum and whatever is left of the previous epoch.
+     */
+    public void init(int epoch, int[][] c) {
+        this.c = c;
+        this.epoch = epoch;
+        pending.clear();
+        settled.clear();
+        sum.reset();
+        AdmissionControl a = admission;
+        if(a != null)
+            a.reset();
+    }
+
+    /**
+     * Sets the admission control, or <code>null</code> for none (the
+     * default).
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the sum of the shares that passed. Call once the epoch's
+     *         verifications are done.
+     */
+    public long[] getPeerSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Sends the peer's sum to the server. Call once the epoch's
+     * verifications are done.
+     */
+    public void sendPeerSum() throws IOException {
+        server.sendPeerSum(epoch, getPeerSum());
+        server.flush();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public FrameDecoder newDecoder() {
+        return new LengthPrefixedDecoder(4, maxFrameSize);
+    }
+
+    public void frameReceived(NioServer.Connection conn, Object frame)
+        throws IOException {
+        ByteBuffer b = (ByteBuffer)frame;
+        byte type = SessionCodec.getType(b);
+        int user;
+        int frameEpoch;
+        long[] v = null;
+        UserVector2.L2NormBoundProof2 proof = null;
+        switch(type) {
+        case SessionCodec.SHARE: {
+            ShareCodec.Share share = SessionCodec.decodeShare(b, m);
+            if(share.getVector().length != m || share.getF() != F)
+                throw new IOException("Share of user " + share.getUser()
+                                      + " does not match the dimension or field.");
+            user = share.getUser();
+            frameEpoch = share.getEpoch();
+            v = share.getVector();
+            break;
+        }
+        case SessionCodec.PROOF: {
+            ProofCodec.UserProof p = codec.decode(SessionCodec.unwrap(b));
+            if(p.getProof().isForServer())
+                throw new IOException("Proof of user " + p.getUser() + " is the server's.");
+            user = p.getUser();
+            frameEpoch = p.getEpoch();
+            proof = p.getProof();
+            break;
+        }
+        default:
+            throw new IOException("Unexpected session frame of type " + type + ".");
+        }
+
+        AdmissionControl admission = this.admission;
+        boolean accepted = frameEpoch == epoch && c != null
+            && !settled.containsKey(user);
+        boolean admitted = !accepted || admission == null
+            || admission.reserve(user, v != null ? AdmissionControl.SHARE : AdmissionControl.PROOF,
+                                 v != null ? 8L*m : b.limit());
+        ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+        SessionCodec.encodeAck(ack, type, user, frameEpoch,
+                               !admitted ? SessionCodec.RETRY_LATER
+                               : accepted ? SessionCodec.ACCEPTED : SessionCodec.IGNORED);
+        ack.flip();
+        conn.write(ack);
+        if(admission != null) {
+            Object sent = conn.getAttachment();
+            conn.setAttachment(admission.advertise(conn, sent == null ? 0 : (Integer)sent));
+        }
+        if(accepted && admitted)
+            arrived(user, v, proof);
+    }
+
+    /**
+     * Keeps a share or a proof and starts the verification once the user
+     * has sent both.
+     */
+    private void arrived(final int user, long[] v, UserVector2.L2NormBoundProof2 proof) {
+        Submission s = pending.get(user);
+        if(s == null) {
+            Submission t = pending.putIfAbsent(user, s = new Submission());
+            if(t != null)
+                s = t;
+        }
+        synchronized(s) {
+            if(v != null)
+                s.v = v;
+            if(proof != null)
+                s.proof = proof;
+            if(s.v == null || s.proof == null)
+                return;
+        }
+        pending.remove(user, s);
+
+        final Submission ready = s;
+        final int e = epoch;
+        final int[][] cc = c;
+        pool.execute(new Runnable() {
+            public void run() {
+                verify(user, e, cc, ready);
+            }
+        });
+    }
+
+    private void verify(int user, int epoch, int[][] c, Submission s) {
+        UserVector2 pv = new UserVector2(m, F, l, g, h);
+        pv.setV(s.v);
+        pv.setChecksumCoefficientVectors(c);
+        boolean passed = pv.verify2(s.proof);
+        AdmissionControl a = admission;
+        if(a != null)
+            a.release(user);
+        if(epoch != this.epoch || settled.putIfAbsent(user, passed) != null)
+            return; // Another submission of his got there first
+        try {
+            if(passed) {
+                sum.add(s.v);
+                server.sendY(user, epoch, pv.getY());
+            }
+            else
+                server.sendDisqualify(user, epoch);
+            server.flush();
+        }
+        catch(IOException e) {
+            System.out.println("Cannot send Y of user " + user + " to the server: " + e);
+        }
+    }
+
+    public void closed(NioServer.Connection conn) {
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.nio.LongBuffer;
+
+/**
+ * A {@link ShareStore} that keeps the vectors on the Java heap. The vectors
+ * are not copied, so the caller must not modify a vector after storing it.
+ * This is what the server has always done and is the default.
+ */
+
+public class HeapShareStore implements ShareStore {
+    private final int m;
+    private long[][] vectors = new long[16][];
+
+    public HeapShareStore(int m) {
+        this.m = m;
+    }
+
+    public int getDimension() {
+        return m;
+    }
+
+    public synchronized void put(int slot, long[] v) {
+        if(v.length != m)
+            throw new IllegalArgumentException("User vector dimension must agree.");
+
+        if(slot >= vectors.length) {
+            long[][] vv = new long[Math.max(slot+1, 2*vectors.length)][];
+            System.arraycopy(vectors, 0, vv, 0, vectors.length);
+            vectors = vv;
+        }
+        vectors[slot] = v;
+    }
+
+    public synchronized LongBuffer get(int slot) {
+        if(slot >= vectors.length || vectors[slot] == null)
+            return null;
+        return LongBuffer.wrap(vectors[slot]).asReadOnlyBuffer();
+    }
+
+    public synchronized void remove(int slot) {
+        if(slot < vectors.length)
+            vectors[slot] = null;
+    }
+
+    public synchronized void clear() {
+        vectors = new long[16][];
+    }
+
+    public void close() {
+        clear();
+    }
+}
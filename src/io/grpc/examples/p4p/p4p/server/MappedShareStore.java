@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * A {@link ShareStore} that keeps the vectors off the Java heap, either in a
+ * memory-mapped file or, if no file is given, in direct buffers.
+ * <p>
+ * The store is an array of fixed-width records of m longs each. Record i
+ * holds the vector of slot i. The records are grouped into segments of about
+ * 64MB, each mapped (or allocated) the first time a slot in it is written.
+ * So the store grows with the number of users and can be larger than the
+ * 2GB limit of a <code>ByteBuffer</code> and larger than the heap. Since the data are not on
+ * the heap they put no load on the garbage collector.
+ * <p>
+ * The vectors returned by {@link #get(int)} are views into the records.
+ */
+
+public class MappedShareStore implements ShareStore {
+    private static final int SEGMENT_SIZE = 64 << 20;
+    // The target size of a segment in bytes. A segment holds at least one
+    // record.
+
+    private final int m;
+    private final int recordBytes;
+    private final int recordsPerSegment;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private ByteBuffer[] segments = new ByteBuffer[1];
+    private final BitSet present = new BitSet();   // The non-empty slots
+
+    /**
+     * Constructs a store backed by direct buffers.
+     *
+     * @param m     the dimension of the vectors
+     */
+    public MappedShareStore(int m) throws IOException {
+        this(m, null);
+    }
+
+    /**
+     * Constructs a store backed by the given file. The file is created if
+     * it does not exist. Its old content is ignored.
+     *
+     * @param m     the dimension of the vectors
+     * @param f     the file, or <code>null</code> to use direct buffers
+     */
+    public MappedShareStore(int m, File f) throws IOException {
+        if((long)m*8 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Vector dimension too large: " + m);
+
+        this.m = m;
+        this.recordBytes = Math.max(8, m*8);
+        this.recordsPerSegment = Math.max(1, SEGMENT_SIZE/recordBytes);
+        if(f != null) {
+            file = new RandomAccessFile(f, "rw");
+            channel = file.getChannel();
+        }
+        else {
+            file = null;
+            channel = null;
+        }
+    }
+
+    public int getDimension() {
+        return m;
+    }
+
+    /**
+     * Returns the segment holding the given slot, mapping or allocating it
+     * if necessary.
+     */
+    private synchronized ByteBuffer segment(int slot) throws IOException {
+        int i = slot/recordsPerSegment;
+        if(i >= segments.length) {
+            ByteBuffer[] ss = new ByteBuffer[Math.max(i+1, 2*segments.length)];
+            System.arraycopy(segments, 0, ss, 0, segments.length);
+            segments = ss;
+        }
+
+        if(segments[i] == null) {
+            long size = (long)recordsPerSegment*recordBytes;
+            if(channel != null)
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long)i*size, size);
+            else
+                segments[i] = ByteBuffer.allocateDirect((int)size);
+        }
+        return segments[i];
+    }
+
+    /**
+     * Returns a view of the record of the given slot.
+     */
+    private LongBuffer record(int slot) {
+        ByteBuffer bb;
+        try {
+            bb = segment(slot).duplicate();
+        }
+        catch(IOException e) {
+            throw new RuntimeException("Can't map the share store: " + e);
+        }
+
+        int offset = (slot%recordsPerSegment)*recordBytes;   // < 2GB
+        bb.position(offset);
+        bb.limit(offset + m*8);
+        return bb.slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    public void put(int slot, long[] v) {
+        if(v.length != m)
+            throw new IllegalArgumentException("User vector dimension must agree.");
+
+        record(slot).put(v);
+        synchronized(present) {
+            present.set(slot);
+        }
+    }
+
+    public LongBuffer get(int slot) {
+        synchronized(present) {
+            if(!present.get(slot))
+                return null;
+        }
+        return record(slot).asReadOnlyBuffer();
+    }
+
+    public void remove(int slot) {
+        synchronized(present) {
+            present.clear(slot);
+        }
+    }
+
+    public void clear() {
+        synchronized(present) {
+            present.clear();
+        }
+    }
+
+    /**
+     * Drops the segments and closes the file. The mapped segments are
+     * unmapped when they are garbage collected.
+     */
+    public synchronized void close() throws IOException {
+        clear();
+        segments = new ByteBuffer[1];
+        if(file != null)
+            file.close();
+    }
+}
@@ -31,13 +31,21 @@
 
 package io.grpc.examples.p4p.p4p.server;
 
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.Hashtable;
-import java.util.Map;
+import java.nio.LongBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.grpc.examples.p4p.p4p.peer.P4PPeer;
 import io.grpc.examples.p4p.p4p.user.UserVector2;
+import io.grpc.examples.p4p.p4p.user.VerificationStats;
+import io.grpc.examples.p4p.p4p.util.ChallengeGenerator;
 import io.grpc.examples.p4p.p4p.util.P4PParameters;
+import io.grpc.examples.p4p.p4p.util.StripedAccumulator;
 import io.grpc.examples.p4p.p4p.util.Util;
 import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
 
@@ -77,38 +85,87 @@ public class P4PServer extends P4PParameters {
     protected int N = 50;     // The number of chechsums to compute. Default 50
     public int c[][] = null; // The challenge vectors ✈️I.IV send to user
     private long[] s = null;         // The accumulated vector sum
+    private StripedAccumulator sum = null;
+    // Where the qualified shares are added. Merged into s by compute().
     private long[] peerSum = null;   // The peer's share of the vector sum
 
+    /**
+     * Hears the verdict on each user.
+     */
+    public interface VerdictListener {
+        /**
+         * Called on the verifying thread once a user's proof has been
+         * checked against his Y. Must not block.
+         */
+        void verdict(int user, boolean passed);
+    }
+
     /**
      * A class holding user information, including his data vector (share),
      * its validity ZKP etc.
      */
     public class UserInfo {
         private int ID;
-        private long[] v = null;
+        private final int slot;
+        // Where the user's vector is in the share store
+        private boolean hasVector = false;
         private UserVector2.L2NormBoundProof2 proof = null;
         // The L2 norm bound proof. Should be passed to us by the user.
         private BigInteger[] Y = null;
         // The commitments to the peer's share of the checksums.
-
-        public UserInfo(int user, long[] v) {
+        private AtomicBoolean cancelled = new AtomicBoolean(false);
+        // Replaced whenever the share or the proof changes. Setting it stops
+        // the verification of the old ones.
+        private boolean claimed = false;
+        // Set once the current share and proof have been handed to a
+        // verifier in incremental mode.
+        private UserVector2.PartialVerification partial = null;
+        // The result of the checks that do not need Y, if done
+        private boolean settling = false;
+        // Set once the user has been claimed to be counted or disqualified.
+        private volatile boolean verified = false;
+        // Set once the user's share has been added to the sum.
+
+        public UserInfo(int user, int slot) {
             ID = user;
-            this.v = v;
+            this.slot = slot;
         }
 
         /**
-         * @return Returns the vector v.
+         * @return Returns a copy of the vector v.
          */
         public long[] getVector() {
+            LongBuffer view = getVectorView();
+            if(view == null)
+                return null;
+            long[] v = new long[m];
+            view.get(v);
             return v;
         }
 
+        /**
+         * @return Returns a read-only view of the vector v in the share
+         *         store, or <code>null</code> if there is none.
+         */
+        public LongBuffer getVectorView() {
+            return hasVector ? store.get(slot) : null;
+        }
+
         /**
          * Update the user vector.
          * @param v The new vector to set.
+         * @return <code>false</code> if the user is already being counted
+         *         and the vector is not updated.
          */
-        public void setVector(long[] v) {
-            this.v = v;
+        public synchronized boolean setVector(long[] v) {
+            if(settling)
+                return false;
+            // Before the store is written, so that a verification that may
+            // read the old vector half overwritten is cancelled first
+            invalidate();
+            store.put(slot, v);
+            hasVector = true;
+            return true;
         }
 
         /**
@@ -127,26 +184,171 @@ public class P4PServer extends P4PParameters {
         /**
          * Set the l2 norm proof.
          * @param proof The proof to set.
+         * @return <code>false</code> if the user is already being counted
+         *         and the proof is not updated.
          */
-        public void setProof(UserVector2.L2NormBoundProof2 proof) {
+        public synchronized boolean setProof(UserVector2.L2NormBoundProof2 proof) {
+            if(settling)
+                return false;
             this.proof = proof;
+            invalidate();
+            return true;
         }
 
         /**
          */
-        public void setY(BigInteger[] Y) {
+        public synchronized void setY(BigInteger[] Y) {
             this.Y = Y;
         }
 
         /**
          */
-        public BigInteger[] getY() {
+        public synchronized BigInteger[] getY() {
             return Y;
         }
+
+        /**
+         * @return the result of the checks that do not need Y, or
+         *         <code>null</code> if they have not been done on the
+         *         current share and proof.
+         */
+        public synchronized UserVector2.PartialVerification getPartial() {
+            return partial;
+        }
+
+        /**
+         * Forgets any verification done on the old share or proof.
+         */
+        private void invalidate() {
+            cancelled.set(true);
+            cancelled = new AtomicBoolean(false);
+            claimed = false;
+            partial = null;
+        }
+
+        /**
+         * @return <code>true</code> if the user has been verified and his
+         *         share is already in the sum.
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+
+        /**
+         * Claims the user for the checks that do not need Y if his share and
+         * proof have both arrived. Only the first caller succeeds.
+         *
+         * @return the cancellation flag of the share and proof claimed, or
+         *         <code>null</code> if the claim fails.
+         */
+        synchronized AtomicBoolean claimForPartial() {
+            if(claimed || settling || !hasVector || proof == null)
+                return null;
+            claimed = true;
+            return cancelled;
+        }
+
+        /**
+         * Records the result of the checks that do not need Y.
+         *
+         * @return <code>false</code> if the share or the proof has changed
+         *         since it was claimed. The result is then dropped.
+         */
+        synchronized boolean setPartial(UserVector2.PartialVerification pv,
+                                        AtomicBoolean claim) {
+            if(pv == null || claim != cancelled)
+                return false;
+            partial = pv;
+            return true;
+        }
+
+        /**
+         * Claims the user to be counted or disqualified once the checks
+         * that do not need Y are done and Y has arrived, or as soon as those
+         * checks fail. Only the first caller succeeds.
+         */
+        synchronized boolean claimToSettle() {
+            if(settling || partial == null
+                    || (Y == null && partial.hasPassed()))
+                return false;
+            settling = true;
+            return true;
+        }
+
+        /**
+         * Claims the user to be verified from scratch by {@link #compute}.
+         * Fails if someone else is already settling him, or if his share or
+         * proof never came, e.g. when only Y did.
+         */
+        synchronized boolean claimForCompute() {
+            if(settling || !hasVector || proof == null)
+                return false;
+            settling = true;
+            return true;
+        }
+
+        /**
+         * Marks the user as verified and drops the data that is no longer
+         * needed once his share has been added to the sum.
+         */
+        synchronized void release() {
+            verified = true;
+            hasVector = false;
+            store.remove(slot);
+            proof = null;
+            Y = null;
+        }
     }
 
-    private Hashtable<Integer, UserInfo> usersMap =
-            new Hashtable<Integer, UserInfo>();
+    private UserRegistry<UserInfo> users = new UserRegistry<UserInfo>();
+    // The users of this epoch. The slot of a user in the registry is also
+    // his slot in the share store.
+
+    private ShareStore store = null;    // Where the users' vectors are kept
+
+    private int nThreads = 1;        // The number of verifier threads
+    private ForkJoinPool pool = null;
+    private boolean intraUser = false;
+    // Split the sub-proofs of each user over the pool too
+
+    private boolean incremental = false;
+    // Verify users as soon as their data arrive
+    private ConcurrentLinkedQueue<ForkJoinTask<?>> pending =
+            new ConcurrentLinkedQueue<ForkJoinTask<?>>();
+    // Incremental verifications that haven't been joined yet
+    private AtomicInteger nDisqualified = new AtomicInteger(0);
+    // Users disqualified by incremental verification
+    private VerificationStats stats = new VerificationStats();
+    // Where the verifiers count the rejections of each stage
+    private UserVector2.RangeProofMode rangeProofMode =
+            UserVector2.RangeProofMode.BIT_COMMITMENTS;
+    // The range proof the users must use
+    private boolean aggregateSquareProof = false;
+    // Whether the users must aggregate their square proofs
+    private volatile VerificationCache cache = null;
+    // Results of earlier verifications of the same submissions
+    private volatile VerdictListener verdictListener = null;
+    private byte[] parameterDigest = null;
+    private int[][] parameterDigestC = null;
+    private UserVector2.RangeProofMode parameterDigestMode = null;
+    private boolean parameterDigestAggregate = false;
+    // The challenge vectors and proof modes parameterDigest was computed for
+
+    /**
+     * The verifier state of a thread doing incremental verification. The
+     * <code>UserVector2</code> is rebuilt when the challenge vectors change.
+     */
+    private static class VerifierState {
+        UserVector2 uv = null;
+        int[][] c = null;
+    }
+
+    private ThreadLocal<VerifierState> verifiers =
+            new ThreadLocal<VerifierState>() {
+                protected VerifierState initialValue() {
+                    return new VerifierState();
+                }
+            };
 
     /**
      */
@@ -162,19 +364,148 @@ public class P4PServer extends P4PParameters {
         this.N = N;
         this.g = g;
         this.h = h;
+        this.store = new HeapShareStore(m);
 
         init();
     }
 
+    /**
+     * Sets where the users' vectors are kept until they are verified. By
+     * default they are kept on the heap. A {@link MappedShareStore} keeps
+     * them in a memory-mapped file or in direct buffers instead, which lets
+     * the server buffer many more users without GC pressure. The old store
+     * is closed. This should be called before any user vector is set.
+     *
+     * @param store     the share store
+     */
+    public void setShareStore(ShareStore store) {
+        if(store.getDimension() != m)
+            throw new IllegalArgumentException("Share store dimension must agree.");
+
+        awaitPending();
+        if(this.store != null && this.store != store) {
+            try {
+                this.store.close();
+            }
+            catch(IOException e) {
+                System.out.println("Can't close the share store: " + e);
+            }
+        }
+        this.store = store;
+        users.clear();
+    }
+
+    public ShareStore getShareStore() {
+        return store;
+    }
+
     /**
      */
     public void init() {
         if(s == null)
             s = new long[m];
 
+        awaitPending();
+        if(sum == null)
+            sum = new StripedAccumulator(m, F, nThreads);
+        else
+            sum.reset();
         for(int i = 0; i < m; i++)
             s[i] = 0;
-        usersMap.clear();
+        users.clear();
+        store.clear();
+        nDisqualified.set(0);
+        stats.reset();
+    }
+
+    /**
+     * Turns on or off the incremental mode. In incremental mode the bulk of
+     * a user's verification, everything that does not need Y from the peer,
+     * starts as soon as his share and proof are both present. It overlaps
+     * with the peer's round trip. When Y arrives only the S[i] = X[i]*B[i]*Y[i]
+     * checks are left. A qualified share is added to the sum
+     * right away and the share and the proof are then dropped so the server
+     * only holds O(m) data no matter how many users there are. If there are
+     * more than one verifier thread the verification is done by the pool,
+     * otherwise by the calling thread. {@link #compute(P4PPeer)} waits for
+     * the outstanding verifications and then only handles users that did
+     * not complete the set.
+     * <p>
+     * Note that once a user is verified his share is in the sum and can't be
+     * taken out. Disqualifying or updating him afterwards has no effect on
+     * the sum.
+     *
+     * @param incremental   <code>true</code> to verify users on arrival
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Selects the range proof the users must use for the bound on their sum
+     * of squares. Proofs of the other kind are rejected. This should be set
+     * before any user is verified.
+     *
+     * @param mode  the range proof
+     */
+    public void setRangeProofMode(UserVector2.RangeProofMode mode) {
+        this.rangeProofMode = mode;
+    }
+
+    public UserVector2.RangeProofMode getRangeProofMode() {
+        return rangeProofMode;
+    }
+
+    /**
+     * Selects whether the users must prove the squares of their checksums
+     * with one aggregated proof instead of one proof per checksum. This
+     * should be set before any user is verified.
+     */
+    public void setAggregateSquareProof(boolean aggregate) {
+        this.aggregateSquareProof = aggregate;
+    }
+
+    public boolean isAggregateSquareProof() {
+        return aggregateSquareProof;
+    }
+
+    /**
+     * Sets a cache of verification results. A share and proof that have
+     * been verified before, in this epoch or an earlier one with the same
+     * parameters and challenge vectors, are then accepted or rejected
+     * without checking the proof again. Only the check against Y is
+     * repeated.
+     *
+     * @param cache the cache, or <code>null</code> for none (the default)
+     */
+    public void setVerificationCache(VerificationCache cache) {
+        this.cache = cache;
+    }
+
+    public VerificationCache getVerificationCache() {
+        return cache;
+    }
+
+    /**
+     * Sets who hears the verdicts, e.g. to tell the users.
+     *
+     * @param listener  the listener, or <code>null</code> for none (the
+     *                  default)
+     */
+    public void setVerdictListener(VerdictListener listener) {
+        this.verdictListener = listener;
+    }
+
+    /**
+     * @return the number of users that passed the verification and the
+     *         number rejected at each stage since {@link #init()}.
+     */
+    public VerificationStats getVerificationStats() {
+        return stats;
     }
 
     /**
@@ -183,34 +514,82 @@ public class P4PServer extends P4PParameters {
      * @param user   user ID
      * @param v      an m-dimensional vector
      *
+     * @return <code>true</code> if the vector is kept. <code>false</code> if
+     *         the user has been disqualified or is already counted.
      */
-    public void setUserVector(int user, long[] v) {
+    public boolean setUserVector(int user, long[] v) {
         if(v.length != m)
             throw new IllegalArgumentException("User vector dimension must agree.");
 
-        UserInfo userInfo = usersMap.get(user);
+        UserInfo userInfo = register(user);
+        if(userInfo == null) {
+            System.out.println("User " + user + " has been disqualified."
+                    + " New vector ignored.");
+            return false;
+        }
+        if(!userInfo.setVector(v)) {
+            System.out.println("User " + user + " has already been counted."
+                    + " New vector ignored.");
+            return false;
+        }
+
+        arrived(userInfo);
+        return true;
+    }
+
+    /**
+     * Returns the information of a user, registering him if he is new.
+     *
+     * @return the user, or <code>null</code> if he has been disqualified.
+     */
+    private UserInfo register(int user) {
+        int slot = users.register(user);
+        if(users.isDisqualified(slot))
+            return null;
+
+        UserInfo userInfo = users.get(slot);
         if(userInfo == null)
-            userInfo = new UserInfo(user, v);
-        else
-            userInfo.setVector(v);
+            userInfo = users.setIfAbsent(slot, new UserInfo(user, slot));
+        return userInfo;
+    }
 
-        usersMap.put(user, userInfo);
+    /**
+     * Returns the information of a qualified user.
+     *
+     * @return the user, or <code>null</code> if the user is not found or has
+     *         been disqualified.
+     */
+    private UserInfo getQualifiedUser(int user) {
+        int slot = users.lookup(user);
+        if(slot < 0 || !users.isQualified(slot))
+            return null;
+        return users.get(slot);
     }
 
     /**
-     * Disqualify a user and remove his (share of) vector.
+     * Disqualify a user and remove his (share of) vector. A disqualified
+     * user stays disqualified until {@link #init()} is called. A user not
+     * heard of yet is disqualified too, so that what he sends later is
+     * ignored.
      *
      * @param user  user ID
      *
      * @return <code>true</code> if the user is sucessfuly removed.
-     *         <code>false</code> if the user is not found in the record.
+     *         <code>false</code> if he has already been disqualified.
      */
     public boolean disqualifyUser(int user) {
-        return usersMap.remove(user) == null;
+        int slot = users.register(user);
+        if(!users.disqualify(slot))
+            return false;
+
+        UserInfo userInfo = users.get(slot);
+        if(userInfo != null && !userInfo.isVerified())
+            store.remove(slot);
+        return true;
     }
 
     public int getNQulaifiedUsers() {
-        return usersMap.size();
+        return users.getNQualified();
     }
 
     /**
@@ -218,29 +597,197 @@ public class P4PServer extends P4PParameters {
      * @param user The user index.
      * @param proof The proof to set.
      * @return <code>true</code> if the user is sucessfuly updated.
-     *         <code>false</code> if the user is not found in the record.
+     *         <code>false</code> if the user is not found in the record or
+     *         is already being counted.
      */
     public boolean setProof(int user, UserVector2.L2NormBoundProof2 proof) {
-        UserInfo userInfo = usersMap.get(user);
-        if(userInfo == null)
+        UserInfo userInfo = getQualifiedUser(user);
+        if(userInfo == null || !userInfo.setProof(proof))
             return false;
-        userInfo.setProof(proof);
+        arrived(userInfo);
         return true;
     }
 
     /**
-     * Sets Y for the given user.
+     * Sets Y for the given user. Y may come before the user's share and
+     * proof, e.g. if the server had no room for them, and is then kept for
+     * them.
      * @param user     The user index.
      * @param Y       The commitments to the peer's share of the checksums
      * @return <code>true</code> if the user is sucessfuly updated.
-     *         <code>false</code> if the user is not found in the record.
+     *         <code>false</code> if the user has been disqualified.
      */
     public boolean setY(int user, BigInteger[] Y) {
-        UserInfo userInfo = usersMap.get(user);
+        UserInfo userInfo = register(user);
         if(userInfo == null)
             return false;
 
         userInfo.setY(Y);
+        arrived(userInfo);
+        return true;
+    }
+
+    /**
+     * Called when a piece of user data arrives. In incremental mode, starts
+     * the checks that do not need Y as soon as the share and the proof are
+     * both present, and settles the user once those checks are done and Y
+     * has arrived.
+     */
+    private void arrived(final UserInfo user) {
+        if(!incremental || c == null)
+            return;
+
+        final AtomicBoolean claim = user.claimForPartial();
+        if(claim == null) {
+            if(user.claimToSettle())
+                settle(user);
+            return;
+        }
+
+        if(nThreads == 1) {
+            verifyPartial(user, claim);
+            return;
+        }
+
+        pending.add(getPool().submit(new Runnable() {
+            public void run() {
+                verifyPartial(user, claim);
+            }
+        }));
+    }
+
+    /**
+     * Runs the checks that do not need Y on a claimed user. Settles him
+     * right away if Y is already there.
+     */
+    private void verifyPartial(UserInfo user, AtomicBoolean claim) {
+        VerifierState state = verifiers.get();
+        if(state.uv == null || state.c != c) {
+            state.uv = new UserVector2(m, F, l, g, h);
+            state.uv.setChecksumCoefficientVectors(c);
+            state.uv.setVerificationStats(stats);
+            state.c = c;
+        }
+        state.uv.setVerificationPool(getIntraUserPool());
+        state.uv.setRangeProofMode(rangeProofMode);
+        state.uv.setAggregateSquareProof(aggregateSquareProof);
+        UserVector2.PartialVerification pv =
+                verifyPartial(state.uv, user, claim);
+        if(user.setPartial(pv, claim) && user.claimToSettle())
+            settle(user);
+        // Otherwise the share or the proof has been replaced meanwhile and
+        // the new one has been claimed by whoever replaced it.
+    }
+
+    /**
+     * Finishes the verification of a user claimed by
+     * {@link UserInfo#claimToSettle()} and adds his share to the sum if he
+     * qualifies. This only costs N modular multiplications and the addition.
+     */
+    private void settle(UserInfo user) {
+        if(!finish(user, user.getPartial())) {
+            nDisqualified.incrementAndGet();
+            return;
+        }
+
+        sum.add(user.getVectorView());
+        user.release();
+    }
+
+    /**
+     * Waits for all the incremental verifications submitted so far.
+     */
+    private void awaitPending() {
+        ForkJoinTask<?> task;
+        while((task = pending.poll()) != null)
+            task.join();
+    }
+
+    /**
+     * Verifies a user with the given verifier and disqualifies him if his
+     * proof does not check out. The checks that do not need Y are reused if
+     * they have already been done on the user's current share and proof.
+     *
+     * @return <code>true</code> if the user passes the verification.
+     */
+    private boolean verify(UserVector2 uv, UserInfo user) {
+        UserVector2.PartialVerification pv = user.getPartial();
+        if(pv == null)
+            pv = verifyPartial(uv, user, null);
+        return finish(user, pv);
+    }
+
+    /**
+     * Runs the checks that do not need Y on a user's share and proof with
+     * the given verifier, or takes the result from the verification cache
+     * if the same submission has been verified before.
+     *
+     * @return the result, or <code>null</code> if cancelled.
+     */
+    private UserVector2.PartialVerification verifyPartial(UserVector2 uv,
+                                                          UserInfo user,
+                                                          AtomicBoolean cancelled) {
+        LongBuffer share = user.getVectorView();
+        UserVector2.L2NormBoundProof2 proof = user.getProof();
+        VerificationCache cache = this.cache;
+        byte[] key = null;
+        if(cache != null) {
+            key = VerificationCache.digest(getParameterDigest(), proof, share);
+            UserVector2.PartialVerification pv = cache.get(key);
+            if(pv != null) {
+                if(!pv.hasPassed())
+                    stats.reject(pv.getFailedStage());
+                return pv;
+            }
+        }
+
+        uv.setU(share);
+        UserVector2.PartialVerification pv =
+                uv.serverVerifyPartial(proof, cancelled);
+        if(pv != null && key != null && (cancelled == null || !cancelled.get()))
+            cache.put(key, pv);
+        // Otherwise the share may have been overwritten while it was read,
+        // and the result does not belong to the key.
+        return pv;
+    }
+
+    /**
+     * @return the digest of the parameters and the current challenge
+     *         vectors, the common part of the verification cache keys.
+     */
+    private synchronized byte[] getParameterDigest() {
+        if(parameterDigest == null || parameterDigestC != c
+                || parameterDigestMode != rangeProofMode
+                || parameterDigestAggregate != aggregateSquareProof) {
+            parameterDigest = VerificationCache.digestParameters(F, l, g, h, c,
+                    rangeProofMode, aggregateSquareProof);
+            parameterDigestC = c;
+            parameterDigestMode = rangeProofMode;
+            parameterDigestAggregate = aggregateSquareProof;
+        }
+        return parameterDigest;
+    }
+
+    /**
+     * Completes a partial verification with the user's Y and disqualifies
+     * him if it fails.
+     *
+     * @return <code>true</code> if the user passes the verification.
+     */
+    private boolean finish(UserInfo user, UserVector2.PartialVerification pv) {
+        VerdictListener listener = verdictListener;
+        if(!pv.complete(user.getY(), stats)) {
+            System.out.println("User " + user.ID
+                    + "'s vector failed the verification.");
+            disqualifyUser(user.ID);
+            // TODO: Must let the peer know about disqualified users so he can computes his share
+            // of the sum (the peerSum).
+            if(listener != null)
+                listener.verdict(user.ID, false);
+            return false;
+        }
+        if(listener != null)
+            listener.verdict(user.ID, true);
         return true;
     }
 
@@ -269,6 +816,19 @@ public class P4PServer extends P4PParameters {
         }
     }
 
+    /**
+     * Expands the challenge vectors from a seed. The users are sent the
+     * seed instead of the vectors and can expand them a chunk at a time.
+     *
+     * @param gen   the generator. Must be for N vectors of dimension m.
+     */
+    public void generateChallengeVectors(ChallengeGenerator gen) {
+        if(gen.getN() != N || gen.getDimension() != m)
+            throw new IllegalArgumentException("Expecting " + N + " challenge"
+                    + " vectors of dimension " + m + ".");
+        c = gen.expandAll();
+    }
+
     /**
      */
     public int[][] getChallengeVectors() {
@@ -277,41 +837,162 @@ public class P4PServer extends P4PParameters {
 
 
     /**
-     * The server have received data and their proofs from enough users.
-     * This fucntion is then called to compute the sum of the valid vectors.
+     * Sets the number of threads used by {@link #compute(P4PPeer)} to verify
+     * the users. With <code>n = 1</code> (the default) everything is done in
+     * the calling thread. Otherwise the users are verified by a pool of
+     * <code>n</code> workers, each with its own verifier state and its own
+     * partial sum which are merged when all the users are processed.
+     *
+     * @param n     the number of verifier threads
      */
-    public void compute(P4PPeer peer) {
-        Object[] users = usersMap.entrySet().toArray();
+    public void setVerifierThreads(int n) {
+        if(n < 1)
+            throw new IllegalArgumentException("Need at least one verifier thread.");
+
+        if(n != nThreads) {
+            awaitPending();
+            shutdown();
+            // One stripe per thread. Carry over what has been added so far:
+            StripedAccumulator newSum = new StripedAccumulator(m, F, n);
+            newSum.add(sum.sum());
+            sum = newSum;
+        }
+        nThreads = n;
+    }
+
+    public int getVerifierThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Turns on or off the intra-user parallelism. When it is on and there is
+     * more than one verifier thread, the sub-proofs of each user's proof are
+     * also split over the verifier pool. This helps when there are fewer
+     * users than threads, e.g. a small cohort with large proofs. The users
+     * and their sub-proofs share the same pool so the number of threads stays
+     * at {@link #getVerifierThreads()}. The verdicts are the same either way.
+     *
+     * @param intraUser <code>true</code> to verify each proof in parallel
+     */
+    public void setIntraUserParallelism(boolean intraUser) {
+        this.intraUser = intraUser;
+    }
 
-        UserVector2 uv = new UserVector2(m, F, l, g, h);
-        System.out.println("Server:: computing. There are potentially " + usersMap.size()
-                + " users.");
-        int disqualified = 0;
-        for(int i = 0; i < users.length; i++) {
-            Map.Entry<Integer, UserInfo> userEntry =
-                    (Map.Entry<Integer, UserInfo>)users[i];
+    public boolean isIntraUserParallelism() {
+        return intraUser;
+    }
 
-            UserInfo user = userEntry.getValue();
-            long[] u = user.getVector();
+    /**
+     * @return the pool the users' sub-proofs are split over, or
+     *         <code>null</code> if each proof is verified sequentially.
+     */
+    private ForkJoinPool getIntraUserPool() {
+        return intraUser && nThreads > 1 ? getPool() : null;
+    }
+
+    /**
+     * @return the verifier pool. It is created if needed.
+     */
+    private synchronized ForkJoinPool getPool() {
+        if(pool == null)
+            pool = new ForkJoinPool(nThreads);
+        return pool;
+    }
+
+    /**
+     * Releases the verifier threads, if any. The pool will be re-created the
+     * next time it is needed.
+     */
+    public synchronized void shutdown() {
+        if(pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
 
-            // Verify its proof:
-            uv.setU(u);
+    /**
+     * A verifier worker. Workers pull users from a shared index so that users
+     * with expensive proofs do not hold up the others. Each worker owns a
+     * <code>UserVector2</code> for verification and adds to its own stripe
+     * of the sum.
+     */
+    private class Verifier implements Runnable {
+        private final int nSlots;
+        private final AtomicInteger next;
+        private final AtomicInteger disqualified;
+        private final UserVector2 uv = new UserVector2(m, F, l, g, h);
+
+        Verifier(int nSlots, AtomicInteger next, AtomicInteger disqualified) {
+            this.nSlots = nSlots;
+            this.next = next;
+            this.disqualified = disqualified;
             uv.setChecksumCoefficientVectors(c);
-            uv.setY(user.getY());
-            UserVector2.L2NormBoundProof2 proof = user.getProof();
-            if(!uv.verify2(proof)) {
-                System.out.println("User " + user.ID
-                        + "'s vector failed the verification.");
-                disqualifyUser(user.ID);
-                // TODO: Must let the peer know about disqualified users so he can computes his share
-                // of the sum (the peerSum).
-                disqualified++;
-                continue;
+            uv.setVerificationStats(stats);
+            uv.setVerificationPool(getIntraUserPool());
+            uv.setRangeProofMode(rangeProofMode);
+            uv.setAggregateSquareProof(aggregateSquareProof);
+        }
+
+        public void run() {
+            int i;
+            while((i = next.getAndIncrement()) < nSlots) {
+                if(!users.isQualified(i))
+                    continue;
+
+                UserInfo user = users.get(i);
+                if(!user.claimForCompute())
+                    continue;      // Already settled (incremental mode)
+
+                // Verify its proof:
+                if(!verify(uv, user)) {
+                    disqualified.incrementAndGet();
+                    continue;
+                }
+                sum.add(user.getVectorView());
             }
-            Util.vectorAdd(s, u, s, F);
         }
+    }
+
+    /**
+     * The server have received data and their proofs from enough users.
+     * This fucntion is then called to compute the sum of the valid vectors.
+     * The verification is spread over {@link #getVerifierThreads()} threads.
+     * In incremental mode most users have been verified by the time this is
+     * called and are skipped.
+     */
+    public void compute(P4PPeer peer) {
+        awaitPending();
+        int nSlots = users.size();
+
+        System.out.println("Server:: computing. There are potentially "
+                + users.getNQualified() + " users.");
+        AtomicInteger next = new AtomicInteger(0);
+        AtomicInteger disqualified = new AtomicInteger(0);
+        int nWorkers = Math.max(1, Math.min(nThreads, nSlots));
+        Verifier[] workers = new Verifier[nWorkers];
+        for(int i = 0; i < nWorkers; i++)
+            workers[i] = new Verifier(nSlots, next, disqualified);
+
+        if(nWorkers == 1)
+            workers[0].run();
+        else {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[nWorkers];
+            for(int i = 0; i < nWorkers; i++)
+                tasks[i] = getPool().submit(workers[i]);
+            for(int i = 0; i < nWorkers; i++)
+                tasks[i].join();
+        }
+
+        sum.sumInto(s, pool);
         Util.vectorAdd(s, peer.peerSum, s, F);
-        System.out.println("Server:: done computing. " + disqualified + " users disqualified.");
+        System.out.println("Server:: done computing. "
+                + (disqualified.get() + nDisqualified.get())
+                + " users disqualified.");
+        if(stats.getTotalRejected() > 0)
+            System.out.println("Server:: verification: " + stats + ".");
+        if(cache != null)
+            System.out.println("Server:: verification cache: " + cache.getHits()
+                    + " hits, " + cache.getMisses() + " misses.");
     }
 
     /**
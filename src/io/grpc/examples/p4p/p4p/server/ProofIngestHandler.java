@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import io.grpc.examples.p4p.p4p.net.FrameDecoder;
+import io.grpc.examples.p4p.p4p.net.LengthPrefixedDecoder;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.ProofCodec;
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * Takes the users' proofs off a {@link NioServer} and gives them to a
+ * {@link P4PServer}, which verifies them in its own threads.
+ * <p>
+ * Each frame is a proof in the {@link ProofCodec} format. It is decoded on
+ * the loop thread. A connection that sends a malformed frame, or a proof
+ * for another group, is closed. Proofs of another epoch are dropped.
+ */
+
+public class ProofIngestHandler implements NioServer.Handler {
+    private final P4PServer server;
+    private final ProofCodec codec;
+    private final int maxFrameSize;
+    private volatile int epoch = 0;
+
+    /**
+     * @param server        the server to give the proofs to
+     * @param verifier      a vector with the server's parameters. The
+     *                      decoded proofs belong to it.
+     * @param maxFrameSize  the largest proof frame accepted
+     */
+    public ProofIngestHandler(P4PServer server, UserVector2 verifier,
+                              int maxFrameSize) {
+        this.server = server;
+        this.codec = new ProofCodec(verifier);
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Sets the epoch whose proofs are accepted.
+     */
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public FrameDecoder newDecoder() {
+        return new LengthPrefixedDecoder(4, maxFrameSize);
+    }
+
+    public void frameReceived(NioServer.Connection c, Object frame)
+        throws IOException {
+        ProofCodec.UserProof proof = codec.decode((ByteBuffer)frame);
+        if(proof.getEpoch() != epoch) {
+            System.out.println("Proof of user " + proof.getUser() + " is from epoch "
+                               + proof.getEpoch() + ". Ignored.");
+            return;
+        }
+        if(!server.setProof(proof.getUser(), proof.getProof()))
+            System.out.println("Proof of user " + proof.getUser() + " ignored.");
+    }
+
+    public void closed(NioServer.Connection c) {
+    }
+}
@@ -1,54 +1,57 @@
 package io.grpc.examples.p4p.p4p.server;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import io.grpc.examples.p4p.p4p.net.Acceptor;
+import io.grpc.examples.p4p.p4p.net.ProofCodec;
+import io.grpc.examples.p4p.p4p.net.Transport;
 
-public class Server1 {
-
-    public static void main(String args[]) throws IOException,
-            InterruptedException{
 
-        while(true){
-            ServerSocket ss=new ServerSocket(8880);
-            System.out.println("Server is Awaiting");
-            Socket s=ss.accept();
-            Multi1 t=new Multi1(s);
-            t.start();
+public class Server1 {
 
-            Thread.sleep(2000);
-            ss.close();
-        }
+    public static void main(String args[]) throws IOException {
+        Acceptor acceptor = new Acceptor("Server1", 8880, new Acceptor.Handler() {
+            public Runnable newTask(Transport.Connection s) {
+                return new Multi1(s);
+            }
+        });
+        acceptor.configure(args);
+        acceptor.run();
 
     }
 }
-class Multi1 extends Thread{
-    private Socket s=null;
-    ObjectInputStream infromClient;
+class Multi1 implements Runnable{
+    static final int MAX_FRAME_SIZE = 1<<26;
+    private Transport.Connection s=null;
+    DataInputStream infromClient;
     Multi1() throws IOException{
 
 
     }
-    Multi1(Socket s) throws IOException{
+    Multi1(Transport.Connection s){
         this.s=s;
-        infromClient = new ObjectInputStream(s.getInputStream());
     }
     public void run(){
 
-        Object SQL=new String();
+        ProofCodec.Header proof=null;
+        int length=0;
         try {
-            SQL = infromClient.readObject();
+            infromClient = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            ByteBuffer frame = ProofCodec.readFrame(infromClient, MAX_FRAME_SIZE);
+            length = frame.remaining();
+            proof = ProofCodec.readHeader(frame);
         } catch (IOException ex) {
             Logger.getLogger(Multi1.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            System.out.println(e);
         }
-        System.out.println("Query: " + SQL);
+        if(proof != null)
+            System.out.println("Proof of user " + proof.getUser() + " (epoch "
+                    + proof.getEpoch() + "): " + proof.getN() + " checksums, "
+                    + length + " bytes");
         try {
             System.out.println("Socket Closing");
             s.close();
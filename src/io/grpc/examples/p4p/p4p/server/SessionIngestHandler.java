@@ -0,0 +1,374 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.grpc.examples.p4p.p4p.net.AdmissionControl;
+import io.grpc.examples.p4p.p4p.net.FrameDecoder;
+import io.grpc.examples.p4p.p4p.net.LengthPrefixedDecoder;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.ProofCodec;
+import io.grpc.examples.p4p.p4p.net.SessionCodec;
+import io.grpc.examples.p4p.p4p.net.ShareCodec;
+import io.grpc.examples.p4p.p4p.net.SharedMemoryLink;
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+
+/**
+ * Serves the sessions of users and of the privacy peer on
+ * {@link NioServer}s and gives what they send to a {@link P4PServer}.
+ * <p>
+ * A session carries {@link SessionCodec} frames: the users send their
+ * shares and proofs, the peer sends Y or disqualifies users, and at the end
+ * of the epoch sends its sum, for {@link P4PServer#compute}. Every frame
+ * is acknowledged, as accepted or ignored. Frames of another epoch are
+ * ignored. A connection that sends a malformed frame, or a share or proof
+ * that does not match the server's parameters, is closed.
+ * <p>
+ * This handler serves the users. The peer's frames decide who is counted,
+ * so they are only taken from {@link #getPeerHandler()}, which is to be
+ * served on an endpoint only the peer can reach, and a user's session
+ * that sends one is closed.
+ * <p>
+ * Once a user has been verified, or disqualified by the peer, the verdict
+ * is sent on the connection his proof came on, if it is still open. A
+ * user whose proof is ignored, e.g. because he sent it again after losing
+ * his session, is sent the verdict on the connection it came on instead,
+ * once it is known.
+ * <p>
+ * With an {@link AdmissionControl} the shares and proofs waiting for
+ * verification are kept within its budget. Those that do not fit are
+ * dropped and answered with "retry later", and each session is told its
+ * credit window.
+ * <p>
+ * A peer on the same host may instead have its session on a
+ * {@link SharedMemoryLink}, served by {@link #serve(SharedMemoryLink)}.
+ */
+
+public class SessionIngestHandler implements NioServer.Handler {
+    private final P4PServer server;
+    private final ProofCodec codec;
+    private final int m;
+    private final long F;
+    private final int N;
+    private final int maxFrameSize;
+    private volatile int epoch = 0;
+    private volatile AdmissionControl admission = null;
+    private volatile long[] peerSum = null;
+    private final ConcurrentHashMap<Integer, NioServer.Connection> submitters =
+        new ConcurrentHashMap<Integer, NioServer.Connection>();
+    // Where to send each user's verdict
+    private final ConcurrentHashMap<Integer, Boolean> shedShares =
+        new ConcurrentHashMap<Integer, Boolean>();
+    // The users whose share was last refused for want of room
+    private final ConcurrentHashMap<Integer, Boolean> verdicts =
+        new ConcurrentHashMap<Integer, Boolean>();
+    // Whether each user verified in the epoch passed
+
+    /**
+     * @param server        the server to give the submissions to
+     * @param verifier      a vector with the server's parameters. The
+     *                      decoded proofs belong to it.
+     * @param m             the dimension of the shares
+     * @param N             the number of checksums
+     * @param maxFrameSize  the largest frame accepted
+     */
+    public SessionIngestHandler(P4PServer server, UserVector2 verifier, int m,
+                                int N, int maxFrameSize) {
+        this.server = server;
+        this.codec = new ProofCodec(verifier);
+        this.m = m;
+        this.F = verifier.getF();
+        this.N = N;
+        this.maxFrameSize = maxFrameSize;
+        server.setVerdictListener(new P4PServer.VerdictListener() {
+            public void verdict(int user, boolean passed) {
+                verified(user, passed);
+            }
+        });
+    }
+
+    /**
+     * Sets the epoch whose frames are accepted. The verdicts still to come
+     * for the previous epoch are not sent.
+     */
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+        peerSum = null;
+        submitters.clear();
+        shedShares.clear();
+        verdicts.clear();
+        AdmissionControl a = admission;
+        if(a != null)
+            a.reset();
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Sets the admission control, or <code>null</code> for none (the
+     * default).
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * @return the sum the peer sent for the current epoch, or
+     *         <code>null</code> if it has not sent it yet
+     */
+    public long[] getPeerSum() {
+        return peerSum;
+    }
+
+    /**
+     * @return the handler of the peer's session, for a {@link NioServer}
+     *         of its own that only the peer can reach, e.g. on a private
+     *         address or a Unix domain socket. Only the peer's frames are
+     *         accepted there.
+     */
+    public NioServer.Handler getPeerHandler() {
+        return peerHandler;
+    }
+
+    private final NioServer.Handler peerHandler = new NioServer.Handler() {
+        public FrameDecoder newDecoder() {
+            return SessionIngestHandler.this.newDecoder();
+        }
+
+        public void frameReceived(NioServer.Connection c, Object frame)
+            throws IOException {
+            ByteBuffer b = (ByteBuffer)frame;
+            ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+            peerFrame(SessionCodec.getType(b), b, ack);
+            ack.flip();
+            c.write(ack);
+        }
+
+        public void closed(NioServer.Connection c) {
+        }
+    };
+
+    public FrameDecoder newDecoder() {
+        return new LengthPrefixedDecoder(4, maxFrameSize);
+    }
+
+    public void frameReceived(NioServer.Connection c, Object frame)
+        throws IOException {
+        ByteBuffer b = (ByteBuffer)frame;
+        byte type = SessionCodec.getType(b);
+        AdmissionControl admission = this.admission;
+        int user;
+        int frameEpoch;
+        boolean accepted;
+        boolean admitted = true;
+        switch(type) {
+        case SessionCodec.SHARE: {
+            ShareCodec.Share share = SessionCodec.decodeShare(b, m);
+            if(share.getVector().length != m || share.getF() != F)
+                throw new IOException("Share of user " + share.getUser()
+                                      + " does not match the dimension or field.");
+            user = share.getUser();
+            frameEpoch = share.getEpoch();
+            accepted = frameEpoch == epoch;
+            if(accepted && admission != null) {
+                admitted = admission.reserve(user, AdmissionControl.SHARE, 8L*m);
+                if(admitted)
+                    shedShares.remove(user);
+                else
+                    shedShares.put(user, Boolean.TRUE);
+            }
+            if(accepted && admitted) {
+                accepted = server.setUserVector(user, share.getVector());
+                if(!accepted && admission != null)
+                    admission.unreserve(user, AdmissionControl.SHARE);
+            }
+            break;
+        }
+        case SessionCodec.PROOF: {
+            ProofCodec.UserProof proof = codec.decode(SessionCodec.unwrap(b));
+            user = proof.getUser();
+            frameEpoch = proof.getEpoch();
+            accepted = frameEpoch == epoch;
+            if(accepted && admission != null) {
+                // The proof of a refused share is no use without it. Have
+                // both sent again rather than ignore the proof.
+                admitted = !shedShares.containsKey(user)
+                    && admission.reserve(user, AdmissionControl.PROOF, b.limit());
+            }
+            if(accepted && admitted) {
+                submitters.put(user, c);
+                accepted = server.setProof(user, proof.getProof());
+                if(!accepted && admission != null)
+                    admission.unreserve(user, AdmissionControl.PROOF);
+            }
+            break;
+        }
+        case SessionCodec.Y:
+        case SessionCodec.DISQUALIFY:
+        case SessionCodec.PEER_SUM:
+            throw new IOException("Frames of type " + type + " are only accepted from the peer.");
+        default:
+            throw new IOException("Unexpected session frame of type " + type + ".");
+        }
+
+        ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+        SessionCodec.encodeAck(ack, type, user, frameEpoch,
+                               !admitted ? SessionCodec.RETRY_LATER
+                               : accepted ? SessionCodec.ACCEPTED : SessionCodec.IGNORED);
+        ack.flip();
+        c.write(ack);
+        if(admission != null) {
+            Object sent = c.getAttachment();
+            c.setAttachment(admission.advertise(c, sent == null ? 0 : (Integer)sent));
+        }
+        if(type == SessionCodec.PROOF && frameEpoch == epoch && admitted && !accepted) {
+            // Maybe sent again on a new session. The verdict goes there.
+            submitters.put(user, c);
+            Boolean passed = verdicts.get(user);
+            if(passed != null)
+                sendVerdict(user, passed);
+        }
+    }
+
+    /**
+     * Takes a frame of the peer and puts its acknowledgement in
+     * <code>ack</code>.
+     */
+    private void peerFrame(byte type, ByteBuffer b, ByteBuffer ack) throws IOException {
+        int user;
+        int frameEpoch;
+        boolean accepted;
+        switch(type) {
+        case SessionCodec.Y: {
+            SessionCodec.YMessage y = SessionCodec.decodeY(b, N);
+            user = y.getUser();
+            frameEpoch = y.getEpoch();
+            accepted = frameEpoch == epoch && server.setY(user, y.getY());
+            break;
+        }
+        case SessionCodec.DISQUALIFY: {
+            SessionCodec.Ack d = SessionCodec.decodeDisqualify(b);
+            user = d.getUser();
+            frameEpoch = d.getEpoch();
+            accepted = frameEpoch == epoch && server.disqualifyUser(user);
+            if(accepted)
+                verified(user, false);
+            break;
+        }
+        case SessionCodec.PEER_SUM: {
+            SessionCodec.PeerSum sum = SessionCodec.decodePeerSum(b, m);
+            user = -1;
+            frameEpoch = sum.getEpoch();
+            accepted = frameEpoch == epoch;
+            if(accepted)
+                peerSum = sum.getSum();
+            break;
+        }
+        default:
+            throw new IOException("Unexpected session frame of type " + type + ".");
+        }
+        SessionCodec.encodeAck(ack, type, user, frameEpoch,
+                               accepted ? SessionCodec.ACCEPTED : SessionCodec.IGNORED);
+    }
+
+    /**
+     * Serves the session of a peer on the same host on a shared-memory
+     * link, on the calling thread, until the peer closes it. Only the
+     * peer's frames are accepted there.
+     *
+     * @throws IOException if the link fails or the peer sends a malformed
+     *                     frame. The link is left open.
+     */
+    public void serve(SharedMemoryLink link) throws IOException {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(link.getInput().getInputStream(), 64*1024));
+        OutputStream out = link.getOutput().getOutputStream();
+        ByteBuffer ack = ByteBuffer.allocate(SessionCodec.ACK_SIZE);
+        while(true) {
+            ByteBuffer b;
+            try {
+                b = SessionCodec.readFrame(in, maxFrameSize);
+            }
+            catch(EOFException e) {
+                return;
+            }
+            ack.clear();
+            peerFrame(SessionCodec.getType(b), b, ack);
+            out.write(ack.array(), 0, ack.position());
+        }
+    }
+
+    /**
+     * Releases what the user's submission held and sends the verdict.
+     */
+    private void verified(int user, boolean passed) {
+        AdmissionControl a = admission;
+        if(a != null)
+            a.release(user);
+        verdicts.put(user, passed);
+        sendVerdict(user, passed);
+    }
+
+    private void sendVerdict(int user, boolean passed) {
+        NioServer.Connection c = submitters.remove(user);
+        if(c == null || !c.isOpen())
+            return;
+        ByteBuffer b = ByteBuffer.allocate(SessionCodec.VERDICT_SIZE);
+        SessionCodec.encodeVerdict(b, user, epoch,
+                                   passed ? SessionCodec.ACCEPTED : SessionCodec.REJECTED);
+        b.flip();
+        c.write(b);
+    }
+
+    public void closed(NioServer.Connection c) {
+        Iterator<NioServer.Connection> it = submitters.values().iterator();
+        while(it.hasNext()) {
+            if(it.next() == c)
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import io.grpc.examples.p4p.p4p.net.FrameDecoder;
+import io.grpc.examples.p4p.p4p.net.LengthPrefixedDecoder;
+import io.grpc.examples.p4p.p4p.net.NioServer;
+import io.grpc.examples.p4p.p4p.net.ShareCodec;
+
+/**
+ * Takes the users' shares off a {@link NioServer} and gives them to a
+ * {@link P4PServer}.
+ * <p>
+ * Each frame is a share in the {@link ShareCodec} format. A connection may
+ * send any number of shares. One that sends a malformed frame, or a share
+ * of the wrong dimension or field, is closed. Shares of another epoch are
+ * dropped.
+ */
+
+public class ShareIngestHandler implements NioServer.Handler {
+    private final P4PServer server;
+    private final int m;
+    private final long F;
+    private volatile int epoch = 0;
+
+    /**
+     * @param server    the server to give the shares to
+     * @param m         the dimension of the shares
+     * @param F         the order of the field
+     */
+    public ShareIngestHandler(P4PServer server, int m, long F) {
+        this.server = server;
+        this.m = m;
+        this.F = F;
+    }
+
+    /**
+     * Sets the epoch whose shares are accepted.
+     */
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public FrameDecoder newDecoder() {
+        return new LengthPrefixedDecoder(4, ShareCodec.maxFrameSize(m, F,
+                                                                    ShareCodec.Encoding.VARINT) - 4);
+    }
+
+    public void frameReceived(NioServer.Connection c, Object frame)
+        throws IOException {
+        ShareCodec.Share share = ShareCodec.decode((ByteBuffer)frame, m);
+        if(share.getVector().length != m || share.getF() != F)
+            throw new IOException("Share of user " + share.getUser()
+                                  + " does not match the dimension or field.");
+        if(share.getEpoch() != epoch) {
+            System.out.println("Share of user " + share.getUser() + " is from epoch "
+                               + share.getEpoch() + ". Ignored.");
+            return;
+        }
+        server.setUserVector(share.getUser(), share.getVector());
+    }
+
+    public void closed(NioServer.Connection c) {
+    }
+}
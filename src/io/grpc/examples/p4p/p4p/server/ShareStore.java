@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+/**
+ * A store for the users' (shares of) vectors that the server holds until
+ * they are verified and added to the sum.
+ * <p>
+ * Vectors are stored in fixed-width records, one per slot. The server assigns
+ * each user a slot. {@link #get(int)} returns a view of the record rather
+ * than a copy, so the verifier and the accumulator read the data where it
+ * is stored.
+ */
+
+public interface ShareStore {
+    /**
+     * @return the dimension of the vectors in this store.
+     */
+    int getDimension();
+
+    /**
+     * Stores a vector in the given slot, replacing what was there.
+     *
+     * @param slot  the slot
+     * @param v     an m-dimensional vector
+     */
+    void put(int slot, long[] v);
+
+    /**
+     * Returns a read-only view of the vector in the given slot. The view is
+     * only valid until the slot is written to or removed.
+     *
+     * @param slot  the slot
+     * @return the vector, or <code>null</code> if the slot is empty.
+     */
+    LongBuffer get(int slot);
+
+    /**
+     * Empties a slot.
+     */
+    void remove(int slot);
+
+    /**
+     * Empties all the slots.
+     */
+    void clear();
+
+    /**
+     * Releases the resources held by the store.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A registry of the users of an epoch, keyed by their (int) IDs.
+ * <p>
+ * Each user registered gets a slot. Slots are handed out densely, 0, 1, 2,
+ * ..., in the order the users are registered and are never reused until the
+ * registry is cleared. So a slot can be used to address per-user data kept
+ * elsewhere, e.g. in a {@link ShareStore}. The registry maps IDs to slots
+ * with an open-addressing hash table of <code>int</code>s and keeps the
+ * per-user values in an array indexed by slot, so nothing is boxed.
+ * <p>
+ * A user is either qualified or disqualified. Users are qualified when they
+ * are registered. The two states are kept in bit sets indexed by slot,
+ * which can be updated without locking. {@link #nextQualified(int)} walks
+ * the qualified users in slot order without copying anything.
+ * <p>
+ * All the methods can be called concurrently. Lookups share a read lock and
+ * only registering a new user takes the write lock.
+ */
+
+public class UserRegistry<V> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int[] table;
+    // The hash table. Holds slot+1 for each registered ID, 0 if empty. The
+    // length is a power of 2 and the table is at most half full.
+
+    private int[] ids;                 // The ID of each slot
+    private AtomicReferenceArray<V> values;     // The value of each slot
+    private AtomicLongArray qualified;
+    private AtomicLongArray disqualified;
+    private int nSlots = 0;
+    private final AtomicInteger nQualified = new AtomicInteger(0);
+
+    public UserRegistry() {
+        clear();
+    }
+
+    private static int hash(int id) {
+        int h = id*0x9E3779B9;      // Fibonacci hashing
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the slot of a user. Must hold the lock.
+     */
+    private int find(int id) {
+        int mask = table.length - 1;
+        for(int i = hash(id) & mask; ; i = (i+1) & mask) {
+            int slot = table[i] - 1;
+            if(slot < 0)
+                return -1;
+            if(ids[slot] == id)
+                return slot;
+        }
+    }
+
+    /**
+     * Returns the slot of the given user.
+     *
+     * @param id    the user ID
+     * @return the slot, or -1 if the user is not registered.
+     */
+    public int lookup(int id) {
+        lock.readLock().lock();
+        try {
+            return find(id);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Registers a user. Nothing is done if the user is already registered.
+     *
+     * @param id    the user ID
+     * @return the slot of the user.
+     */
+    public int register(int id) {
+        int slot = lookup(id);
+        if(slot >= 0)
+            return slot;
+
+        lock.writeLock().lock();
+        try {
+            slot = find(id);
+            if(slot >= 0)
+                return slot;
+
+            if(nSlots == ids.length)
+                growSlots();
+            if(2*(nSlots+1) > table.length)
+                rehash(2*table.length);
+
+            slot = nSlots++;
+            ids[slot] = id;
+            insert(id, slot);
+            setBit(qualified, slot);
+            nQualified.incrementAndGet();
+            return slot;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void insert(int id, int slot) {
+        int mask = table.length - 1;
+        int i = hash(id) & mask;
+        while(table[i] != 0)
+            i = (i+1) & mask;
+        table[i] = slot+1;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for(int slot = 0; slot < nSlots; slot++)
+            insert(ids[slot], slot);
+    }
+
+    private void growSlots() {
+        int n = 2*ids.length;
+        int[] newIds = new int[n];
+        System.arraycopy(ids, 0, newIds, 0, nSlots);
+        AtomicReferenceArray<V> newValues = new AtomicReferenceArray<V>(n);
+        for(int i = 0; i < nSlots; i++)
+            newValues.set(i, values.get(i));
+        ids = newIds;
+        values = newValues;
+        qualified = grow(qualified, n);
+        disqualified = grow(disqualified, n);
+    }
+
+    private static AtomicLongArray grow(AtomicLongArray bits, int n) {
+        AtomicLongArray newBits = new AtomicLongArray((n+63) >>> 6);
+        for(int i = 0; i < bits.length(); i++)
+            newBits.set(i, bits.get(i));
+        return newBits;
+    }
+
+    /**
+     * Sets bit i. Returns <code>true</code> if it was clear.
+     */
+    private static boolean setBit(AtomicLongArray bits, int i) {
+        long mask = 1L << i;
+        while(true) {
+            long word = bits.get(i >>> 6);
+            if((word & mask) != 0)
+                return false;
+            if(bits.compareAndSet(i >>> 6, word, word | mask))
+                return true;
+        }
+    }
+
+    /**
+     * Clears bit i. Returns <code>true</code> if it was set.
+     */
+    private static boolean clearBit(AtomicLongArray bits, int i) {
+        long mask = 1L << i;
+        while(true) {
+            long word = bits.get(i >>> 6);
+            if((word & mask) == 0)
+                return false;
+            if(bits.compareAndSet(i >>> 6, word, word & ~mask))
+                return true;
+        }
+    }
+
+    private static boolean testBit(AtomicLongArray bits, int i) {
+        return (bits.get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    /**
+     * @return the value of the given slot.
+     */
+    public V get(int slot) {
+        lock.readLock().lock();
+        try {
+            return slot < nSlots ? values.get(slot) : null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the value of the given slot.
+     */
+    public void set(int slot, V value) {
+        lock.readLock().lock();
+        try {
+            if(slot >= nSlots)
+                throw new IllegalArgumentException("No such slot: " + slot);
+            values.set(slot, value);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the value of the given slot unless it already has one.
+     *
+     * @return the value of the slot after the call.
+     */
+    public V setIfAbsent(int slot, V value) {
+        lock.readLock().lock();
+        try {
+            if(slot >= nSlots)
+                throw new IllegalArgumentException("No such slot: " + slot);
+            if(values.compareAndSet(slot, null, value))
+                return value;
+            return values.get(slot);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the user ID of the given slot.
+     */
+    public int getID(int slot) {
+        lock.readLock().lock();
+        try {
+            if(slot >= nSlots)
+                throw new IllegalArgumentException("No such slot: " + slot);
+            return ids[slot];
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isQualified(int slot) {
+        lock.readLock().lock();
+        try {
+            return slot < nSlots && testBit(qualified, slot);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isDisqualified(int slot) {
+        lock.readLock().lock();
+        try {
+            return slot < nSlots && testBit(disqualified, slot);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Disqualifies the user in the given slot.
+     *
+     * @return <code>true</code> if the user was qualified.
+     */
+    public boolean disqualify(int slot) {
+        lock.readLock().lock();
+        try {
+            if(slot >= nSlots)
+                return false;
+            setBit(disqualified, slot);
+            if(!clearBit(qualified, slot))
+                return false;
+            nQualified.decrementAndGet();
+            return true;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the first qualified slot at or after the given one. Use it to
+     * walk the qualified users:
+     * <pre>
+     *   for(int i = r.nextQualified(0); i >= 0; i = r.nextQualified(i+1))
+     * </pre>
+     *
+     * @param from  the slot to start from
+     * @return the slot, or -1 if there is none.
+     */
+    public int nextQualified(int from) {
+        lock.readLock().lock();
+        try {
+            if(from >= nSlots)
+                return -1;
+            int w = from >>> 6;
+            long word = qualified.get(w) & (-1L << from);
+            while(true) {
+                if(word != 0) {
+                    int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                    return slot < nSlots ? slot : -1;
+                }
+                if(++w >= qualified.length())
+                    return -1;
+                word = qualified.get(w);
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of slots, i.e. the number of users registered.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nSlots;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of qualified users.
+     */
+    public int getNQualified() {
+        return nQualified.get();
+    }
+
+    /**
+     * Removes all the users.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            table = new int[2*INITIAL_CAPACITY];
+            ids = new int[INITIAL_CAPACITY];
+            values = new AtomicReferenceArray<V>(INITIAL_CAPACITY);
+            qualified = new AtomicLongArray(INITIAL_CAPACITY >>> 6);
+            disqualified = new AtomicLongArray(INITIAL_CAPACITY >>> 6);
+            nSlots = 0;
+            nQualified.set(0);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
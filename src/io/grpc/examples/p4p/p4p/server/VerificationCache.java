@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.LongBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.examples.p4p.p4p.user.UserVector2;
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+
+/**
+ * A bounded cache of server verification results. Clients retry on network
+ * errors so the server often gets the same share and proof more than once.
+ * A repeated submission is then accepted or rejected for the cost of hashing
+ * it instead of re-running the proof checks.
+ * <p>
+ * The key is a SHA-256 digest of the system parameters, the challenge
+ * vectors, the proof and the share. What is cached is the
+ * {@link UserVector2.PartialVerification}, i.e. the result of every check
+ * that does not need Y from the peer. Y is not part of the key so the final
+ * S[i] = X[i]*B[i]*Y[i] check is still done, at the cost of N modular
+ * multiplications.
+ * <p>
+ * The least recently used entry is evicted when the cache is full. If the
+ * cache has a file it is loaded from it when created and written back by
+ * {@link #save()}. The file is trusted. Anyone who can write it can make the
+ * server accept any proof.
+ */
+
+public class VerificationCache extends P4PParameters {
+    private static final String DIGEST = "SHA-256";
+
+    /**
+     * A digest usable as a hash key.
+     */
+    private static class Key {
+        private final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key)o).digest);
+        }
+    }
+
+    private final int capacity;
+    private final File file;
+    private final LinkedHashMap<Key, UserVector2.PartialVerification> entries;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Constructs an in-memory cache.
+     *
+     * @param capacity  the maximum number of results kept
+     */
+    public VerificationCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Constructs a cache backed by a file. The results in the file, if it
+     * exists, are loaded.
+     *
+     * @param capacity  the maximum number of results kept
+     * @param file      where the results are saved. May be <code>null</code>.
+     */
+    public VerificationCache(final int capacity, File file) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Cache capacity must be positive.");
+
+        this.capacity = capacity;
+        this.file = file;
+        // Access order so that the eldest entry is the least recently used:
+        entries = new LinkedHashMap<Key, UserVector2.PartialVerification>(
+                16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, UserVector2.PartialVerification> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        if(file != null && file.exists()) {
+            try {
+                load();
+            }
+            catch(IOException e) {
+                System.out.println("Can't load the verification cache from "
+                        + file + ": " + e);
+                entries.clear();
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Computes the part of the key that is common to all the users of an
+     * epoch: the system parameters and the challenge vectors.
+     *
+     * @return the digest of the parameters
+     */
+    public static byte[] digestParameters(long F, int l, BigInteger g,
+                                          BigInteger h, int[][] c) {
+        return digestParameters(F, l, g, h, c,
+                UserVector2.RangeProofMode.BIT_COMMITMENTS);
+    }
+
+    /**
+     * Same as {@link #digestParameters(long, int, BigInteger, BigInteger, int[][])}
+     * for a deployment using the given range proof. A proof that passed
+     * under one range proof mode must not be accepted under another.
+     *
+     * @return the digest of the parameters
+     */
+    public static byte[] digestParameters(long F, int l, BigInteger g,
+                                          BigInteger h, int[][] c,
+                                          UserVector2.RangeProofMode mode) {
+        return digestParameters(F, l, g, h, c, mode, false);
+    }
+
+    /**
+     * Same as above, also telling apart deployments that aggregate the
+     * square proofs.
+     *
+     * @return the digest of the parameters
+     */
+    public static byte[] digestParameters(long F, int l, BigInteger g,
+                                          BigInteger h, int[][] c,
+                                          UserVector2.RangeProofMode mode,
+                                          boolean aggregateSquareProof) {
+        MessageDigest md = newDigest();
+        updateDigest(md, mode.ordinal() | (aggregateSquareProof ? 0x100 : 0));
+        // Leaves the digests of the earlier modes unchanged
+        md.update(p.toByteArray());
+        md.update(q.toByteArray());
+        md.update(g.toByteArray());
+        md.update(h.toByteArray());
+        updateDigest(md, F);
+        updateDigest(md, l);
+        updateDigest(md, c.length);
+        for(int i = 0; i < c.length; i++) {
+            updateDigest(md, c[i].length);
+            for(int j = 0; j < c[i].length; j++)
+                md.update((byte)c[i][j]);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Computes the key of a user's submission.
+     *
+     * @param parameters    the digest from {@link #digestParameters}
+     * @param proof         the user's proof
+     * @param share         the user's share. Read from its position on. The
+     *                      position is not changed.
+     * @return the key
+     */
+    public static byte[] digest(byte[] parameters,
+                                UserVector2.L2NormBoundProof2 proof,
+                                LongBuffer share) {
+        MessageDigest md = newDigest();
+        md.update(parameters);
+        proof.updateDigest(md);
+        int offset = share.position();
+        int n = share.remaining();
+        updateDigest(md, n);
+        for(int i = 0; i < n; i++)
+            updateDigest(md, share.get(offset+i));
+        return md.digest();
+    }
+
+    /**
+     * Looks up a result.
+     *
+     * @param key   the key from {@link #digest}
+     * @return the cached result, or <code>null</code> if there is none.
+     */
+    public UserVector2.PartialVerification get(byte[] key) {
+        UserVector2.PartialVerification pv;
+        synchronized(this) {
+            pv = entries.get(new Key(key));
+        }
+        if(pv == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return pv;
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param key   the key from {@link #digest}
+     * @param pv    the result of the checks on the submission
+     */
+    public synchronized void put(byte[] key, UserVector2.PartialVerification pv) {
+        entries.put(new Key(key), pv);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Writes the cache to its file, if it has one. The file is replaced
+     * atomically where the platform allows it.
+     */
+    public void save() throws IOException {
+        if(file == null)
+            return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            synchronized(this) {
+                out.writeInt(entries.size());
+                // Eldest first so that loading keeps the LRU order:
+                Iterator<Map.Entry<Key, UserVector2.PartialVerification>> it =
+                        entries.entrySet().iterator();
+                while(it.hasNext()) {
+                    Map.Entry<Key, UserVector2.PartialVerification> e = it.next();
+                    out.writeObject(e.getKey().digest);
+                    out.writeObject(e.getValue());
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if(!tmp.renameTo(file)) {
+            file.delete();
+            if(!tmp.renameTo(file))
+                throw new IOException("Can't rename " + tmp + " to " + file);
+        }
+    }
+
+    private void load() throws IOException {
+        ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int n = in.readInt();
+            for(int i = 0; i < n; i++) {
+                byte[] key = (byte[])in.readObject();
+                UserVector2.PartialVerification pv =
+                        (UserVector2.PartialVerification)in.readObject();
+                entries.put(new Key(key), pv);
+            }
+        }
+        catch(ClassNotFoundException e) {
+            throw new IOException("Bad verification cache: " + e);
+        }
+        catch(ClassCastException e) {
+            throw new IOException("Bad verification cache: " + e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST);
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(DIGEST + " not available: " + e);
+        }
+    }
+
+    private static void updateDigest(MessageDigest md, long x) {
+        for(int i = 0; i < 8; i++)
+            md.update((byte)(x >>> (i<<3)));
+    }
+}
@@ -34,22 +34,26 @@ package io.grpc.examples.p4p.p4p.sim;
 
 import java.io.*;
 import java.math.BigInteger;
-import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
-import java.util.Arrays;
 import java.util.Scanner; // Import the Scanner class to read text files
+import java.util.function.BiConsumer;
 
 import io.grpc.examples.p4p.p4p.user.UserVector2;
 import io.grpc.examples.p4p.p4p.util.P4PParameters;
 import io.grpc.examples.p4p.p4p.util.StopWatch;
+import io.grpc.examples.p4p.p4p.util.StripedAccumulator;
 import io.grpc.examples.p4p.p4p.util.Util;
 import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+import io.grpc.examples.p4p.p4p.net.AsyncSubmissionClient;
+import io.grpc.examples.p4p.p4p.net.Transport;
 
 import io.grpc.examples.p4p.p4p.peer.P4PPeer;
+import io.grpc.examples.p4p.p4p.server.MappedShareStore;
 import io.grpc.examples.p4p.p4p.server.P4PServer;
+import io.grpc.examples.p4p.p4p.server.VerificationCache;
 
 /*
  * Providing a simulation framework for a P4P system. This allows one to debug
@@ -75,6 +79,14 @@ public class P4PSim extends P4PParameters {
         boolean doBench = false;
         boolean worstcase = false;
         int zkpIterations = 50;
+        int nThreads = 1;       // Number of server verifier threads
+        boolean incremental = false;    // Server verifies users on arrival
+        boolean intraUser = false;      // Server verifies each proof in parallel
+        int cacheSize = 0;              // Server caches this many verifications
+        UserVector2.RangeProofMode rangeProofMode =
+                UserVector2.RangeProofMode.BIT_COMMITMENTS;
+        boolean aggregateSquares = false;   // One proof for all the squares
+        String storeFile = null;        // Server keeps shares in this file
 
         for (int i = 0; i < args.length; ) {
             String arg = args[i++];
@@ -119,10 +131,32 @@ public class P4PSim extends P4PParameters {
                     } catch (NumberFormatException e) {
                         l = 40;
                     }
+                } else if (arg.equals("-t")) {
+                    try {
+                        nThreads = Integer.parseInt(args[i++]);
+                    } catch (NumberFormatException e) {
+                        nThreads = 1;
+                    }
                 } else if (arg.equals("-d")) {
                     debug = true;
                 } else if (arg.equals("-w")) {
                     worstcase = true;
+                } else if (arg.equals("-mmap")) {
+                    storeFile = args[i++];
+                } else if (arg.equals("-inc")) {
+                    incremental = true;
+                } else if (arg.equals("-intra")) {
+                    intraUser = true;
+                } else if (arg.equals("-ipa")) {
+                    rangeProofMode = UserVector2.RangeProofMode.INNER_PRODUCT;
+                } else if (arg.equals("-aggsq")) {
+                    aggregateSquares = true;
+                } else if (arg.equals("-cache")) {
+                    try {
+                        cacheSize = Integer.parseInt(args[i++]);
+                    } catch (NumberFormatException e) {
+                        cacheSize = 1024;
+                    }
                 } else if (arg.equals("-bench")) {
                     doBench = true;
                 }
@@ -133,6 +167,7 @@ public class P4PSim extends P4PParameters {
         System.out.println("m = " + m);
         System.out.println("n = " + n);
         System.out.println("nLoops = " + nLoops);
+        System.out.println("nThreads = " + nThreads);
 
         // Setup the parameters:
         P4PParameters.initialize(k, false);
@@ -173,6 +208,13 @@ public class P4PSim extends P4PParameters {
             }
             System.out.println("dataLineNum: " + dataLineNum);
             Scanner myReader = new Scanner(myObj);
+            // -unix dir reaches the server and the peer on Unix domain
+            // sockets instead of TCP:
+            AsyncSubmissionClient client = new AsyncSubmissionClient(
+                    Transport.configure(args, "127.0.0.1", 8800),
+                    Transport.configure(args, "127.0.0.1", 8801));
+            client.setAwaitVerdict(false);  // Server and Peer only acknowledge
+            client.setTimeout(10000);
             while (myReader.hasNextLine()) {
                 String strdata = myReader.nextLine();
                 m = strdata.length();
@@ -189,9 +231,22 @@ public class P4PSim extends P4PParameters {
                 h = bi[1];
 
                 P4PServer server = new P4PServer(m, F, l, zkpIterations, g, h);
+                server.setVerifierThreads(nThreads);
+                server.setIncremental(incremental);
+                server.setIntraUserParallelism(intraUser);
+                server.setRangeProofMode(rangeProofMode);
+                server.setAggregateSquareProof(aggregateSquares);
+                if (cacheSize > 0)
+                    server.setVerificationCache(new VerificationCache(cacheSize));
+                MappedShareStore store = null;
+                if (storeFile != null) {
+                    store = new MappedShareStore(m, new File(storeFile));
+                    server.setShareStore(store);
+                }
                 P4PPeer peer = new P4PPeer(m, F, l, zkpIterations, g, h);
                 long[] s = new long[m];
-                long[] v = new long[m];
+                StripedAccumulator v = new StripedAccumulator(m, F, 1);
+                // The peer's sum
 
                 StopWatch proverWatch = new StopWatch();
                 StopWatch verifierWatch = new StopWatch();
@@ -203,10 +258,9 @@ public class P4PSim extends P4PParameters {
                     boolean passed = true;
                     server.init(); // Must clear old states and data
                     server.generateChallengeVectors();
-                    for (int i = 0; i < m; i++) {
+                    for (int i = 0; i < m; i++)
                         s[i] = 0;
-                        v[i] = 0;
-                    }
+                    v.reset();
 // for each user
                     for (int i = 0; i < n; i++) {
                         long start = System.currentTimeMillis();
@@ -225,22 +279,11 @@ public class P4PSim extends P4PParameters {
 
 //                    data = Util.randVector(m, F, l2);
                         UserVector2 uv = new UserVector2(data, F, l, g, h);
+                        uv.setRangeProofMode(rangeProofMode);
+                        uv.setAggregateSquareProof(aggregateSquares);
 // UserVector2(data, F, l, g, h)
 // 2️⃣. Shares: u, v
                         uv.generateShares();
-                        try {
-                            Socket socketConnection = new Socket("127.0.0.1", 8800);
-                            DataOutputStream outToServer = new DataOutputStream(socketConnection.getOutputStream());
-                            System.out.println(uv.getU());
-                            outToServer.writeUTF(Arrays.toString(uv.getV()));
-
-                            Socket socketConnection_peer = new Socket("127.0.0.1", 8801);
-                            DataOutputStream outToSpeer = new DataOutputStream(socketConnection_peer.getOutputStream());
-                            System.out.println(uv.getV());
-                            outToSpeer.writeUTF(Arrays.toString(uv.getV()));
-                        } catch (Exception e) {
-                            System.out.println(e);
-                        }
 
 
 // 2.1 Set checkCoVector through server challenge_vector for each user 🐢
@@ -266,12 +309,20 @@ public class P4PSim extends P4PParameters {
 //                        Gson gson = builder.create();
 //                        UserVector2.L2NormBoundProof2 serverProof_gou = gson.fromJson(jsonString, UserVector2.L2NormBoundProof2.class);
 //                        String jsonString_serverProof = gson.toJson(serverProof);
+// Shares and proofs go to the server (8800) and the peer (8801) on
+// sessions kept open for all the users. They are sent in the background
+// while the next user's proofs are constructed.
                         try {
-                            Socket socketConnection = new Socket("127.0.0.1", 8880);
-                            ObjectOutputStream outToServer1 = new ObjectOutputStream(socketConnection.getOutputStream());
-                            outToServer1.writeObject(serverProof);
-                        } catch (Exception e) {
-                            System.out.println(e);
+                            final int user = i;
+                            client.submit(i, kk, F, uv.getU(), serverProof, uv.getV(), peerProof)
+                                    .whenComplete(new BiConsumer<AsyncSubmissionClient.Verdict, Throwable>() {
+                                        public void accept(AsyncSubmissionClient.Verdict verdict, Throwable t) {
+                                            if (t != null)
+                                                System.out.println("Submission of user " + user + " failed: " + t);
+                                        }
+                                    });
+                        } catch (IOException | InterruptedException e) {
+                            System.out.println("Submission of user " + i + " failed: " + e);
                         }
 //                        Gson gson = new Gson();
 //                        String json_serverProof = gson.toJson(serverProof);
@@ -315,14 +366,14 @@ public class P4PSim extends P4PParameters {
                         if (shouldPass) {
                             nQulaifiedUsers++;
                             Util.vectorAdd(s, data, s, F);
-                            Util.vectorAdd(v, vv, v, F);
+                            v.add(vv);
                         }
                     }
 
 // 6️⃣ server prepare to verify
 // server.setPeerSum()
 // server.compute()
-                    peer.setPeerSum(v);
+                    peer.setPeerSum(v.sum());
                     verifierWatch.start();
                     server.compute(peer);          // 🌟 serverVerify 🐢🌟
                     verifierWatch.pause();
@@ -352,6 +403,9 @@ public class P4PSim extends P4PParameters {
 
                 }
 
+                server.shutdown();
+                if (store != null)
+                    store.close(); // The next line maps the file again
                 verifierWatch.stop();
                 proverWatch.stop();
                 long end = System.currentTimeMillis();
@@ -370,8 +424,16 @@ public class P4PSim extends P4PParameters {
                         + " for both the server and the privacy peer.");
             }
             myReader.close();
+            try {
+                if (!client.awaitAll(60000))
+                    System.out.println("Not all submissions have completed.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Submissions: " + client);
+            client.close();
 
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             System.out.println("An error occurred.");
             e.printStackTrace();
         }
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.user;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.grpc.examples.p4p.p4p.util.P4PParameters;
+import io.grpc.examples.p4p.p4p.crypto.Commitment;
+import io.grpc.examples.p4p.p4p.crypto.FixedBaseTable;
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+
+/**
+ * Builds the shares and proofs of many users at once, e.g. for a gateway
+ * that proves on behalf of devices too weak to do it themselves.
+ * <p>
+ * Everything that does not depend on the user data is done once for the
+ * whole batch instead of once per user: the generators are checked once,
+ * tables of the powers of g and h are precomputed (see
+ * {@link FixedBaseTable}), the challenge vectors are shared and the users
+ * are proved by one pool. Each result is handed to a
+ * {@link Listener} as soon as its user is done so that it can be sent while
+ * the others are still being proved.
+ */
+
+public class BatchProver {
+    private final int m;
+    private final long F;
+    private final int l;
+    private final NativeBigInteger g;
+    private final NativeBigInteger h;
+    private int[][] c = null;
+    private UserVector2.RangeProofMode rangeProofMode =
+            UserVector2.RangeProofMode.BIT_COMMITMENTS;
+    private boolean aggregateSquareProof = false;
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool pool = null;
+
+    /**
+     * The shares and proofs of one user.
+     */
+    public static class Result {
+        private final int index;
+        private final UserVector2 user;
+        private final UserVector2.L2NormBoundProof2 serverProof;
+        private final UserVector2.L2NormBoundProof2 peerProof;
+
+        Result(int index, UserVector2 user) {
+            this.index = index;
+            this.user = user;
+            this.serverProof =
+                    (UserVector2.L2NormBoundProof2)user.getL2NormBoundProof2(true);
+            this.peerProof =
+                    (UserVector2.L2NormBoundProof2)user.getL2NormBoundProof2(false);
+        }
+
+        /**
+         * @return the position of the user's data in the batch
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public UserVector2 getUserVector() {
+            return user;
+        }
+
+        /**
+         * @return the server's share
+         */
+        public long[] getU() {
+            return user.getU();
+        }
+
+        /**
+         * @return the peer's share
+         */
+        public long[] getV() {
+            return user.getV();
+        }
+
+        public UserVector2.L2NormBoundProof2 getServerProof() {
+            return serverProof;
+        }
+
+        public UserVector2.L2NormBoundProof2 getPeerProof() {
+            return peerProof;
+        }
+    }
+
+    /**
+     * Receives the results of a batch. It is called by the prover threads,
+     * in the order the users complete, so it must be thread safe.
+     */
+    public interface Listener {
+        void proved(Result result);
+    }
+
+    /**
+     * @param m     the dimension of the user vectors
+     * @param F     the size of the field
+     * @param l     the max allowed number of bits of the L2 norm
+     * @param g     the first generator used in commitment
+     * @param h     the second generator used in commitment
+     */
+    public BatchProver(int m, long F, int l, NativeBigInteger g,
+                       NativeBigInteger h) {
+        this.m = m;
+        this.F = F;
+        this.l = l;
+        this.g = g;
+        this.h = h;
+        new Commitment(g, h);       // Checks g and h once for the batch
+        FixedBaseTable.precompute(g);
+        FixedBaseTable.precompute(h);
+    }
+
+    /**
+     * Sets the challenge vectors for all the users of the following
+     * batches.
+     */
+    public void setChecksumCoefficientVectors(int[][] c) {
+        for(int i = 0; i < c.length; i++) {
+            if(c[i].length != m)
+                throw new RuntimeException("Incorrect dimension for c[" + i + "]!");
+        }
+        this.c = c;
+    }
+
+    public void setRangeProofMode(UserVector2.RangeProofMode mode) {
+        this.rangeProofMode = mode;
+    }
+
+    public void setAggregateSquareProof(boolean aggregate) {
+        this.aggregateSquareProof = aggregate;
+    }
+
+    /**
+     * Sets the number of threads proving users. Takes effect when the pool
+     * is next created.
+     */
+    public synchronized void setThreads(int nThreads) {
+        if(nThreads < 1)
+            throw new IllegalArgumentException("Need at least one thread.");
+        this.nThreads = nThreads;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if(pool == null)
+            pool = new ForkJoinPool(nThreads);
+        return pool;
+    }
+
+    /**
+     * Stops the prover threads. A later batch starts new ones.
+     */
+    public synchronized void shutdown() {
+        if(pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Generates the shares and proofs of one user in the calling thread.
+     *
+     * @param index the index to report in the result
+     * @param data  the user vector
+     * @return the result
+     */
+    public Result prove(int index, long[] data) {
+        if(c == null)
+            throw new RuntimeException("Checksum vector not set.");
+        if(data.length != m)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+
+        UserVector2 uv = new UserVector2(data, F, l, g, h);
+        uv.setRangeProofMode(rangeProofMode);
+        uv.setAggregateSquareProof(aggregateSquareProof);
+        uv.generateShares();
+        uv.setChecksumCoefficientVectors(c);
+        return new Result(index, uv);
+    }
+
+    /**
+     * Proves a batch of users on the pool. The listener gets each result
+     * as soon as it is ready. Returns once all the users are done.
+     *
+     * @param data      the user vectors
+     * @param listener  where the results go
+     * @throws RuntimeException if proving some user failed. The other
+     *         users are still proved.
+     */
+    public void prove(final long[][] data, final Listener listener) {
+        if(c == null)
+            throw new RuntimeException("Checksum vector not set.");
+
+        final AtomicReference<RuntimeException> failure =
+                new AtomicReference<RuntimeException>(null);
+        ForkJoinPool pool = getPool();
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[data.length];
+        for(int i = 0; i < data.length; i++) {
+            final int index = i;
+            tasks[i] = pool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        listener.proved(prove(index, data[index]));
+                    }
+                    catch(RuntimeException e) {
+                        P4PParameters.DEBUG("Proving user " + index
+                                + " failed: " + e);
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for(int i = 0; i < tasks.length; i++)
+            tasks[i].join();
+
+        if(failure.get() != null)
+            throw failure.get();
+    }
+
+    /**
+     * Proves a batch of users on the pool.
+     *
+     * @param data  the user vectors
+     * @return the results, in the order of the data
+     */
+    public Result[] prove(long[][] data) {
+        final Result[] results = new Result[data.length];
+        prove(data, new Listener() {
+            public void proved(Result result) {
+                results[result.getIndex()] = result;
+            }
+        });
+        return results;
+    }
+}
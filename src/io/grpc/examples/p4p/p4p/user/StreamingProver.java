@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.user;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+
+import io.grpc.examples.p4p.p4p.util.ChallengeGenerator;
+import io.grpc.examples.p4p.p4p.util.Util;
+import io.grpc.examples.p4p.net.i2p.util.NativeBigInteger;
+
+/**
+ * Builds the shares and proofs of a user vector too large to hold in
+ * memory. The data is read a chunk at a time. For each chunk the shares
+ * are generated and handed to a {@link ShareSink}, e.g. to be sent to the
+ * server and the peer, and the chunk's part of the N checksums is added up
+ * with the matching range of the challenge vectors, expanded from the
+ * server's seed by a {@link ChallengeGenerator}. The proof only needs the
+ * checksums, so it is built at the end from them.
+ * <p>
+ * The memory used is O(chunk size + N) whatever m is. The shares and proofs
+ * are the same as those of a <code>UserVector2</code> of the whole vector
+ * with the expanded challenge vectors.
+ */
+
+public class StreamingProver {
+    private final int m;
+    private final long F;
+    private final int l;
+    private final NativeBigInteger g;
+    private final NativeBigInteger h;
+    private final ChallengeGenerator challenge;
+    private final int chunkSize;
+    private UserVector2.RangeProofMode rangeProofMode =
+            UserVector2.RangeProofMode.BIT_COMMITMENTS;
+    private boolean aggregateSquareProof = false;
+
+    /**
+     * Receives the shares as they are generated.
+     */
+    public interface ShareSink {
+        /**
+         * Elements <code>offset</code> to <code>offset+length-1</code> of
+         * the shares are in <code>u[0..length-1]</code> and
+         * <code>v[0..length-1]</code>. The arrays are reused for the next
+         * chunk once this returns.
+         */
+        void shares(int offset, long[] u, long[] v, int length);
+    }
+
+    /**
+     * @param m         the dimension of the user vector
+     * @param F         the size of the field
+     * @param l         the max allowed number of bits of the L2 norm
+     * @param g         the first generator used in commitment
+     * @param h         the second generator used in commitment
+     * @param challenge expands the challenge vectors
+     * @param chunkSize the number of elements handled at a time
+     */
+    public StreamingProver(int m, long F, int l, NativeBigInteger g,
+                           NativeBigInteger h, ChallengeGenerator challenge,
+                           int chunkSize) {
+        if(challenge.getDimension() != m)
+            throw new IllegalArgumentException("Challenge vectors are of"
+                    + " dimension " + challenge.getDimension() + ", not " + m);
+        if(chunkSize < 1)
+            throw new IllegalArgumentException("Chunks can't be empty.");
+        this.m = m;
+        this.F = F;
+        this.l = l;
+        this.g = g;
+        this.h = h;
+        this.challenge = challenge;
+        this.chunkSize = chunkSize;
+    }
+
+    public void setRangeProofMode(UserVector2.RangeProofMode mode) {
+        this.rangeProofMode = mode;
+    }
+
+    public void setAggregateSquareProof(boolean aggregate) {
+        this.aggregateSquareProof = aggregate;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Proves a vector given as a sequence of chunks. The chunks may have any
+     * length up to the chunk size and must add up to m elements.
+     *
+     * @param chunks    the data
+     * @param sink      where the shares go
+     * @return a vector holding the proofs. Get them with
+     *         {@link UserVector2#getL2NormBoundProof2(boolean)}. It holds
+     *         neither the data nor the shares.
+     */
+    public UserVector2 prove(Iterator<long[]> chunks, ShareSink sink) {
+        State state = new State();
+        while(chunks.hasNext()) {
+            long[] chunk = chunks.next();
+            if(chunk.length > chunkSize)
+                throw new IllegalArgumentException("Chunk of " + chunk.length
+                        + " elements, the limit is " + chunkSize);
+            state.add(chunk, chunk.length, sink);
+        }
+        return state.finish();
+    }
+
+    /**
+     * Proves a vector read from a channel, e.g. a file, as m 8-byte
+     * big-endian longs.
+     *
+     * @param in    the data
+     * @param sink  where the shares go
+     * @return a vector holding the proofs
+     * @throws IOException if reading fails or there are less than m
+     *         elements
+     */
+    public UserVector2 prove(ReadableByteChannel in, ShareSink sink)
+            throws IOException {
+        State state = new State();
+        ByteBuffer buffer = ByteBuffer.allocate(8*chunkSize);
+        long[] chunk = new long[chunkSize];
+        while(state.offset < m) {
+            int length = Math.min(chunkSize, m - state.offset);
+            buffer.clear();
+            buffer.limit(8*length);
+            while(buffer.hasRemaining()) {
+                if(in.read(buffer) < 0)
+                    throw new EOFException("Only " + (state.offset
+                            + buffer.position()/8) + " of " + m
+                            + " elements.");
+            }
+            buffer.flip();
+            buffer.asLongBuffer().get(chunk, 0, length);
+            state.add(chunk, length, sink);
+        }
+        return state.finish();
+    }
+
+    /**
+     * The running state of one proof.
+     */
+    private class State {
+        int offset = 0;
+        final long[] u = new long[chunkSize];
+        final long[] v = new long[chunkSize];
+        final int[] c = new int[chunkSize];
+        final long[] uProducts = new long[challenge.getN()];
+        final long[] vProducts = new long[challenge.getN()];
+        final BigInteger bigF = new BigInteger(Long.toString(F));
+        final long half = (long)Math.floor((double)F/2.);
+
+        void add(long[] data, int length, ShareSink sink) {
+            if(offset + length > m)
+                throw new IllegalArgumentException("More than " + m
+                        + " elements.");
+
+            // The same shares as UserVector2.generateShares:
+            for(int j = 0; j < length; j++) {
+                u[j] = Util.randomBigInteger(bigF).longValue() - half;
+                v[j] = Util.mod(data[j] - u[j], F);
+            }
+
+            for(int i = 0; i < uProducts.length; i++) {
+                challenge.expand(i, offset, c, length);
+                long su = 0, sv = 0;
+                for(int j = 0; j < length; j++) {
+                    su += c[j]*u[j];
+                    sv += c[j]*v[j];
+                }
+                // Wraps around the same as Util.innerProduct does over the
+                // whole vector
+                uProducts[i] += su;
+                vProducts[i] += sv;
+            }
+
+            sink.shares(offset, u, v, length);
+            offset += length;
+        }
+
+        UserVector2 finish() {
+            if(offset != m)
+                throw new IllegalArgumentException("Only " + offset + " of "
+                        + m + " elements.");
+
+            UserVector2 uv = new UserVector2(m, F, l, g, h);
+            uv.setRangeProofMode(rangeProofMode);
+            uv.setAggregateSquareProof(aggregateSquareProof);
+            uv.setChecksumProducts(uProducts, vProducts);
+            return uv;
+        }
+    }
+}
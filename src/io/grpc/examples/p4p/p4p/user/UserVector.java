@@ -89,7 +89,7 @@ public class UserVector extends P4PParameters {
 
     }
     public UserVector(long[] data, long F, int l) {
-        if(F < 0 || !new BigInteger(new Long(F).toString()).isProbablePrime(200))
+        if(F < 0 || !BigInteger.valueOf(F).isProbablePrime(200))
             throw new RuntimeException("Field order must be positive prime.");
 
         this.data = data;
@@ -109,7 +109,7 @@ public class UserVector extends P4PParameters {
 
 
     public UserVector(int m, long F, int l) {
-        if(F < 0 || !new BigInteger(new Long(F).toString()).isProbablePrime(200))
+        if(F < 0 || !BigInteger.valueOf(F).isProbablePrime(200))
             throw new RuntimeException("Field order must be positive prime.");
 
         this.m = m;
@@ -235,12 +235,12 @@ public class UserVector extends P4PParameters {
 
                 NativeBigInteger c = new NativeBigInteger(commitment[i]);
                 // Turn it into a NativeBigInteger because we need to do pow.
-                BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());
+                BigInteger e = Util.powerOfTwo(i);
                 // 2^j
                 commitment[l] = commitment[l].multiply(c.modPow(e, p)).mod(p);
 
                 BigInteger r = bvc.getRandomness();
-                sRandomness = sRandomness.add(r.multiply(new BigInteger(new Long(((long)1)<<i).toString())));
+                sRandomness = sRandomness.add(r.multiply(Util.powerOfTwo(i)));
                 // += r[i]*2^i
 
                 // We also need to append the bit vector commitment proofs:
@@ -310,7 +310,7 @@ public class UserVector extends P4PParameters {
         for(int i = 0; i < l; i++) {
             NativeBigInteger c = new NativeBigInteger(commitment[i]);
             // Turn it into a NativeBigInteger because we need to do pow.
-            BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());
+            BigInteger e = Util.powerOfTwo(i);
             // 2^j
             z = z.multiply(c.modPow(e, p)).mod(p);
         }
@@ -33,6 +33,13 @@ package io.grpc.examples.p4p.p4p.user;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.LongBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import io.grpc.examples.p4p.p4p.util.P4PParameters;
@@ -44,6 +51,8 @@ import io.grpc.examples.p4p.p4p.crypto.Proof;
 import io.grpc.examples.p4p.p4p.crypto.BitCommitment;
 import io.grpc.examples.p4p.p4p.crypto.ThreeWayCommitment;
 import io.grpc.examples.p4p.p4p.crypto.Commitment;
+import io.grpc.examples.p4p.p4p.crypto.RangeCommitment;
+import io.grpc.examples.p4p.p4p.crypto.AggregateSquareCommitment;
 
 /**
  * Changes:
@@ -79,6 +88,55 @@ public class UserVector2 extends UserVector implements Serializable{
     private NativeBigInteger h = null;
     //private SquareCommitment sc = null;
 
+    /**
+     * How the bound on the sum of squares is proved.
+     */
+    public enum RangeProofMode {
+        /** One {@link BitCommitment} proof per bit of the sum. */
+        BIT_COMMITMENTS,
+        /** One logarithmic-size {@link RangeCommitment} proof. */
+        INNER_PRODUCT
+    }
+
+    private RangeProofMode rangeProofMode = RangeProofMode.BIT_COMMITMENTS;
+
+    /**
+     * Selects the range proof the prover builds and the verifier accepts.
+     * The users and the server of a deployment must use the same one.
+     */
+    public void setRangeProofMode(RangeProofMode mode) {
+        this.rangeProofMode = mode;
+    }
+
+    public RangeProofMode getRangeProofMode() {
+        return rangeProofMode;
+    }
+
+    private boolean aggregateSquareProof = false;
+
+    /**
+     * Selects whether the N square relations are proved by one
+     * {@link AggregateSquareCommitment} proof instead of N
+     * {@link SquareCommitment} proofs. As with the range proof mode, the
+     * users and the server must agree.
+     */
+    public void setAggregateSquareProof(boolean aggregate) {
+        this.aggregateSquareProof = aggregate;
+    }
+
+    public boolean isAggregateSquareProof() {
+        return aggregateSquareProof;
+    }
+
+    /**
+     * @return the number of bits 2*(sum of squares) can have, about
+     *         log(N)+2l.
+     */
+    private int squareSumBitLimit() {
+        return Integer.toBinaryString(c != null ? c.length : uChecksums.length)
+                .length()+2*l;
+    }
+
     public UserVector2(){
         super(new long [0], 0, 0);
     }
@@ -121,6 +179,8 @@ public class UserVector2 extends UserVector implements Serializable{
 
     private long [] u = null;       // Server's share of user vector
     private long [] v = null;       // Privacy peer's share of user vector
+    private transient LongBuffer uView = null;
+    // The server's share if it is set as a buffer
 
     /**
      * Generates the shares of the user vector.
@@ -136,6 +196,133 @@ public class UserVector2 extends UserVector implements Serializable{
             v[i] = Util.mod(data[i] - u[i], F);
             assert (data[i] == Util.mod(u[i] + v[i], F));
         }
+        checksumC = null;
+        checksumsGiven = false;
+        proof = null;
+        previousProof = null;
+    }
+
+
+    private long[] uProducts = null;    // c[i]*u
+    private long[] vProducts = null;    // c[i]*v
+    // The inner products before they are reduced mod F. Like
+    // Util.innerProduct they wrap around on overflow. Updating them with
+    // the same wrapping arithmetic gives exactly the value the verifier
+    // computes from the whole share.
+    private long[] uChecksums = null;   // c[i]*u mod F
+    private long[] vChecksums = null;   // c[i]*v mod F
+    private int[][] checksumC = null;
+    // The challenge vectors the checksums were computed for
+    private boolean checksumsGiven = false;
+    // Set if the checksums were computed elsewhere, see setChecksumProducts
+
+    /**
+     * Sets the inner products of the challenge vectors with the shares,
+     * computed elsewhere, e.g. chunk by chunk by a {@link StreamingProver}.
+     * The proof is then built from them alone. This vector needs neither
+     * the data, the shares nor the challenge vectors.
+     *
+     * @param uProducts c[i]*u for each i, with wrap around like
+     *                  Util.innerProduct
+     * @param vProducts c[i]*v for each i
+     */
+    void setChecksumProducts(long[] uProducts, long[] vProducts) {
+        if(uProducts.length != vProducts.length)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+
+        this.uProducts = uProducts;
+        this.vProducts = vProducts;
+        uChecksums = new long[uProducts.length];
+        vChecksums = new long[vProducts.length];
+        for(int i = 0; i < uProducts.length; i++) {
+            uChecksums[i] = Util.mod(uProducts[i], F);
+            vChecksums[i] = Util.mod(vProducts[i], F);
+        }
+        checksumsGiven = true;
+        proof = null;
+        previousProof = null;
+    }
+
+    /**
+     * Computes the checksums of the shares, unless they are up to date.
+     */
+    private void updateChecksums() {
+        if(checksumsGiven || (checksumC == c && uChecksums != null))
+            return;
+
+        uProducts = new long[c.length];
+        vProducts = new long[c.length];
+        uChecksums = new long[c.length];
+        vChecksums = new long[c.length];
+        for(int i = 0; i < c.length; i++) {
+            uProducts[i] = Util.innerProduct(c[i], u);
+            vProducts[i] = Util.innerProduct(c[i], v);
+            uChecksums[i] = Util.mod(uProducts[i], F);
+            vChecksums[i] = Util.mod(vProducts[i], F);
+        }
+        checksumC = c;
+    }
+
+
+    /**
+     * Updates the user vector by a sparse delta: data[index[k]] +=
+     * delta[k] mod F. This is much cheaper than a new vector when only a
+     * few elements change between epochs with the same challenge vectors:
+     * <ul>
+     * <li> Only the shares of the changed elements are regenerated, and
+     *      the checksums are updated in O(N*|delta|) instead of being
+     *      recomputed in O(N*m).</li>
+     * <li> The next {@link #getL2NormBoundProof2(boolean)} rebuilds only
+     *      the proofs of the checksums that changed, plus the bound on the
+     *      sum of squares. A checksum i changes if c[i] is non-zero at any
+     *      changed element.</li>
+     * </ul>
+     * <p>
+     * Both shares of a changed element are fresh. Otherwise the party whose
+     * share changed would learn the change. But the server and the peer
+     * do learn which elements, and which checksums, changed since the last
+     * epoch. Use {@link #generateShares()} if that must stay hidden.
+     *
+     * @param index the elements that changed
+     * @param delta how much they changed by
+     */
+    public void applyDelta(int[] index, long[] delta) {
+        if(index.length != delta.length)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+        if(u == null)
+            throw new RuntimeException("Shares not generated yet.");
+
+        boolean updateChecksums = checksumC == c && c != null
+                && uChecksums != null;
+        BigInteger bigF = new BigInteger(Long.toString(F));
+        long half = (long)Math.floor((double)F/2.);
+        for(int k = 0; k < index.length; k++) {
+            int j = index[k];
+            data[j] = Util.mod(data[j] + Util.mod(delta[k], F), F);
+            long u1 = Util.randomBigInteger(bigF).longValue() - half;
+            // A random element of Z_F, as in generateShares
+            long v1 = Util.mod(data[j] - u1, F);
+            if(updateChecksums) {
+                for(int i = 0; i < c.length; i++) {
+                    int cij = c[i][j];
+                    if(cij == 0)
+                        continue;
+                    uProducts[i] += cij*u1 - cij*u[j];
+                    vProducts[i] += cij*v1 - cij*v[j];
+                    uChecksums[i] = Util.mod(uProducts[i], F);
+                    vChecksums[i] = Util.mod(vProducts[i], F);
+                }
+            }
+            u[j] = u1;
+            v[j] = v1;
+        }
+        if(!updateChecksums)
+            checksumC = null;
+
+        if(proof != null) {
+            previousProof = proof;
+            proof = null;
+        }
     }
 
 
@@ -163,6 +350,22 @@ public class UserVector2 extends UserVector implements Serializable{
      */
     public void setU(long[] u) {
         this.u = u;
+        this.uView = null;
+    }
+
+
+    /**
+     * Sets the server share as a buffer, e.g. a view of a record in the
+     * server's share store. The elements are read from the buffer's
+     * position on and are not copied. Only the server verification can use
+     * a share set this way.
+     *
+     * @param	u       the vector
+     *
+     */
+    public void setU(LongBuffer u) {
+        this.uView = u;
+        this.u = null;
     }
 
 
@@ -290,13 +493,29 @@ public class UserVector2 extends UserVector implements Serializable{
 
         private SquareCommitment.SquareCommitmentProof[] scProofs = null;
         // The square proofs
+        private AggregateSquareCommitment.AggregateSquareCommitmentProof
+                ascProof = null;
+        // Or the single proof for all of them, if aggregated
         private BitCommitment.BitCommitmentProof[] bcProofs = null;
         // The bit proof for the sum of the squares
+        private RangeCommitment.RangeCommitmentProof rangeProof = null;
+        // Or the range proof for it, in RangeProofMode.INNER_PRODUCT
         private boolean forServer = false;
         private L2NormBoundProof2 serverProof = null;
         private L2NormBoundProof2 peerProof = null;
         private int ssBL = 0;
 
+        // The prover's secrets for each checksum, kept so that a later proof
+        // can reuse the parts for the checksums that did not change:
+        private transient BigInteger[] checksumValues = null;
+        // s[i], the checksum
+        private transient BigInteger[] sumRandomness = null;
+        // The randomness of the commitment to s[i]
+        private transient BigInteger[] squareRandomness = null;
+        // The randomness of the commitment to s[i]^2
+        private transient boolean aggregated = false;
+        // Whether the squares were proved by one aggregated proof
+
 
         ThreeWayCommitment tc = new ThreeWayCommitment(g, h, F);
         // Used to prepare the ZKP. Can be computed offline.
@@ -314,6 +533,10 @@ public class UserVector2 extends UserVector implements Serializable{
             return forServer;
         }
 
+        private void setSquareSumCommitment(BigInteger squareSumCommitment) {
+            commitment = new BigInteger[] {squareSumCommitment};
+        }
+
         /**
          * Construct the ZKP that the L2 norm of user vector is small. Note
          * that this method constructs two proofs together. One for the server,
@@ -321,22 +544,24 @@ public class UserVector2 extends UserVector implements Serializable{
          */
 //II.I🐯
         public void construct() {
-            if(c == null || u == null)
+            if((c == null || u == null) && !checksumsGiven)
                 throw new RuntimeException("Checksum vector not set or shares"
                         + " not generated yet.");
+            updateChecksums();
+            int nc = uChecksums.length;     // N
 
             serverProof = new L2NormBoundProof2(true);
             peerProof = new L2NormBoundProof2(false);
 
             /** For the server: */
-            serverProof.checksums = new long[c.length];
-            serverProof.checksumRandomness = new BigInteger[c.length];
+            serverProof.checksums = new long[nc];
+            serverProof.checksumRandomness = new BigInteger[nc];
             serverProof.scProofs =
-                    new SquareCommitment.SquareCommitmentProof[c.length];
+                    new SquareCommitment.SquareCommitmentProof[nc];
             serverProof.tcProofs =
-                    new ThreeWayCommitment.ThreeWayCommitmentProof[c.length];
+                    new ThreeWayCommitment.ThreeWayCommitmentProof[nc];
 //II.I🐯 B
-            serverProof.mdCorrector = new BigInteger[c.length];
+            serverProof.mdCorrector = new BigInteger[nc];
 // 🐰
             BigInteger squareSum = BigInteger.ZERO;
             // Sum of the squares
@@ -345,14 +570,46 @@ public class UserVector2 extends UserVector implements Serializable{
             BigInteger sRandomness = BigInteger.ZERO;
 
             /** For the peer: */
-            peerProof.checksums = new long[c.length];
-            peerProof.checksumRandomness = new BigInteger[c.length];
+            peerProof.checksums = new long[nc];
+            peerProof.checksumRandomness = new BigInteger[nc];
 
             Commitment cm = new Commitment(g, h);
             SquareCommitment sc = new SquareCommitment(g, h);
-            for(int i = 0; i < c.length; i++) {
-                serverProof.checksums[i] = Util.mod(Util.innerProduct(c[i], u), F);
-                peerProof.checksums[i] = Util.mod(Util.innerProduct(c[i], v), F);
+            checksumValues = new BigInteger[nc];
+            sumRandomness = new BigInteger[nc];
+            squareRandomness = new BigInteger[nc];
+            aggregated = aggregateSquareProof;
+            if(aggregateSquareProof)
+                serverProof.scProofs = new SquareCommitment.SquareCommitmentProof[0];
+
+            L2NormBoundProof2 previous = previousProof;
+            if(previous != null && (previous.aggregated != aggregateSquareProof
+                    || previous.checksumValues == null
+                    || previous.checksumValues.length != nc))
+                previous = null;    // Proved differently, can't reuse
+            previousProof = null;
+
+            for(int i = 0; i < nc; i++) {
+                serverProof.checksums[i] = uChecksums[i];
+                peerProof.checksums[i] = vChecksums[i];
+
+                if(previous != null
+                        && previous.serverProof.checksums[i] == uChecksums[i]
+                        && previous.peerProof.checksums[i] == vChecksums[i]) {
+                    // Neither share of this checksum changed since the last
+                    // proof. Its commitments and proofs still hold.
+                    reuse(previous, i);
+                    BigInteger cs = checksumValues[i];
+                    squareSum = squareSum.add(cs.multiply(cs));
+                    if(!aggregateSquareProof) {
+                        squareSumCommitment = squareSumCommitment.multiply(
+                                serverProof.scProofs[i].getCommitment()[1])
+                                .mod(P4PParameters.p);
+                        sRandomness = sRandomness.add(squareRandomness[i])
+                                .mod(P4PParameters.q);
+                    }
+                    continue;
+                }
 
                 /**
                  * Note that although all the normal compuations are done in
@@ -394,11 +651,19 @@ public class UserVector2 extends UserVector implements Serializable{
 
                 //BigInteger cs = new BigInteger(new Long(Math.abs(s)).toString());
 //II.I 🐯 S
-                BigInteger cs = new BigInteger(new Long(s).toString());
+                BigInteger cs = BigInteger.valueOf(s);
+                checksumValues[i] = cs;
+                sumRandomness[i] = rr;
+                if(aggregateSquareProof) {
+                    // All proved at once after the loop
+                    squareSum = squareSum.add(cs.multiply(cs));
+                    continue;
+                }
                 sc.commit(cs, rr);
                 serverProof.scProofs[i]
                         = (SquareCommitment.SquareCommitmentProof)sc.getProof();
-                P4PParameters.DEBUG("checksum: " + cs);
+                if(P4PParameters.debug)
+                    P4PParameters.DEBUG("checksum: " + cs);
 
                 if(P4PParameters.debug) {
                     // lets check here:
@@ -414,15 +679,13 @@ public class UserVector2 extends UserVector implements Serializable{
                                 + "i = " + 1);
 //II.I 🐯 Y
                     BigInteger Y =
-                            cm.commit(new BigInteger(new
-                                            Long(peerProof.checksums[i])
-                                            .toString()).mod(P4PParameters.q),
+                            cm.commit(BigInteger.valueOf(peerProof.checksums[i])
+                                            .mod(P4PParameters.q),
                                     peerProof.checksumRandomness[i].mod(P4PParameters.q));
 //II.I 🐯 X
                     BigInteger X =
-                            cm.commit(new BigInteger(new
-                                            Long(serverProof.checksums[i])
-                                            .toString()).mod(P4PParameters.q),
+                            cm.commit(BigInteger.valueOf(serverProof.checksums[i])
+                                            .mod(P4PParameters.q),
                                     serverProof.checksumRandomness[i].mod(P4PParameters.q));
                     if(!serverProof.scProofs[i].getCommitment()[0]
                             .equals(X.multiply(Y).multiply(serverProof
@@ -438,6 +701,30 @@ public class UserVector2 extends UserVector implements Serializable{
                         squareSumCommitment.multiply(sc.getB()).mod(P4PParameters.p);
                 // Now get the randomness used to commit to the square:
                 sRandomness = sRandomness.add(sc.getSb()).mod(P4PParameters.q);
+                squareRandomness[i] = sc.getSb();
+            }
+
+            if(aggregateSquareProof) {
+                AggregateSquareCommitment asc = new AggregateSquareCommitment(g, h);
+                asc.commit(checksumValues, sumRandomness);
+                serverProof.ascProof =
+                        (AggregateSquareCommitment.AggregateSquareCommitmentProof)
+                                asc.getProof();
+                BigInteger[] Z = asc.getB();
+                BigInteger[] sb = asc.getSb();
+                for(int i = 0; i < Z.length; i++) {
+                    squareSumCommitment =
+                            squareSumCommitment.multiply(Z[i]).mod(P4PParameters.p);
+                    sRandomness = sRandomness.add(sb[i]).mod(P4PParameters.q);
+                    squareRandomness[i] = sb[i];
+                }
+                ssBL = squareSum.bitLength();
+
+                if(P4PParameters.debug) {
+                    if(!asc.verify(serverProof.ascProof))
+                        throw new RuntimeException("Aggregated square proof or"
+                                + " verification is not working properly.");
+                }
             }
 
             if(P4PParameters.debug) {
@@ -485,16 +772,35 @@ public class UserVector2 extends UserVector implements Serializable{
             serverProof.commitment = new BigInteger[1];
             serverProof.commitment[0] = squareSumCommitment;
 
-//             if(bcProofs.length > Integer.toBinaryString(c.length).length()+2*l)
+            if(rangeProofMode == RangeProofMode.INNER_PRODUCT) {
+                // A single proof that 2*(sum of squares) is less than
+                // 2^limit. If it is not the proof won't verify.
+                RangeCommitment rc =
+                        new RangeCommitment(g, h, squareSumBitLimit());
+                rc.commit(squareSum, sRandomness);
+                serverProof.rangeProof =
+                        (RangeCommitment.RangeCommitmentProof)rc.getProof();
+                serverProof.bcProofs = new BitCommitment.BitCommitmentProof[0];
+                if(P4PParameters.debug) {
+                    if(!serverProof.rangeProof.getCommitment()[0]
+                            .equals(squareSumCommitment))
+                        throw new RuntimeException("Range proof is not for "
+                                + "the sum of squares!");
+                }
+                return;
+            }
+
+//             if(bcProofs.length > Integer.toBinaryString(nc).length()+2*l)
             int numBits =
                     Math.max(squareSum.bitLength(),
-                            Integer.toBinaryString(c.length).length()+2*l);
+                            Integer.toBinaryString(nc).length()+2*l);
             ssBL = squareSum.bitLength(); // if 84
             // then numBits = 86, hence pass
             // Even for small squares we must do all the commitments
             // otherwise leak info.
-            P4PParameters.DEBUG("squareSum has " + numBits + " bits. The limit is "
-                    + (Integer.toBinaryString(c.length).length()+2*l));
+            if(P4PParameters.debug)
+                P4PParameters.DEBUG("squareSum has " + numBits + " bits. The limit is "
+                        + (Integer.toBinaryString(nc).length()+2*l));
 
             serverProof.bcProofs =
                     new BitCommitment.BitCommitmentProof[numBits];
@@ -511,7 +817,7 @@ public class UserVector2 extends UserVector implements Serializable{
                 }
 
                 BigInteger r = bc.getRandomness();
-                BigInteger e = BigInteger.ZERO.setBit(i);    // 2^i
+                BigInteger e = Util.powerOfTwo(i);    // 2^i
                 // Note that we can't use ((long)1)<<i because long doesn't
                 // have enough bits!
                 sRandomness = sRandomness.subtract(r.multiply(e)).mod(P4PParameters.q);
@@ -521,7 +827,7 @@ public class UserVector2 extends UserVector implements Serializable{
             // Now the last bit:
             // First need to compute the randomness correctly:
             // BigInteger e = new BigInteger(new Long(((long)1)<<(numBits-1)).toString());   // 2^l
-            BigInteger e = BigInteger.ZERO.setBit(numBits-1);  // 2^l
+            BigInteger e = Util.powerOfTwo(numBits-1);  // 2^l
             e = e.modInverse(P4PParameters.q);
             sRandomness = sRandomness.multiply(e).mod(P4PParameters.q);      // divide by 2^l
             bc.commit(squareSum.testBit(numBits-1), sRandomness);
@@ -536,7 +842,7 @@ public class UserVector2 extends UserVector implements Serializable{
 
                 for(int i = 0; i < numBits; i++) {
                     //BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());  // 2^i
-                    e = BigInteger.ZERO.setBit(i);
+                    e = Util.powerOfTwo(i);
                     // Note that we can't use ((long)1)<<i because long doesn't
                     // have enough bits!
 
@@ -562,6 +868,25 @@ public class UserVector2 extends UserVector implements Serializable{
             }
         }
 
+        /**
+         * Copies the parts of the proofs for checksum i from an earlier
+         * proof. The aggregated square proof is not per checksum and is
+         * always rebuilt.
+         */
+        private void reuse(L2NormBoundProof2 previous, int i) {
+            serverProof.checksumRandomness[i] =
+                    previous.serverProof.checksumRandomness[i];
+            serverProof.mdCorrector[i] = previous.serverProof.mdCorrector[i];
+            serverProof.tcProofs[i] = previous.serverProof.tcProofs[i];
+            if(!aggregated)
+                serverProof.scProofs[i] = previous.serverProof.scProofs[i];
+            peerProof.checksumRandomness[i] =
+                    previous.peerProof.checksumRandomness[i];
+            checksumValues[i] = previous.checksumValues[i];
+            sumRandomness[i] = previous.sumRandomness[i];
+            squareRandomness[i] = previous.squareRandomness[i];
+        }
+
         /**
          * Returns the server part of the proof
          */
@@ -581,6 +906,23 @@ public class UserVector2 extends UserVector implements Serializable{
             return scProofs;
         }
 
+        /**
+         * @return the aggregated square proof, or <code>null</code> if each
+         *         square is proved separately.
+         */
+        public AggregateSquareCommitment.AggregateSquareCommitmentProof
+        getAggregateSquareProof() {
+            return ascProof;
+        }
+
+        /**
+         * @return the range proof for the sum of squares, or
+         *         <code>null</code> if it is proved with bit commitments.
+         */
+        public RangeCommitment.RangeCommitmentProof getRangeProof() {
+            return rangeProof;
+        }
+
         public BitCommitment.BitCommitmentProof[] getBitCommitmentProofs() {
             return bcProofs;
         }
@@ -600,10 +942,97 @@ public class UserVector2 extends UserVector implements Serializable{
         public BigInteger[] getMdCorrector() {
             return mdCorrector;
         }
+
+        public void updateDigest(MessageDigest md) {
+            super.updateDigest(md);
+            if(checksums == null)
+                updateDigest(md, -1);
+            else {
+                updateDigest(md, checksums.length);
+                for(int i = 0; i < checksums.length; i++)
+                    updateDigest(md, checksums[i]);
+            }
+            updateDigest(md, checksumRandomness);
+            updateDigest(md, mdCorrector);
+            updateDigest(md, tcProofs);
+            updateDigest(md, scProofs);
+            updateDigest(md, ascProof);
+            updateDigest(md, bcProofs);
+            updateDigest(md, rangeProof);
+        }
+
+        private void updateDigest(MessageDigest md, Proof[] proofs) {
+            if(proofs == null) {
+                updateDigest(md, -1);
+                return;
+            }
+            updateDigest(md, proofs.length);
+            for(int i = 0; i < proofs.length; i++)
+                updateDigest(md, proofs[i]);
+        }
+    }
+
+
+    /**
+     * Rebuilds a server proof received from a prover, e.g. one read off the
+     * wire. The proof belongs to this vector, not to the prover's, so it
+     * carries none of the prover's data. Either <code>scProofs</code> or
+     * <code>ascProof</code> is given, depending on whether the squares were
+     * aggregated, and either <code>bcProofs</code> or
+     * <code>rangeProof</code>, depending on the range proof mode. The other
+     * is empty or <code>null</code> respectively, as in a proof built here.
+     *
+     * @param squareSumCommitment   the commitment to 2*(sum of squares)
+     */
+    public L2NormBoundProof2 newServerProof(long[] checksums,
+                                            BigInteger[] checksumRandomness,
+                                            BigInteger squareSumCommitment,
+                                            BigInteger[] mdCorrector,
+                                            ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs,
+                                            SquareCommitment.SquareCommitmentProof[] scProofs,
+                                            AggregateSquareCommitment.AggregateSquareCommitmentProof ascProof,
+                                            BitCommitment.BitCommitmentProof[] bcProofs,
+                                            RangeCommitment.RangeCommitmentProof rangeProof) {
+        L2NormBoundProof2 l2Proof = new L2NormBoundProof2(true);
+        l2Proof.checksums = checksums;
+        l2Proof.checksumRandomness = checksumRandomness;
+        l2Proof.setSquareSumCommitment(squareSumCommitment);
+        l2Proof.mdCorrector = mdCorrector;
+        l2Proof.tcProofs = tcProofs;
+        l2Proof.scProofs = scProofs;
+        l2Proof.ascProof = ascProof;
+        l2Proof.bcProofs = bcProofs;
+        l2Proof.rangeProof = rangeProof;
+        return l2Proof;
+    }
+
+    /**
+     * Rebuilds a peer proof received from a prover.
+     */
+    public L2NormBoundProof2 newPeerProof(long[] checksums,
+                                          BigInteger[] checksumRandomness) {
+        L2NormBoundProof2 l2Proof = new L2NormBoundProof2(false);
+        l2Proof.checksums = checksums;
+        l2Proof.checksumRandomness = checksumRandomness;
+        return l2Proof;
+    }
+
+    public NativeBigInteger getG() {
+        return g;
+    }
+
+    public NativeBigInteger getH() {
+        return h;
+    }
+
+    public long getF() {
+        return F;
     }
 
 
     private L2NormBoundProof2 proof = null;
+    private transient L2NormBoundProof2 previousProof = null;
+    // The proof before the last applyDelta. Parts of it are reused.
 
     public Proof getL2NormBoundProof2(boolean server) {
         if(proof == null) {
@@ -659,7 +1088,7 @@ public class UserVector2 extends UserVector implements Serializable{
         for(int i = 0; i < y.length; i++) {
             y[i] = Util.mod(Util.innerProduct(c[i], v), F);
             Y[i] =
-                    cm.commit(new BigInteger(new Long(y[i]).toString()),
+                    cm.commit(BigInteger.valueOf(y[i]),
                             // The checksum
                             r[i]);       // The randomness
         }
@@ -672,61 +1101,551 @@ public class UserVector2 extends UserVector implements Serializable{
         if(Y == null)
             throw new RuntimeException("Must perform peer verification first!");
 
-        BitCommitment.BitCommitmentProof[] bcProofs =
-                l2Proof.getBitCommitmentProofs();
-        SquareCommitment.SquareCommitmentProof[] scProofs =
-                l2Proof.getSquareCommitmentProofs();
-        ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs =
-                l2Proof.getThreeWayCommitmentProofs();
+        return serverVerifyPartial(l2Proof).complete(Y);
+    }
+
+
+    /**
+     * The part of the server verification that is left once everything that
+     * does not depend on the peer's <code>Y</code> has been checked. This is
+     * the products X[i]*B[i] and the commitments S[i] claimed by the square
+     * proofs. Completing it with <code>Y</code> only costs N modular
+     * multiplications.
+     */
+    public static class PartialVerification implements Serializable {
+        private static final long serialVersionUID = 6529685098267757690L;
+        private final VerificationStage failedStage;
+        // The stage that rejected the proof, null if none did
+        private final BigInteger[] XB;  // X[i]*B[i] mod p
+        private final BigInteger[] S;   // The commitments to s in the square proofs
+        private transient VerificationStats stats = null;
+
+        PartialVerification(VerificationStage failedStage, BigInteger[] XB,
+                            BigInteger[] S, VerificationStats stats) {
+            this.failedStage = failedStage;
+            this.XB = XB;
+            this.S = S;
+            this.stats = stats;
+        }
+
+        /**
+         * @return <code>false</code> if the proof already failed one of the
+         *         checks that do not need <code>Y</code>.
+         */
+        public boolean hasPassed() {
+            return failedStage == null;
+        }
+
+        /**
+         * @return the stage that rejected the proof, or <code>null</code> if
+         *         it passed all the stages so far.
+         */
+        public VerificationStage getFailedStage() {
+            return failedStage;
+        }
+
+        /**
+         * Finishes the verification by checking that S[i] = X[i]*B[i]*Y[i].
+         *
+         * @param Y     the commitments to the peer's share of the checksums
+         * @return <code>true</code> if the proof is verified
+         */
+        public boolean complete(BigInteger[] Y) {
+            return complete(Y, stats);
+        }
+
+        /**
+         * Same as {@link #complete(BigInteger[])} but records the outcome in
+         * the given stats, e.g. when this result has been cached and is
+         * reused by another verifier.
+         *
+         * @param Y     the commitments to the peer's share of the checksums
+         * @param stats where to record the outcome. May be <code>null</code>.
+         * @return <code>true</code> if the proof is verified
+         */
+        public boolean complete(BigInteger[] Y, VerificationStats stats) {
+            if(!hasPassed())
+                return false;
+            if(Y == null)
+                throw new RuntimeException("Must perform peer verification first!");
+
+            if(Y.length != XB.length) {
+                System.out.println("Expecting " + XB.length + " Y's but got "
+                        + Y.length + ".");
+                if(stats != null)
+                    stats.reject(VerificationStage.PEER_COMMITMENTS);
+                return false;
+            }
+
+            for(int i = 0; i < S.length; i++) {
+                BigInteger s = XB[i].multiply(Y[i]).mod(P4PParameters.p);
+                if(!S[i].equals(s)) {
+                    System.out.println("S[" + i + "] computed incroorectly.");
+                    if(stats != null)
+                        stats.reject(VerificationStage.PEER_COMMITMENTS);
+                    return false;
+                }
+            }
+            if(stats != null)
+                stats.pass();
+            return true;
+        }
+    }
+
+    private transient VerificationStats stats = null;
+
+    /**
+     * Sets where the server verification records the stage at which each
+     * proof is rejected. May be shared by many verifiers.
+     */
+    public void setVerificationStats(VerificationStats stats) {
+        this.stats = stats;
+    }
+
+    private transient ForkJoinPool verificationPool = null;
+
+    /**
+     * Sets a pool to split the server verification of one proof over. The
+     * sub-proofs of the expensive stages are then checked in parallel. The
+     * outcome, and the index of the sub-proof reported as failing, are the
+     * same as with the sequential verification.
+     * <p>
+     * If the verification is itself run by a task of the same pool, e.g.
+     * when many users are verified at once, the sub-tasks are forked into
+     * that pool and are stolen by idle workers. The pool parallelism then
+     * bounds the total number of threads.
+     *
+     * @param pool  the pool, or <code>null</code> to verify sequentially
+     */
+    public void setVerificationPool(ForkJoinPool pool) {
+        this.verificationPool = pool;
+    }
+
 
+    /**
+     * Runs all the server checks that do not need <code>Y</code> from the
+     * peer, i.e. everything except S[i] = X[i]*B[i]*Y[i]. This is nearly all
+     * the work so the server can do it as soon as it has the share and the
+     * proof, while the peer is still verifying his part. Call
+     * {@link PartialVerification#complete(BigInteger[])} with <code>Y</code>
+     * to finish.
+     *
+     * @param l2Proof   the server's proof
+     * @return the partial result. Check {@link PartialVerification#hasPassed()}
+     *         to see if the proof has already failed.
+     */
+    public PartialVerification serverVerifyPartial(L2NormBoundProof2 l2Proof) {
+        return serverVerifyPartial(l2Proof, null);
+    }
+
+
+    /**
+     * Same as {@link #serverVerifyPartial(L2NormBoundProof2)} but can be
+     * cancelled. The checks are run as a pipeline of
+     * {@link VerificationStage}s from the cheapest to the most expensive and
+     * stop at the first failure. The <code>cancelled</code> flag is polled
+     * between sub-proofs.
+     *
+     * @param l2Proof   the server's proof
+     * @param cancelled set it to stop the verification. May be
+     *                  <code>null</code>.
+     * @return the partial result, or <code>null</code> if the verification
+     *         was cancelled.
+     */
+    public PartialVerification serverVerifyPartial(L2NormBoundProof2 l2Proof,
+                                                   AtomicBoolean cancelled) {
+        VerificationStage[] stages = VerificationStage.values();
+        for(int k = 0; k < stages.length; k++) {
+            VerificationStage stage = stages[k];
+            if(stage == VerificationStage.PEER_COMMITMENTS)
+                break;      // Needs Y. Done by complete().
+
+            int failed = runStage(stage, l2Proof, cancelled);
+            if(cancelled != null && cancelled.get())
+                return null;
+            if(failed >= 0) {
+                if(stats != null)
+                    stats.reject(stage);
+                return new PartialVerification(stage, null, null, stats);
+            }
+        }
+
+        // All checks passed. Compute what complete() needs:
         long[] x = l2Proof.getChecksums();
         // This is only getting the server's share of the checksums.
         BigInteger[] r = l2Proof.getChecksumRandomness();
-        BigInteger[] X = new BigInteger[x.length];
-        // The commitments to the checksums
-        BigInteger[] S = new BigInteger[x.length];
-        // The commitments to s
         BigInteger[] B = l2Proof.getMdCorrector();
         // The Bs
-
-        // Check the checksums and their commitments:
+        BigInteger[] XB = new BigInteger[x.length];
+        // The commitments to the checksums times the Bs
+        BigInteger[] S = new BigInteger[x.length];
         Commitment cm = new Commitment(g, h);
-        ThreeWayCommitment tc = new ThreeWayCommitment(g, h, F);
         for(int i = 0; i < x.length; i++) {
-            // First make sure the checksums are computed correctly:
-            //if(s[i] != Math.abs(Util.innerProduct(c[i], data))) {
-            if(x[i] != Util.mod(Util.innerProduct(c[i], u), F)) {
-                // We are doing server
-                System.out.println("Checksum " + i
-                        + " not computed correctly!");
-                return false;
+            BigInteger X =
+                    cm.commit(BigInteger.valueOf(x[i]).mod(P4PParameters.q),
+                            // The checksum
+                            r[i]);            // The randomness
+            XB[i] = X.multiply(B[i]).mod(P4PParameters.p);
+            S[i] = checksumCommitment(l2Proof, i);
+        }
+
+        return new PartialVerification(null, XB, S, stats);
+    }
+
+
+    /**
+     * @return the number of independent items checked by a stage. Only
+     *         valid once the {@link VerificationStage#STRUCTURE} stage has
+     *         passed, except for the structure stage itself.
+     */
+    int stageSize(VerificationStage stage, L2NormBoundProof2 l2Proof) {
+        switch(stage) {
+            case CHECKSUMS:
+            case CORRECTORS:
+            case THREE_WAY_PROOFS:
+                return l2Proof.getThreeWayCommitmentProofs().length;
+            case SQUARE_PROOFS:
+                if(aggregateSquareProof)
+                    return 1;       // One proof for all the squares
+                return l2Proof.getSquareCommitmentProofs().length;
+            case BIT_PROOFS:
+                return l2Proof.getBitCommitmentProofs().length;
+            default:
+                return 1;
+        }
+    }
+
+
+    /**
+     * Runs a stage, in parallel if there is a verification pool and the
+     * stage is worth splitting.
+     *
+     * @return the index of the first item that fails, or -1 if none does or
+     *         if the check is cancelled before it finds one.
+     */
+    private int runStage(VerificationStage stage, L2NormBoundProof2 l2Proof,
+                         AtomicBoolean cancelled) {
+        int n = stageSize(stage, l2Proof);
+        ForkJoinPool pool = verificationPool;
+        if(pool == null || n < 2 || pool.getParallelism() < 2) {
+            return checkStage(stage, l2Proof, 0, n, cancelled, null);
+        }
+
+        switch(stage) {
+            case CHECKSUMS:
+            case SQUARE_PROOFS:
+            case BIT_PROOFS:
+            case THREE_WAY_PROOFS:
+                break;
+            default:
+                return checkStage(stage, l2Proof, 0, n, cancelled, null);
+        }
+
+        // About 4 leaves per worker so that the load is balanced but each
+        // leaf's verifier setup is amortized over a few sub-proofs:
+        int grain = Math.max(MIN_GRAIN, Util.divRoundUp(n, 4*pool.getParallelism()));
+        StageTask task = new StageTask(stage, l2Proof, 0, n, grain, cancelled,
+                new AtomicInteger(Integer.MAX_VALUE));
+        if(ForkJoinTask.getPool() == pool)
+            return task.invoke();   // Already one of its workers
+        return pool.invoke(task);
+    }
+
+    private static final int MIN_GRAIN = 4;
+
+    /**
+     * Checks a range of the items of a stage by splitting it in halves
+     * until they are no bigger than the grain. The lowest failing index of
+     * the two halves is returned, the same as the sequential check would
+     * return. Once an item fails the leaves stop checking items above it.
+     * Items below it are still checked in case one of them fails too.
+     */
+    private class StageTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 6529685098267757690L;
+        private final VerificationStage stage;
+        private final L2NormBoundProof2 l2Proof;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final AtomicBoolean cancelled;
+        private final AtomicInteger firstFailure;
+
+        StageTask(VerificationStage stage, L2NormBoundProof2 l2Proof, int from,
+                  int to, int grain, AtomicBoolean cancelled,
+                  AtomicInteger firstFailure) {
+            this.stage = stage;
+            this.l2Proof = l2Proof;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.cancelled = cancelled;
+            this.firstFailure = firstFailure;
+        }
+
+        protected Integer compute() {
+            if(to - from <= grain) {
+                int failed = checkStage(stage, l2Proof, from, to, cancelled,
+                        firstFailure);
+                if(failed >= 0) {
+                    int f;
+                    while(failed < (f = firstFailure.get())
+                            && !firstFailure.compareAndSet(f, failed))
+                        ;
+                }
+                return failed;
             }
 
-            // Now check if the modular correctors, the Bs, are computed correctly
-            if(!B[i].equals(tcProofs[i].getCommitment()[0])) {
-                System.out.println("B[" + i + "]"
-                        + " not computed correctly!");
-                return false;
+            int mid = (from + to) >>> 1;
+            StageTask right = new StageTask(stage, l2Proof, mid, to, grain,
+                    cancelled, firstFailure);
+            right.fork();
+            int left = new StageTask(stage, l2Proof, from, mid, grain,
+                    cancelled, firstFailure).compute();
+            int r = right.join();
+            return left >= 0 ? left : r;
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if checking item i should stop because the
+     *         verification was cancelled or an earlier item failed.
+     */
+    private static boolean shouldStop(int i, AtomicBoolean cancelled,
+                                      AtomicInteger firstFailure) {
+        return (cancelled != null && cancelled.get())
+                || (firstFailure != null && i >= firstFailure.get());
+    }
+
+
+    /**
+     * Checks items <code>from</code> to <code>to-1</code> of a stage. The
+     * stages before it must have passed.
+     *
+     * @param firstFailure  the lowest index found failing so far by other
+     *                      ranges of the same stage, or <code>null</code>.
+     *                      Items from that index on are skipped.
+     * @return the index of the first item that fails, or -1 if none does or
+     *         if the check is stopped before it finds one.
+     */
+    int checkStage(VerificationStage stage, L2NormBoundProof2 l2Proof,
+                   int from, int to, AtomicBoolean cancelled,
+                   AtomicInteger firstFailure) {
+        switch(stage) {
+            case STRUCTURE:
+                return checkStructure(l2Proof) ? -1 : 0;
+
+            case CHECKSUMS: {
+                long[] x = l2Proof.getChecksums();
+                // This is only getting the server's share of the checksums.
+                for(int i = from; i < to; i++) {
+                    if(shouldStop(i, cancelled, firstFailure))
+                        return -1;
+                    //if(s[i] != Math.abs(Util.innerProduct(c[i], data))) {
+                    long xx = uView != null ? Util.innerProduct(c[i], uView)
+                            : Util.innerProduct(c[i], u);
+                    if(x[i] != Util.mod(xx, F)) {
+                        // We are doing server
+                        System.out.println("Checksum " + i
+                                + " not computed correctly!");
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            case CORRECTORS: {
+                // Check if the modular correctors, the Bs, are computed
+                // correctly
+                BigInteger[] B = l2Proof.getMdCorrector();
+                ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs =
+                        l2Proof.getThreeWayCommitmentProofs();
+                for(int i = from; i < to; i++) {
+                    if(!B[i].equals(tcProofs[i].getCommitment()[0])) {
+                        System.out.println("B[" + i + "]"
+                                + " not computed correctly!");
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            case SQUARE_SUM:
+                // Check if the commitment to the square sum is computed
+                // correctly:
+                if(!l2Proof.getCommitment()[0].equals(squareSumCommitment(l2Proof))) {
+                    System.out.println("Commitment to square sum wasn't computed "
+                            + "correctly.");
+                    return 0;
+                }
+                return -1;
+
+            case HOMOMORPHISM: {
+                if(rangeProofMode != RangeProofMode.BIT_COMMITMENTS)
+                    return -1;     // The range proof is on the sum itself
+
+                BitCommitment.BitCommitmentProof[] bcProofs =
+                        l2Proof.getBitCommitmentProofs();
+                BigInteger ZZ = BigInteger.ONE;
+                for(int i = 0; i < bcProofs.length; i++) {
+                    //BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());  // 2^i
+                    BigInteger e = Util.powerOfTwo(i);
+                    // Note that we can't use ((long)1)<<i because long doesn't have
+                    // enough bits!
+
+                    BigInteger Z = bcProofs[i].getCommitment()[0];
+                    ZZ = ZZ.multiply(Z.modPow(e, P4PParameters.p)).mod(P4PParameters.p);
+                }
+
+                if(!ZZ.equals(squareSumCommitment(l2Proof))) {
+                    System.out.println("Homomorphism does not hold.");
+                    return 0;
+                }
+                return -1;
+            }
+
+            case RANGE_PROOF: {
+                if(rangeProofMode != RangeProofMode.INNER_PRODUCT)
+                    return -1;
+
+                RangeCommitment.RangeCommitmentProof rp = l2Proof.getRangeProof();
+                if(!rp.getCommitment()[0].equals(l2Proof.getCommitment()[0])) {
+                    System.out.println("Range proof is not for the sum of "
+                            + "squares.");
+                    return 0;
+                }
+                RangeCommitment rc =
+                        new RangeCommitment(g, h, squareSumBitLimit());
+                if(!rc.verify(rp)) {
+                    System.out.println("Range proof verification failed.");
+                    return 0;
+                }
+                return -1;
+            }
+
+            case SQUARE_PROOFS: {
+                if(aggregateSquareProof) {
+                    AggregateSquareCommitment asc =
+                            new AggregateSquareCommitment(g, h);
+                    if(!asc.verify(l2Proof.getAggregateSquareProof())) {
+                        System.out.println("Aggregated square verification failed.");
+                        return 0;
+                    }
+                    return -1;
+                }
+
+                SquareCommitment.SquareCommitmentProof[] scProofs =
+                        l2Proof.getSquareCommitmentProofs();
+                SquareCommitment sc = new SquareCommitment(g, h);
+                for(int i = from; i < to; i++) {
+                    if(shouldStop(i, cancelled, firstFailure))
+                        return -1;
+                    if(!sc.verify(scProofs[i])) {
+                        System.out.println("Square verification " + i + " failed.");
+                        return i;
+                    }
+                }
+                return -1;
             }
 
-            // Check the 3-way proofs
-            if(!tc.verify(tcProofs[i])) {
-                System.out.println("3-Way proof " + i
-                        + " not computed correctly!");
+            case BIT_PROOFS: {
+                BitCommitment.BitCommitmentProof[] bcProofs =
+                        l2Proof.getBitCommitmentProofs();
+                if(P4PParameters.debug)
+                    P4PParameters.DEBUG("Checking  " + (to - from) + " bit commitments");
+                BitCommitment bc = new BitCommitment(g, h);
+                for(int i = from; i < to; i++) {
+                    if(shouldStop(i, cancelled, firstFailure))
+                        return -1;
+                    if(!bc.verify(bcProofs[i])) {
+                        System.out.println("Bit commitment verification " + i
+                                + " failed.");
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            case THREE_WAY_PROOFS: {
+                ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs =
+                        l2Proof.getThreeWayCommitmentProofs();
+                ThreeWayCommitment tc = new ThreeWayCommitment(g, h, F);
+                for(int i = from; i < to; i++) {
+                    if(shouldStop(i, cancelled, firstFailure))
+                        return -1;
+                    if(!tc.verify(tcProofs[i])) {
+                        System.out.println("3-Way proof " + i
+                                + " not computed correctly!");
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            default:
+                throw new IllegalArgumentException("Stage " + stage
+                        + " can't be checked without Y.");
+        }
+    }
+
+
+    /**
+     * The structural checks: all the parts are there, the arrays have the
+     * right lengths and the square sum does not have excessive bits.
+     */
+    private boolean checkStructure(L2NormBoundProof2 l2Proof) {
+        if(u == null && uView == null) {
+            System.out.println("The server share is not set.");
+            return false;
+        }
+
+        long[] x = l2Proof.getChecksums();
+        BigInteger[] r = l2Proof.getChecksumRandomness();
+        BigInteger[] B = l2Proof.getMdCorrector();
+        BitCommitment.BitCommitmentProof[] bcProofs =
+                l2Proof.getBitCommitmentProofs();
+        SquareCommitment.SquareCommitmentProof[] scProofs =
+                l2Proof.getSquareCommitmentProofs();
+        ThreeWayCommitment.ThreeWayCommitmentProof[] tcProofs =
+                l2Proof.getThreeWayCommitmentProofs();
+        if(x == null || r == null || B == null || bcProofs == null
+                || scProofs == null || tcProofs == null
+                || l2Proof.getCommitment() == null) {
+            System.out.println("Proof is incomplete.");
+            return false;
+        }
+
+        // The square proofs must be the ones this deployment uses:
+        AggregateSquareCommitment.AggregateSquareCommitmentProof asp =
+                l2Proof.getAggregateSquareProof();
+        int nSquareProofs = scProofs.length;
+        if(aggregateSquareProof) {
+            if(asp == null || scProofs.length != 0) {
+                System.out.println("Expecting an aggregated square proof.");
                 return false;
             }
+            nSquareProofs = asp.getN();
+        }
+        else if(asp != null) {
+            System.out.println("Expecting separate square proofs.");
+            return false;
+        }
 
-            X[i] =
-                    cm.commit(new BigInteger(new Long(x[i]).toString()).mod(P4PParameters.q),
-                            // The checksum
-                            r[i]);            // The randomness
-            S[i] = X[i].multiply(B[i]).mod(P4PParameters.p).multiply(Y[i]).mod(P4PParameters.p);
+        if(x.length != c.length || r.length != x.length || B.length != x.length
+                || tcProofs.length != x.length || nSquareProofs != x.length) {
+            System.out.println("Expecting " + c.length + " checksums and "
+                    + "proofs but got " + x.length + " checksums, " + r.length
+                    + " randomness, " + B.length + " Bs, " + tcProofs.length
+                    + " 3-way proofs and " + nSquareProofs
+                    + " square proofs.");
+            return false;
         }
 
-        // Next check that the sum of squares does not have excessive bits:
+        // Check that the sum of squares does not have excessive bits:
         int BL = bcProofs.length; // numBits,   squareSum =
         int CLA2l = Integer.toBinaryString(c.length).length()+2*l; //86
-        P4PParameters.DEBUG("BL: " + BL + "CLA2L: "+CLA2l);
+        if(P4PParameters.debug)
+            P4PParameters.DEBUG("BL: " + BL + "CLA2L: "+CLA2l);
         if(bcProofs.length > Integer.toBinaryString(c.length).length()+2*l){
             System.out.println("Sum of squares has too many bits: "
                     + bcProofs.length
@@ -736,66 +1655,73 @@ public class UserVector2 extends UserVector implements Serializable{
             return false;
         }
 
-        // Check the square proofs:
-        SquareCommitment sc = new SquareCommitment(g, h);
-        for(int i = 0; i < scProofs.length; i++) {
-            // First check that the square commitment encodes the correct
-            // number i.e. the A in scProofs is the commitment to s.
-            if(!scProofs[i].getCommitment()[0].equals(S[i])) {
-                System.out.println("S[" + i + "] computed incroorectly.");
+        for(int i = 0; i < x.length; i++) {
+            if(r[i] == null || B[i] == null || tcProofs[i] == null
+                    || (!aggregateSquareProof && scProofs[i] == null)) {
+                System.out.println("Part " + i + " of the proof is missing.");
                 return false;
             }
-
-            if(!sc.verify(scProofs[i])) {
-                System.out.println("Square verification " + i + " failed.");
+        }
+        for(int i = 0; i < bcProofs.length; i++) {
+            if(bcProofs[i] == null) {
+                System.out.println("Bit proof " + i + " is missing.");
                 return false;
             }
         }
 
-        // Now the bit commitment for the sum. First check if the commitment is
-        // computed correctly:
-        BigInteger z = BigInteger.ONE;
-        for(int i = 0; i < scProofs.length; i++) {
-            z = z.multiply(scProofs[i].getCommitment()[1]).mod(P4PParameters.p);   // *= B
+        // The range proof must be the one this deployment uses:
+        RangeCommitment.RangeCommitmentProof rp = l2Proof.getRangeProof();
+        if(rangeProofMode == RangeProofMode.INNER_PRODUCT) {
+            if(rp == null || bcProofs.length != 0
+                    || rp.getCommitment() == null
+                    || rp.getCommitment().length == 0) {
+                System.out.println("Expecting an inner product range proof.");
+                return false;
+            }
+            if(rp.getNumBits() != squareSumBitLimit()) {
+                System.out.println("Range proof is for " + rp.getNumBits()
+                        + " bits, the limit is " + squareSumBitLimit());
+                return false;
+            }
         }
-        z = z.multiply(z).mod(P4PParameters.p);    // commitment[0] actually stores 2X
-
-        if(!l2Proof.getCommitment()[0].equals(z)) {
-            System.out.println("Commitment to square sum wasn't computed "
-                    + "correctly.");
+        else if(rp != null) {
+            System.out.println("Expecting bit commitment range proofs.");
             return false;
         }
+        return true;
+    }
 
-        // Then check each bits
-        BitCommitment bc = new BitCommitment(g, h);
-        BigInteger zz = BigInteger.ONE;
-
-        P4PParameters.DEBUG("Checking  " + bcProofs.length + " bit commitments");
-
-        BigInteger ZZ = BigInteger.ONE;
-        for(int i = 0; i < bcProofs.length; i++) {
-            if(!bc.verify(bcProofs[i])) {
-                System.out.println("Bit commitment verification " + i
-                        + " failed.");
-                return false;
-            }
-
-            //BigInteger e = new BigInteger(new Long(((long)1)<<i).toString());  // 2^i
-            BigInteger e = BigInteger.ZERO.setBit(i);
-            // Note that we can't use ((long)1)<<i because long doesn't have
-            // enough bits!
 
-            NativeBigInteger Z =
-                    (NativeBigInteger)bcProofs[i].getCommitment()[0];
-            ZZ = ZZ.multiply(Z.modPow(e, P4PParameters.p)).mod(P4PParameters.p);
+    /**
+     * @return the commitment to twice the square sum computed from the square
+     *         proofs.
+     */
+    private BigInteger squareSumCommitment(L2NormBoundProof2 l2Proof) {
+        BigInteger z = BigInteger.ONE;
+        for(int i = 0; i < c.length; i++) {
+            z = z.multiply(squareCommitment(l2Proof, i)).mod(P4PParameters.p);   // *= B
         }
+        z = z.multiply(z).mod(P4PParameters.p);    // commitment[0] actually stores 2X
+        return z;
+    }
 
-        if(!ZZ.equals(z)) {
-            System.out.println("Homomorphism does not hold.");
-            return false;
-        }
 
-        return true;
+    /**
+     * @return S[i], the commitment to the i-th checksum the square proofs
+     *         are about.
+     */
+    private BigInteger checksumCommitment(L2NormBoundProof2 l2Proof, int i) {
+        if(aggregateSquareProof)
+            return l2Proof.getAggregateSquareProof().getA(i);
+        return l2Proof.getSquareCommitmentProofs()[i].getCommitment()[0];
     }
-}
 
+    /**
+     * @return the commitment to the square of the i-th checksum.
+     */
+    private BigInteger squareCommitment(L2NormBoundProof2 l2Proof, int i) {
+        if(aggregateSquareProof)
+            return l2Proof.getAggregateSquareProof().getB(i);
+        return l2Proof.getSquareCommitmentProofs()[i].getCommitment()[1];
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.user;
+
+/**
+ * The stages of the server verification of an
+ * {@link UserVector2.L2NormBoundProof2}, in the order they are run. The
+ * order is from the cheapest to the most expensive so that a bad proof is
+ * rejected with as little work as possible. The first stages only cost array
+ * lookups and an inner product with the share. The proof stages cost several
+ * modular exponentiations per sub-proof.
+ */
+
+public enum VerificationStage {
+    /** Array lengths, missing parts and the bit-length bound. O(1). */
+    STRUCTURE,
+    /** The server's share of the checksums against c[i]*u. O(Nm). */
+    CHECKSUMS,
+    /** The Bs against the 3-way commitments. O(N) comparisons. */
+    CORRECTORS,
+    /** The commitment to the square sum. O(N) modular multiplications. */
+    SQUARE_SUM,
+    /**
+     * The bit commitments against the square sum. Short exponents only.
+     * Nothing to check with an inner product range proof.
+     */
+    HOMOMORPHISM,
+    /**
+     * The inner product range proof, if that is what the deployment uses.
+     * One multi-exponentiation.
+     */
+    RANGE_PROOF,
+    /** The N square proofs. */
+    SQUARE_PROOFS,
+    /** The bit proofs for the square sum, if that is what the deployment uses. */
+    BIT_PROOFS,
+    /** The N 3-way proofs, each with two bit proofs inside. */
+    THREE_WAY_PROOFS,
+    /** S[i] = X[i]*B[i]*Y[i]. Needs Y from the peer. */
+    PEER_COMMITMENTS
+}
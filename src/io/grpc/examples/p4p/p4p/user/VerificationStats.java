@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.user;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many proofs each {@link VerificationStage} rejects. One
+ * instance can be shared by any number of verifier threads.
+ */
+
+public class VerificationStats {
+    private static final VerificationStage[] STAGES = VerificationStage.values();
+
+    private final AtomicLongArray rejected = new AtomicLongArray(STAGES.length);
+    private final AtomicLong passed = new AtomicLong(0);
+
+    /**
+     * Records a proof rejected by the given stage.
+     */
+    public void reject(VerificationStage stage) {
+        rejected.incrementAndGet(stage.ordinal());
+    }
+
+    /**
+     * Records a proof that passed all the stages.
+     */
+    public void pass() {
+        passed.incrementAndGet();
+    }
+
+    public long getRejected(VerificationStage stage) {
+        return rejected.get(stage.ordinal());
+    }
+
+    public long getTotalRejected() {
+        long n = 0;
+        for(int i = 0; i < STAGES.length; i++)
+            n += rejected.get(i);
+        return n;
+    }
+
+    public long getPassed() {
+        return passed.get();
+    }
+
+    public void reset() {
+        for(int i = 0; i < STAGES.length; i++)
+            rejected.set(i, 0);
+        passed.set(0);
+    }
+
+    /**
+     * @return the number of proofs passed and the rejections of each stage
+     *         that rejected any.
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(getPassed()).append(" passed");
+        for(int i = 0; i < STAGES.length; i++) {
+            long n = rejected.get(i);
+            if(n > 0)
+                sb.append(", ").append(n).append(" rejected at ")
+                        .append(STAGES[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Expands a short seed into the N challenge vectors c[i], with the same
+ * distribution as P4PServer.generateChallengeVectors: each element is 0
+ * with probability 1/2 and +/-1 with probability 1/4 each.
+ * <p>
+ * The expansion is SHA-256 in counter mode. Block b of vector i is
+ * SHA-256(seed, i, b) and gives 2 bits to each of 128 elements, so any
+ * range of any vector can be expanded without the rest. A client can then
+ * compute its checksums chunk by chunk without ever holding the N*m matrix,
+ * while the server, who has the same seed, expands the whole matrix.
+ */
+
+public class ChallengeGenerator {
+    private static final int ELEMENTS_PER_BLOCK = 128;
+    // SHA-256 gives 256 bits, 2 per element
+
+    private final byte[] seed;
+    private final int N;
+    private final int m;
+    private final MessageDigest md;
+
+    /**
+     * @param seed  the seed, e.g. from the server
+     * @param N     the number of challenge vectors
+     * @param m     their dimension
+     */
+    public ChallengeGenerator(byte[] seed, int N, int m) {
+        if(N < 1 || m < 1)
+            throw new IllegalArgumentException("Need at least one vector of"
+                    + " positive dimension.");
+        this.seed = seed.clone();
+        this.N = N;
+        this.m = m;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        }
+        catch(GeneralSecurityException e) {
+            throw new RuntimeException("Can't expand the challenge: " + e);
+        }
+    }
+
+    /**
+     * @return a generator with a fresh random 256-bit seed
+     */
+    public static ChallengeGenerator random(int N, int m) {
+        byte[] seed = new byte[32];
+        Util.rand.nextBytes(seed);
+        return new ChallengeGenerator(seed, N, m);
+    }
+
+    public byte[] getSeed() {
+        return seed.clone();
+    }
+
+    public int getN() {
+        return N;
+    }
+
+    public int getDimension() {
+        return m;
+    }
+
+    /**
+     * Expands elements <code>from</code> to <code>from+length-1</code> of
+     * c[i] into <code>out[0..length-1]</code>. A generator is not thread
+     * safe. Use one per thread.
+     */
+    public void expand(int i, int from, int[] out, int length) {
+        if(i < 0 || i >= N || from < 0 || length < 0 || from + length > m
+                || out.length < length)
+            throw new IllegalArgumentException("Range out of bounds.");
+
+        byte[] header = new byte[8];
+        Util.bytesFromInt(header, 0, i);
+        byte[] block = null;
+        int blockIndex = -1;
+        for(int k = 0; k < length; k++) {
+            int j = from + k;
+            int b = j/ELEMENTS_PER_BLOCK;
+            if(b != blockIndex) {
+                Util.bytesFromInt(header, 4, b);
+                md.reset();
+                md.update(seed);
+                md.update(header);
+                block = md.digest();
+                blockIndex = b;
+            }
+            int bit = 2*(j%ELEMENTS_PER_BLOCK);
+            int bits = (block[bit >> 3] >> (bit & 7)) & 3;
+            // The low bit decides if the element is non-zero, the high one
+            // the sign
+            out[k] = (bits & 1) == 0 ? 0 : ((bits & 2) == 0 ? 1 : -1);
+        }
+    }
+
+    /**
+     * @return the whole N*m matrix
+     */
+    public int[][] expandAll() {
+        int[][] c = new int[N][m];
+        for(int i = 0; i < N; i++)
+            expand(i, 0, c[i], m);
+        return c;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+
+package io.grpc.examples.p4p.p4p.util;
+
+import java.math.BigInteger;
+
+/**
+ * Montgomery multiplication mod an odd m with R = 2^bitLength(m). Numbers
+ * in Montgomery form are x*R mod m. A product then needs two more
+ * multiplications instead of a division to be reduced, which with
+ * <code>BigInteger</code> is about twice as fast as
+ * <code>multiply(y).mod(m)</code>.
+ */
+
+public final class Montgomery {
+    private final BigInteger m;
+    private final int bits;
+    private final BigInteger mask;      // R - 1
+    private final BigInteger mPrime;    // -1/m mod R
+
+    /**
+     * @param m     the modulus. Must be odd and greater than 1.
+     */
+    public Montgomery(BigInteger m) {
+        if(!m.testBit(0) || m.bitLength() < 2)
+            throw new IllegalArgumentException("The modulus must be odd and"
+                    + " greater than 1.");
+        this.m = m;
+        this.bits = m.bitLength();
+        BigInteger R = BigInteger.ONE.shiftLeft(bits);
+        this.mask = R.subtract(BigInteger.ONE);
+        this.mPrime = m.negate().modInverse(R);
+    }
+
+    public BigInteger getModulus() {
+        return m;
+    }
+
+    /**
+     * @return x*R mod m
+     */
+    public BigInteger toMontgomery(BigInteger x) {
+        return x.shiftLeft(bits).mod(m);
+    }
+
+    /**
+     * @return x/R mod m, for x in [0, m)
+     */
+    public BigInteger fromMontgomery(BigInteger x) {
+        return reduce(x);
+    }
+
+    /**
+     * @return 1 in Montgomery form
+     */
+    public BigInteger one() {
+        return BigInteger.ONE.shiftLeft(bits).mod(m);
+    }
+
+    /**
+     * @return x*y/R mod m, for x, y in [0, m)
+     */
+    public BigInteger multiply(BigInteger x, BigInteger y) {
+        return reduce(x.multiply(y));
+    }
+
+    /**
+     * @return t/R mod m, for t in [0, m*R)
+     */
+    private BigInteger reduce(BigInteger t) {
+        BigInteger u = t.and(mask).multiply(mPrime).and(mask);
+        u = t.add(u.multiply(m)).shiftRight(bits);
+        return u.compareTo(m) >= 0 ? u.subtract(m) : u;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2007 Regents of the University of California.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * 3. The name of the University may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE REGENTS AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ */
+
+package io.grpc.examples.p4p.p4p.util;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An accumulator for vectors over Z_F that many threads can add to at the
+ * same time.
+ * <p>
+ * The sum is kept in a number of stripes, each a separate <code>long</code>
+ * array padded on both ends so that no two stripes share a cache line. A
+ * thread is bound to one stripe the first time it adds a vector and keeps
+ * using it, so as long as there are at least as many stripes as adding
+ * threads nobody contends on the data. Each stripe is guarded by its own
+ * lock which is uncontended in that case.
+ * <p>
+ * The modular reduction is deferred. Elements of Z_F are in [-F/2, F/2) so a
+ * stripe can take a few additions before it could overflow a
+ * <code>long</code>. It is only reduced when that limit is reached. The
+ * stripes are merged and reduced when the sum is read.
+ */
+
+public class StripedAccumulator {
+    private static final int PAD = 16;
+    // 16 longs = 128 bytes of padding on both ends of a stripe. This covers
+    // the adjacent cache line prefetch of most CPUs.
+
+    private final int m;          // The dimension of the vectors
+    private final long F;         // The order of the field
+    private final long half;      // floor(F/2)
+    private final int maxDeferred;
+    // The number of additions a stripe can take before it must be reduced
+
+    private final long[][] stripes;
+    // Element j of stripe i is at stripes[i][PAD+j]. stripes[i][0], which is
+    // in the padding, counts the additions since the last reduction.
+
+    private final AtomicInteger nextStripe = new AtomicInteger(0);
+    private final ThreadLocal<long[]> myStripe = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return stripes[(nextStripe.getAndIncrement() & Integer.MAX_VALUE)
+                    % stripes.length];
+        }
+    };
+
+    /**
+     * Constructs an accumulator.
+     *
+     * @param m         the dimension of the vectors
+     * @param F         the order of the field
+     * @param nStripes  the number of stripes. Should be at least the number
+     *                  of threads that add to the accumulator.
+     */
+    public StripedAccumulator(int m, long F, int nStripes) {
+        if(F <= 0)
+            throw new IllegalArgumentException("Field order must be positive.");
+        if(nStripes < 1)
+            throw new IllegalArgumentException("Need at least one stripe.");
+
+        this.m = m;
+        this.F = F;
+        this.half = (long)Math.floor((double)F/2.);
+
+        // After k additions to a reduced stripe the magnitude is at most
+        // (k+1)*(F/2+1) which must fit in a long:
+        long k = Long.MAX_VALUE/(half+1) - 1;
+        this.maxDeferred = (int)Math.max(1, Math.min(k, Integer.MAX_VALUE));
+
+        stripes = new long[nStripes][];
+        for(int i = 0; i < nStripes; i++)
+            stripes[i] = new long[m + 2*PAD];
+    }
+
+    public int getDimension() {
+        return m;
+    }
+
+    public int getNumberOfStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Adds a vector to the sum. The elements should be in Z_F. Elements that
+     * are not are reduced first.
+     *
+     * @param v     the vector
+     * @throws      IllegalArgumentException if the dimension of
+     *              <code>v</code> is not m.
+     */
+    public void add(long[] v) {
+        if(v.length != m)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+
+        long[] stripe = myStripe.get();
+        synchronized(stripe) {
+            if(stripe[0] >= maxDeferred)
+                reduce(stripe);
+            for(int j = 0; j < m; j++) {
+                long x = v[j];
+                if(x > half || x < -half)
+                    x = Util.mod(x, F);
+                stripe[PAD+j] += x;
+            }
+            stripe[0]++;
+        }
+    }
+
+    /**
+     * Adds a vector to the sum. Same as {@link #add(long[])} but reads the
+     * elements from a buffer, from its position on. The position of the
+     * buffer is not changed.
+     *
+     * @param v     the vector
+     */
+    public void add(LongBuffer v) {
+        if(v.remaining() != m)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+
+        int offset = v.position();
+        long[] stripe = myStripe.get();
+        synchronized(stripe) {
+            if(stripe[0] >= maxDeferred)
+                reduce(stripe);
+            for(int j = 0; j < m; j++) {
+                long x = v.get(offset+j);
+                if(x > half || x < -half)
+                    x = Util.mod(x, F);
+                stripe[PAD+j] += x;
+            }
+            stripe[0]++;
+        }
+    }
+
+    /**
+     * Reduces a stripe. Must hold its lock.
+     */
+    private void reduce(long[] stripe) {
+        for(int j = PAD; j < PAD+m; j++)
+            stripe[j] = Util.mod(stripe[j], F);
+        stripe[0] = 0;
+    }
+
+    /**
+     * Merges the stripes for elements <code>from</code> to <code>to-1</code>
+     * into <code>s</code>.
+     */
+    private void merge(long[] s, int from, int to) {
+        for(int j = from; j < to; j++)
+            s[j] = 0;
+
+        for(int i = 0; i < stripes.length; i++) {
+            long[] stripe = stripes[i];
+            synchronized(stripe) {
+                // Both terms are in Z_F so the sum can't overflow
+                for(int j = from; j < to; j++)
+                    s[j] = Util.mod(s[j] + Util.mod(stripe[PAD+j], F), F);
+            }
+        }
+    }
+
+    /**
+     * Stores the sum of all the vectors added so far in <code>s</code>.
+     *
+     * @param s     an m-dimensional vector to hold the sum
+     */
+    public void sumInto(long[] s) {
+        sumInto(s, null);
+    }
+
+    /**
+     * Stores the sum of all the vectors added so far in <code>s</code>. The
+     * merge is split into ranges of elements which are done in parallel by
+     * the given pool.
+     *
+     * @param s     an m-dimensional vector to hold the sum
+     * @param pool  the pool to merge with. Merge in the calling thread if it
+     *              is <code>null</code>.
+     */
+    public void sumInto(final long[] s, ForkJoinPool pool) {
+        if(s.length != m)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+
+        int nParts = pool == null ? 1 : pool.getParallelism();
+        if(nParts <= 1 || m < 4096) {
+            merge(s, 0, m);
+            return;
+        }
+
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[nParts];
+        int chunk = Util.divRoundUp(m, nParts);
+        for(int i = 0; i < nParts; i++) {
+            final int from = Math.min(m, i*chunk);
+            final int to = Math.min(m, from + chunk);
+            tasks[i] = pool.submit(new Runnable() {
+                public void run() {
+                    merge(s, from, to);
+                }
+            });
+        }
+        for(int i = 0; i < nParts; i++)
+            tasks[i].join();
+    }
+
+    /**
+     * @return a new vector holding the sum of all the vectors added so far.
+     */
+    public long[] sum() {
+        long[] s = new long[m];
+        sumInto(s);
+        return s;
+    }
+
+    /**
+     * Clears the sum.
+     */
+    public void reset() {
+        for(int i = 0; i < stripes.length; i++) {
+            long[] stripe = stripes[i];
+            synchronized(stripe) {
+                for(int j = 0; j < stripe.length; j++)
+                    stripe[j] = 0;
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@
 package io.grpc.examples.p4p.p4p.util;
 
 import java.math.BigInteger;
+import java.nio.LongBuffer;
 import java.security.SecureRandom;
 import java.security.MessageDigest;
 import java.security.GeneralSecurityException;
@@ -70,6 +71,11 @@ public class Util extends P4PParameters {
     }
 
 
+    private static final ThreadLocal<MessageDigest> hashDigest =
+            new ThreadLocal<MessageDigest>();
+    // The digest of secureHash, reused by each thread. Looking it up
+    // costs about as much as hashing a few commitments.
+
     /**
      * A hash function mapping the message to an element in Z_q. We just
      * compute SHA-512 hash of the messages and catenate them until we have
@@ -82,7 +88,11 @@ public class Util extends P4PParameters {
      */
     public static BigInteger secureHash(BigInteger[] msg, BigInteger q)
             throws GeneralSecurityException {
-        MessageDigest md = MessageDigest.getInstance("SHA-512");
+        MessageDigest md = hashDigest.get();
+        if(md == null) {
+            md = MessageDigest.getInstance("SHA-512");
+            hashDigest.set(md);
+        }
         final int HASH_LENGTH = md.getDigestLength();
         // The length of the hash in bytes
         int k = q.bitLength()+1;
@@ -105,6 +115,140 @@ public class Util extends P4PParameters {
     }
 
 
+    private static final BigInteger[] POWERS_OF_TWO = new BigInteger[256];
+    static {
+        for(int i = 0; i < POWERS_OF_TWO.length; i++)
+            POWERS_OF_TWO[i] = BigInteger.ONE.shiftLeft(i);
+    }
+
+    /**
+     * Returns 2^i. The small powers, which the bit proofs use as exponents
+     * over and over, are shared instead of built on each call.
+     *
+     * @param	i	the exponent. Must be non-negative.
+     * @return	2^i
+     */
+    public static BigInteger powerOfTwo(int i) {
+        if(i < POWERS_OF_TWO.length)
+            return POWERS_OF_TWO[i];
+        return BigInteger.ONE.shiftLeft(i);
+    }
+
+
+    /**
+     * Computes the Jacobi symbol (a/n). For a prime n this is the Legendre
+     * symbol, i.e. 1 if a is a non-zero quadratic residue mod n, -1 if it is
+     * a non-residue and 0 if n divides a. With a safe prime p = 2q + 1 the
+     * quadratic residues are exactly the subgroup G_q of order q, so this
+     * tests membership in G_q without a modular exponentiation.
+     *
+     * @param	a	the number
+     * @param	n	an odd positive modulus
+     * @return	the Jacobi symbol (a/n)
+     */
+    public static int jacobi(BigInteger a, BigInteger n) {
+        if(n.signum() <= 0 || !n.testBit(0))
+            throw new IllegalArgumentException("n must be odd and positive.");
+
+        a = a.mod(n);
+        int j = 1;
+        while(a.signum() != 0) {
+            int twos = a.getLowestSetBit();
+            a = a.shiftRight(twos);
+            // (2/n) = -1 iff n = 3, 5 mod 8
+            int n8 = n.intValue() & 7;
+            if((twos & 1) == 1 && (n8 == 3 || n8 == 5))
+                j = -j;
+
+            // Quadratic reciprocity: flip if both are 3 mod 4
+            BigInteger t = a;
+            a = n;
+            n = t;
+            if((a.intValue() & 3) == 3 && (n.intValue() & 3) == 3)
+                j = -j;
+            a = a.mod(n);
+        }
+        return n.equals(BigInteger.ONE) ? j : 0;
+    }
+
+
+    /**
+     * Computes prod(bases[i]^exponents[i]) mod m with Straus' interleaved
+     * method. All the exponentiations share one sequence of squarings and
+     * each base only costs a multiplication per 4-bit window of its
+     * exponent, plus a small table. With many bases this is several times
+     * faster than separate modPows.
+     * <p>
+     * For an odd modulus the products are done in {@link Montgomery} form,
+     * which is about twice as fast.
+     *
+     * @param	bases       the bases
+     * @param	exponents   the exponents. Must be non-negative.
+     * @param	m           the modulus
+     * @return	prod(bases[i]^exponents[i]) mod m
+     */
+    public static BigInteger multiModPow(BigInteger[] bases,
+                                         BigInteger[] exponents,
+                                         BigInteger m) {
+        if(bases.length != exponents.length)
+            throw new IllegalArgumentException("dimesionalities do not match!");
+
+        final int w = 4;                 // Window size in bits
+        int k = bases.length;
+        int maxBits = 0;
+        for(int i = 0; i < k; i++) {
+            if(exponents[i].signum() < 0)
+                throw new IllegalArgumentException("Negative exponent.");
+            maxBits = Math.max(maxBits, exponents[i].bitLength());
+        }
+        int nWindows = (maxBits + w - 1)/w;
+        Montgomery mont = m.testBit(0) && m.bitLength() > 1
+                ? new Montgomery(m) : null;
+
+        // The windows of each exponent and the table of powers of each base
+        // that are needed:
+        int[][] digits = new int[k][nWindows];
+        BigInteger[][] table = new BigInteger[k][];
+        for(int i = 0; i < k; i++) {
+            int maxDigit = 0;
+            for(int j = 0; j < nWindows; j++) {
+                int d = 0;
+                for(int b = w - 1; b >= 0; b--)
+                    d = (d << 1) | (exponents[i].testBit(j*w + b) ? 1 : 0);
+                digits[i][j] = d;
+                maxDigit = Math.max(maxDigit, d);
+            }
+
+            table[i] = new BigInteger[maxDigit + 1];
+            if(maxDigit > 0)
+                table[i][1] = mont != null ? mont.toMontgomery(bases[i])
+                        : bases[i].mod(m);
+            for(int d = 2; d <= maxDigit; d++)
+                table[i][d] = mont != null
+                        ? mont.multiply(table[i][d-1], table[i][1])
+                        : table[i][d-1].multiply(table[i][1]).mod(m);
+        }
+
+        BigInteger acc = mont != null ? mont.one() : BigInteger.ONE;
+        boolean started = false;
+        for(int j = nWindows - 1; j >= 0; j--) {
+            if(started) {
+                for(int b = 0; b < w; b++)
+                    acc = mont != null ? mont.multiply(acc, acc)
+                            : acc.multiply(acc).mod(m);
+            }
+            for(int i = 0; i < k; i++) {
+                int d = digits[i][j];
+                if(d != 0) {
+                    acc = mont != null ? mont.multiply(acc, table[i][d])
+                            : acc.multiply(table[i][d]).mod(m);
+                    started = true;
+                }
+            }
+        }
+        return mont != null ? mont.fromMontgomery(acc) : acc.mod(m);
+    }
+
     /**
      * Converts a short into its little-endian byte string representation.
      *
@@ -406,6 +550,30 @@ public class Util extends P4PParameters {
     }
 
 
+    /**
+     * Computes the inner product of an integer array and a long buffer. The
+     * elements of the buffer are read with absolute gets so its position is
+     * not changed.
+     *
+     * @param	v1	the integer vector
+     * @param	v2	the long vector
+     * @return	inner product of <code>v1</code> and <code>v2</code>
+     * @throws  RuntimeException if the dimesionalities of the two vectors do
+     *          not match.
+     */
+
+    public static long innerProduct(int[] v1, LongBuffer v2) {
+        if(v1.length != v2.remaining())
+            throw new RuntimeException("dimesionalities do not match!");
+        int offset = v2.position();
+        long s = 0;
+        for(int i = 0; i < v1.length; i++)
+            s += v1[i]*v2.get(offset+i);
+
+        return s;
+    }
+
+
     /**
      * Computes the inner product of two doulbe arraies
      *